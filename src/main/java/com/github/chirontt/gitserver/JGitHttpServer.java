@@ -15,27 +15,43 @@ import java.io.InputStreamReader;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.Provider;
+import java.security.Security;
+import java.util.EnumSet;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
+import java.util.concurrent.TimeUnit;
 
+import jakarta.servlet.DispatcherType;
+
+import org.eclipse.jetty.alpn.server.ALPNServerConnectionFactory;
+import org.eclipse.jetty.ee10.servlet.FilterHolder;
 import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
 import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.http2.HTTP2Cipher;
+import org.eclipse.jetty.http2.server.AbstractHTTP2ServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.http2.server.HTTP2ServerConnectionFactory;
+import org.eclipse.jetty.server.AcceptRateLimit;
+import org.eclipse.jetty.server.ConnectionFactory;
 import org.eclipse.jetty.server.HttpConfiguration;
 import org.eclipse.jetty.server.HttpConnectionFactory;
+import org.eclipse.jetty.server.NetworkConnectionLimit;
+import org.eclipse.jetty.server.SecureRequestCustomizer;
 import org.eclipse.jetty.server.Server;
 import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.VirtualThreadPool;
 import org.eclipse.jgit.http.server.GitServlet;
-import org.eclipse.jgit.lfs.server.fs.FileLfsRepository;
-import org.eclipse.jgit.lfs.server.fs.FileLfsServlet;
-import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.github.chirontt.lfs.server.locks.lm.FileLfsLockManager;
+import com.github.chirontt.lfs.server.RepositoryRegistry;
+import com.github.chirontt.lfs.server.fs.SharedObjectStore;
 
 /**
  * Server to handle access to git repositories over HTTP, with LFS support.
@@ -45,16 +61,20 @@ import com.github.chirontt.lfs.server.locks.lm.FileLfsLockManager;
 public class JGitHttpServer {
     private static final Logger LOG = LoggerFactory.getLogger(JGitHttpServer.class);
 
-    private static final String LFS_PATH = "/info/lfs/";
-    private static final String OBJECTS = "objects/";
-    private static final String FILE_LOCKING_API_PATH = LFS_PATH + "locks/*";
-    private static final String STORE_PATH = LFS_PATH + OBJECTS + "*";
-    private static final String BATCH_API_PATH = LFS_PATH + OBJECTS + "batch";
+    //names of the connectors serving the git repos
+    private static final String GIT_CONNECTOR = "git-connector";
+    private static final String GIT_TLS_CONNECTOR = "git-tls-connector";
+    //system property enabling the TLS session tickets of the JDK
+    private static final String SESSION_TICKETS_PROPERTY = "jdk.tls.server.enableSessionTicketExtension";
+    //directory of the LFS objects shared by all repos, within the LFS storage
+    private static final String SHARED_OBJECTS_DIR = "shared-objects";
 
-    //default parameter values
-    static int serverPort = 8080;
-    static String basePath = "/git";
-    static String lfsPath = "/git-lfs-storage";
+    //parameter values, from the configuration then the command line
+    static int serverPort;
+    static String basePath;
+    static String lfsPath;
+    static String lfsColdPath;
+    static int tlsPort;
 
     /**
      * Server for accessing git repositories over HTTP, with LFS support.
@@ -62,10 +82,20 @@ public class JGitHttpServer {
      * @param args args[0] - server port number
      *             args[1] - path to the git repositories in the local filesystem
      *             args[2] - path to the LFS storage in the local filesystem
-     *            
+     *             args[3] - optional path to the cold tier of the LFS storage,
+     *                       where the objects not read for a while are moved to
+     *             The other settings are read from a configuration file
+     *             and the system properties, see {@link ServerConfig}.
+     *
      * @throws Exception
      */
     public static void main(String[] args) throws Exception {
+        ServerConfig config = ServerConfig.load();
+        serverPort = config.getPort();
+        basePath = config.getBasePath();
+        lfsPath = config.getLfsPath();
+        lfsColdPath = config.getLfsColdPath();
+        tlsPort = config.getTlsPort();
         if (args.length > 0) {
             serverPort = Integer.parseInt(args[0]);
         }
@@ -75,30 +105,53 @@ public class JGitHttpServer {
         if (args.length > 2) {
             lfsPath = args[2];
         }
+        if (args.length > 3) {
+            lfsColdPath = args[3];
+        }
 
         if (args.length == 0) {
-            System.out.println("Usage: JGitHttpServer [port [base-path [lfs-path]]]\n");
+            System.out.println("Usage: JGitHttpServer [port [base-path [lfs-path [lfs-cold-path]]]]\n");
         }
         printServerInfo();
 
-        Server server = new Server();
+        Server server = new Server(createThreadPool(config));
 
         HttpConfiguration httpConfig = new HttpConfiguration();
-        httpConfig.setOutputBufferSize(32768);
+        httpConfig.setOutputBufferSize(config.getOutputBufferSize());
+        httpConfig.setRequestHeaderSize(config.getRequestHeaderSize());
+        httpConfig.setResponseHeaderSize(config.getResponseHeaderSize());
+
+        if (config.getTlsPort() > 0) {
+            httpConfig.setSecureScheme("https");
+            httpConfig.setSecurePort(config.getTlsPort());
+        }
 
-        ServerConnector gitConnector = new ServerConnector(server,
-                new HttpConnectionFactory(httpConfig));
-        gitConnector.setName("git-connector");
-        gitConnector.setPort(serverPort);
-        server.addConnector(gitConnector);
+        server.addConnector(createGitConnector(server, config, httpConfig, serverPort));
+        if (config.getTlsPort() > 0) {
+            server.addConnector(createTlsConnector(server, config, httpConfig));
+        }
+
+        //protect the server from connection storms, e.g. of clones
+        if (config.getMaxConnections() > 0) {
+            server.addBean(new NetworkConnectionLimit(config.getMaxConnections(), server));
+        }
+        if (config.getMaxAcceptRate() > 0) {
+            server.addBean(new AcceptRateLimit(config.getMaxAcceptRate(), 1, TimeUnit.SECONDS, server));
+        }
+
+        if (config.getRepositoryIdleTimeout() > 0) {
+            RepositoryRegistry.setIdleTimeout(config.getRepositoryIdleTimeout());
+        }
 
         ServletContextHandler gitContext = new ServletContextHandler(ServletContextHandler.SESSIONS);
-        gitContext.setVirtualHosts(List.of("@git-connector"));
+        gitContext.setVirtualHosts(List.of("@" + GIT_CONNECTOR, "@" + GIT_TLS_CONNECTOR));
 
-        //set up LFS servlets for each valid git repo under base-path
-        List<Path> validRepos = getValidGitRepos(basePath);
-        LOG.info("Git repos with LFS support: " + validRepos);
-        setUpLfsServlets(validRepos, gitContext);
+        //set up the LFS servlets of the git repos under base-path on their first request
+        if (!Files.isDirectory(Paths.get(basePath))) {
+            throw new IllegalArgumentException("Invalid base-path: " + basePath);
+        }
+        gitContext.addFilter(new FilterHolder(createLfsDispatchFilter(config)), "/*",
+                             EnumSet.of(DispatcherType.REQUEST));
 
         //set up the GitServlet
         ServletHolder gitServletHolder = new ServletHolder(GitServlet.class);
@@ -113,9 +166,142 @@ public class JGitHttpServer {
         server.join();
     }
 
+    /**
+     * Create the thread pool of the server: platform threads by default,
+     * or virtual threads if so configured and supported by the Java runtime,
+     * so that long-running clones, pushes and LFS transfers don't each pin
+     * a platform thread.
+     */
+    static ThreadPool createThreadPool(ServerConfig config) {
+        if (config.isVirtualThreads()) {
+            if (VirtualThreads.areSupported()) {
+                LOG.info("Running requests on virtual threads");
+                return new VirtualThreadPool();
+            }
+            LOG.warn("Virtual threads are not supported by this Java runtime, using platform threads");
+        }
+        return new QueuedThreadPool(config.getMaxThreads(), config.getMinThreads(),
+                                    config.getThreadIdleTimeout());
+    }
+
+    private static ServerConnector createConnector(Server server, ServerConfig config,
+            String name, int port, ConnectionFactory... factories) {
+        ServerConnector connector = new ServerConnector(server,
+                config.getAcceptors(), config.getSelectors(), factories);
+        connector.setName(name);
+        connector.setPort(port);
+        connector.setIdleTimeout(config.getIdleTimeout());
+        if (config.getAcceptQueueSize() > 0) {
+            connector.setAcceptQueueSize(config.getAcceptQueueSize());
+        }
+        return connector;
+    }
+
+    /**
+     * Create the plain connector, also accepting cleartext HTTP/2 if enabled.
+     */
+    static ServerConnector createGitConnector(Server server, ServerConfig config,
+            HttpConfiguration httpConfig, int port) {
+        HttpConnectionFactory http11 = new HttpConnectionFactory(httpConfig);
+        if (!config.isHttp2Enabled()) {
+            return createConnector(server, config, GIT_CONNECTOR, port, http11);
+        }
+        //cleartext HTTP/2, with prior knowledge or upgraded from HTTP/1.1
+        HTTP2CServerConnectionFactory h2c = new HTTP2CServerConnectionFactory(httpConfig);
+        configureHttp2(h2c, config);
+        return createConnector(server, config, GIT_CONNECTOR, port, http11, h2c);
+    }
+
+    /**
+     * Create the HTTPS connector, negotiating HTTP/2 with ALPN if enabled,
+     * so that the many parallel LFS transfers of a client share a few connections.
+     */
+    static ServerConnector createTlsConnector(Server server, ServerConfig config,
+            HttpConfiguration httpConfig) {
+        HttpConfiguration httpsConfig = new HttpConfiguration(httpConfig);
+        httpsConfig.addCustomizer(new SecureRequestCustomizer());
+
+        SslContextFactory.Server sslContextFactory = createSslContextFactory(config);
+        HttpConnectionFactory http11 = new HttpConnectionFactory(httpsConfig);
+        if (!config.isHttp2Enabled()) {
+            SslConnectionFactory tls = new SslConnectionFactory(sslContextFactory, http11.getProtocol());
+            return createConnector(server, config, GIT_TLS_CONNECTOR, config.getTlsPort(), tls, http11);
+        }
+        HTTP2ServerConnectionFactory h2 = new HTTP2ServerConnectionFactory(httpsConfig);
+        configureHttp2(h2, config);
+        ALPNServerConnectionFactory alpn = new ALPNServerConnectionFactory(h2.getProtocol(), http11.getProtocol());
+        alpn.setDefaultProtocol(http11.getProtocol());
+        //HTTP/2 forbids some of the older cipher suites
+        sslContextFactory.setCipherComparator(HTTP2Cipher.COMPARATOR);
+        SslConnectionFactory tls = new SslConnectionFactory(sslContextFactory, alpn.getProtocol());
+        return createConnector(server, config, GIT_TLS_CONNECTOR, config.getTlsPort(), tls, alpn, h2, http11);
+    }
+
+    /**
+     * Create the TLS context of the HTTPS connector, with session resumption,
+     * and the protocols, cipher suites and JSSE provider as configured.
+     */
+    private static SslContextFactory.Server createSslContextFactory(ServerConfig config) {
+        if (config.getTlsProviderClass() != null) {
+            installSecurityProvider(config.getTlsProviderClass());
+        }
+        //with session tickets, the clients resume their sessions without a server-side cache;
+        //read by the JDK when the first TLS context is created, unless set on the command line
+        if (System.getProperty(SESSION_TICKETS_PROPERTY) == null) {
+            System.setProperty(SESSION_TICKETS_PROPERTY, String.valueOf(config.isTlsSessionTickets()));
+        }
+
+        SslContextFactory.Server sslContextFactory = new SslContextFactory.Server();
+        sslContextFactory.setKeyStorePath(config.getKeyStorePath());
+        sslContextFactory.setKeyStorePassword(config.getKeyStorePassword());
+        sslContextFactory.setKeyStoreType(config.getKeyStoreType());
+        if (config.getKeyManagerPassword() != null) {
+            sslContextFactory.setKeyManagerPassword(config.getKeyManagerPassword());
+        }
+        if (config.getTlsProvider() != null) {
+            sslContextFactory.setProvider(config.getTlsProvider());
+        }
+        if (config.getTlsProtocols() != null) {
+            sslContextFactory.setIncludeProtocols(config.getTlsProtocols());
+        }
+        if (config.getTlsIncludeCipherSuites() != null) {
+            sslContextFactory.setIncludeCipherSuites(config.getTlsIncludeCipherSuites());
+        }
+        if (config.getTlsExcludeCipherSuites() != null) {
+            sslContextFactory.setExcludeCipherSuites(config.getTlsExcludeCipherSuites());
+        }
+        //cache of the sessions to resume, for the clients without session tickets
+        sslContextFactory.setSslSessionCacheSize(config.getTlsSessionCacheSize());
+        sslContextFactory.setSslSessionTimeout(config.getTlsSessionTimeout());
+        sslContextFactory.setRenegotiationAllowed(false);
+        return sslContextFactory;
+    }
+
+    /**
+     * Install a JSSE provider, e.g. Conscrypt's org.conscrypt.OpenSSLProvider,
+     * in front of the JDK providers; its jar must be on the classpath.
+     */
+    private static void installSecurityProvider(String className) {
+        try {
+            Provider provider = (Provider) Class.forName(className).getDeclaredConstructor().newInstance();
+            Security.insertProviderAt(provider, 1);
+            LOG.info("Installed the security provider " + provider.getName());
+        } catch (ReflectiveOperationException | ClassCastException | LinkageError e) {
+            throw new RuntimeException("Cannot install the security provider " + className, e);
+        }
+    }
+
+    private static void configureHttp2(AbstractHTTP2ServerConnectionFactory factory, ServerConfig config) {
+        factory.setMaxConcurrentStreams(config.getHttp2MaxConcurrentStreams());
+        factory.setInitialSessionRecvWindow(config.getHttp2InitialSessionRecvWindow());
+        factory.setInitialStreamRecvWindow(config.getHttp2InitialStreamRecvWindow());
+    }
+
     private static void printServerInfo() {
         System.out.println("Running Git http server on port=" + serverPort +
-                           ", base-path=" + basePath + ", lfs-path=" + lfsPath);
+                           ", base-path=" + basePath + ", lfs-path=" + lfsPath +
+                           (lfsColdPath == null ? "" : ", lfs-cold-path=" + lfsColdPath) +
+                           (tlsPort > 0 ? ", tls-port=" + tlsPort : ""));
         System.out.println("Available services:");
         System.out.println(" - Reading is permitted by default for all repositories,");
         System.out.println("   unless 'http.uploadpack=false' is set for a specific repository.");
@@ -131,7 +317,9 @@ public class JGitHttpServer {
         try (BufferedReader br = new BufferedReader(new InputStreamReader(
                 Runtime.getRuntime().exec(new String[]{"hostname"}).getInputStream()))) {
             String hostname = br.readLine();
-            return new URI("http://" + hostname + ":" + serverPort);
+            //the LFS clients are sent to the TLS connector if any
+            return tlsPort > 0 ? new URI("https://" + hostname + ":" + tlsPort)
+                               : new URI("http://" + hostname + ":" + serverPort);
         } catch (IOException e) {
             throw new RuntimeException("Cannot find hostname", e);
         } catch (URISyntaxException e) {
@@ -139,54 +327,15 @@ public class JGitHttpServer {
         }
     }
 
-    private static List<Path> getValidGitRepos(String basePath) {
-        try (Stream<Path> walk = Files.walk(Paths.get(basePath), 1)) {
-            List<Path> repos = walk.filter(Files::isDirectory)
-                                   .filter(path -> isGitDirectory(path))
-                                   .collect(Collectors.toList());
-            return repos;    	
-        } catch (IOException e) {
-            throw new IllegalArgumentException("Invalid base-path: " + basePath, e);
-        }
-    }
-
-    private static void setUpLfsServlets(List<Path> repos, ServletContextHandler context) {
-        URI baseURI = getBaseURI();
-        repos.forEach( repoPath -> {
-            String repoName = repoPath.getFileName().toString();
-            if (!repoName.endsWith(".git")) {
-                repoName = repoName + ".git";
-            }
-            try {
-                //set up the LFS file locking servlet for this repo
-//              MemoryLfsLockManager lockManager = new MemoryLfsLockManager(repoPath);
-                FileLfsLockManager lockManager = new FileLfsLockManager(Paths.get(lfsPath, repoName), repoPath);
-                context.addServlet(new ServletHolder(new LfsFileLockingServlet(lockManager, repoPath)),
-                                   "/" + repoName + FILE_LOCKING_API_PATH);
-                //set up the LFS batch servlet for this repo
-                FileLfsRepository fsRepo = new FileLfsRepository(
-                        baseURI + "/" + repoName + LFS_PATH + OBJECTS, Paths.get(lfsPath, repoName));
-                context.addServlet(new ServletHolder(new LfsBatchServlet(fsRepo, repoPath)),
-                                   "/" + repoName + BATCH_API_PATH);
-                //set up the LFS content servlet for this repo
-                //with timeout of 60 minutes for object upload/download
-                FileLfsServlet lfsContentServlet = new FileLfsServlet(fsRepo, 3600000);
-                context.addServlet(new ServletHolder(lfsContentServlet),
-                                   "/" + repoName + STORE_PATH);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
-        });
-    }
-
-    private static boolean isGitDirectory(Path path) {
-        FileRepositoryBuilder repositoryBuilder =
-                new FileRepositoryBuilder().setGitDir(path.toFile())
-                                           .setMustExist(true);
-        try (Repository repository = repositoryBuilder.build()) {
-            return repository.exactRef("HEAD") != null;
+    private static LfsDispatchFilter createLfsDispatchFilter(ServerConfig config) {
+        SharedObjectStore sharedStore;
+        try {
+            //LFS objects are stored once per tier, and linked into the repos referencing them
+            sharedStore = new SharedObjectStore(Paths.get(lfsPath, SHARED_OBJECTS_DIR),
+                    lfsColdPath == null ? null : Paths.get(lfsColdPath, SHARED_OBJECTS_DIR));
         } catch (IOException e) {
-            return false;
+            throw new RuntimeException("Cannot create the shared LFS object store", e);
         }
+        return new LfsDispatchFilter(basePath, lfsPath, lfsColdPath, getBaseURI(), sharedStore, config);
     }
 }
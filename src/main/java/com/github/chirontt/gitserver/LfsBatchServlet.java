@@ -13,7 +13,6 @@ import java.nio.file.Path;
 
 import org.eclipse.jgit.lfs.errors.LfsException;
 import org.eclipse.jgit.lfs.server.LargeFileRepository;
-import org.eclipse.jgit.lfs.server.fs.FileLfsRepository;
 
 import com.github.chirontt.lfs.server.LfsProtocolServletV2;
 import com.github.chirontt.lfs.server.RepositoryAccessor;
@@ -26,12 +25,16 @@ public class LfsBatchServlet extends LfsProtocolServletV2 {
 
     private static final long serialVersionUID = 1L;
 
-    private FileLfsRepository lfsRepo;
+    private LargeFileRepository lfsRepo;
     private RepositoryAccessor repoAccessor;
 
-    public LfsBatchServlet(FileLfsRepository lfsRepo, Path repoPath) {
+    public LfsBatchServlet(LargeFileRepository lfsRepo, Path repoPath) {
+        this(lfsRepo, new LfsRepositoryAccessor(repoPath));
+    }
+
+    public LfsBatchServlet(LargeFileRepository lfsRepo, RepositoryAccessor repoAccessor) {
         this.lfsRepo = lfsRepo;
-        this.repoAccessor = new LfsRepositoryAccessor(repoPath);
+        this.repoAccessor = repoAccessor;
     }
 
     @Override
@@ -0,0 +1,639 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.gitserver;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import jakarta.servlet.Filter;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.FilterConfig;
+import jakarta.servlet.ServletConfig;
+import jakarta.servlet.ServletContext;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletRequest;
+import jakarta.servlet.ServletResponse;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+
+import org.eclipse.jgit.lfs.errors.LfsException;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.chirontt.lfs.server.CachingLfsRepository;
+import com.github.chirontt.lfs.server.LfsProtocolServletV2;
+import com.github.chirontt.lfs.server.RepositoryRegistry;
+import com.github.chirontt.lfs.server.fs.DedupFileLfsRepository;
+import com.github.chirontt.lfs.server.fs.FileLfsContentServlet;
+import com.github.chirontt.lfs.server.fs.SharedObjectStore;
+import com.github.chirontt.lfs.server.locks.LockManager;
+import com.github.chirontt.lfs.server.locks.lm.CommitStatistics;
+import com.github.chirontt.lfs.server.locks.lm.FileLfsLockManager;
+import com.github.chirontt.lfs.server.locks.lm.JournalLfsLockManager;
+
+/**
+ * Front of the LFS servlets of all the git repositories under the base path.
+ *
+ * The LFS requests, i.e. those to {@code /<repo>/info/lfs/...}, are dispatched
+ * to the LFS servlets of the repository, which are set up on its first request
+ * and evicted once the repository has been idle for a while. The other requests
+ * are passed on to the GitServlet. This way, the startup doesn't depend on
+ * the number of repositories, and the repositories created afterwards get
+ * their LFS endpoints too. The LFS servlets of a repository are set up
+ * by its first request, outside of the map of the repositories, the other
+ * requests to the repository waiting for them. The names which aren't those
+ * of repositories are remembered for a short time, so that requests to them
+ * don't look for the repository each time. The LFS objects of a repository
+ * stored before the shared object store existed are shared the first time
+ * its LFS servlets are set up. The uploads abandoned by their
+ * clients are cleaned up when the LFS servlets are set up, and periodically
+ * afterwards. The commit statistics of the lock journals which have committed
+ * since they were last logged are logged periodically too.
+ *
+ * This is a filter rather than a servlet, as the servlet mappings cannot
+ * match the repository name in front of the LFS paths.
+ */
+public class LfsDispatchFilter implements Filter {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LfsDispatchFilter.class);
+
+    private static final String GIT_SUFFIX = ".git";
+    private static final String LFS_PATH = "/info/lfs/";
+    private static final String OBJECTS = "objects/";
+    private static final String LOCKS = "locks";
+    private static final String BATCH = OBJECTS + "batch";
+
+    //maximum time between two cleanups of the abandoned uploads
+    private static final long MAX_UPLOAD_CLEANUP_PERIOD = TimeUnit.HOURS.toMillis(1);
+    //maximum number of names of missing repositories to remember
+    private static final int MAX_MISSING_REPOS = 10000;
+
+    /**
+     * LFS servlets of a repository.
+     */
+    private static class LfsServlets {
+        final LockManager lockManager;
+        final LfsFileLockingServlet lockingServlet;
+        final LfsBatchServlet batchServlet;
+        final FileLfsContentServlet contentServlet;
+        final DedupFileLfsRepository fsRepo;
+        //number of lock journal commits when the statistics were last logged,
+        //only used by the scheduler
+        long loggedBatchCount;
+
+        LfsServlets(LockManager lockManager, LfsFileLockingServlet lockingServlet, LfsBatchServlet batchServlet,
+                    FileLfsContentServlet contentServlet, DedupFileLfsRepository fsRepo) {
+            this.lockManager = lockManager;
+            this.lockingServlet = lockingServlet;
+            this.batchServlet = batchServlet;
+            this.contentServlet = contentServlet;
+            this.fsRepo = fsRepo;
+        }
+    }
+
+    /**
+     * LFS servlets of a repository, set up or being set up, with their users.
+     */
+    private static class RepoEntry {
+        //completed with the LFS servlets once set up,
+        //or with null if the repository doesn't exist
+        final CompletableFuture<LfsServlets> servlets = new CompletableFuture<>();
+        //number of requests being served, and time of the last one,
+        //only changed within the compute methods of the map
+        int users;
+        long lastUsed;
+    }
+
+    private final Path basePath;
+    private final String lfsPath;
+    private final String lfsColdPath;
+    private final URI baseURI;
+    private final SharedObjectStore sharedStore;
+    private final ServerConfig config;
+
+    //LFS servlets of the repositories in use, by repository name
+    private final Map<String, RepoEntry> repos = new ConcurrentHashMap<>();
+    //LFS servlets of the repositories evicted and being closed, by repository name,
+    //which must be closed before those of the repository are set up again
+    private final Map<String, CompletableFuture<Void>> closingRepos = new ConcurrentHashMap<>();
+    //repository name -> expiry time (System.nanoTime()) of the missing repositories
+    private final Map<String, Long> missingRepos = new ConcurrentHashMap<>();
+    //access rules of the repositories, by repository path, shared by their servlets
+    //and the checks of the repositories whose objects can be linked into other ones
+    private final Map<Path, LfsRepositoryAccessor> accessors = new ConcurrentHashMap<>();
+    private final long missingRepoTtlNanos;
+    //runs the eviction of the idle repos, the cleanup of the abandoned uploads
+    //and the logging of the lock journal statistics
+    private ScheduledExecutorService scheduler;
+    private ServletConfig servletConfig;
+
+    /**
+     * @param basePath The path to the git repositories.
+     * @param lfsPath The path to the LFS storage.
+     * @param lfsColdPath The path to the cold tier of the LFS storage, or null for no cold tier.
+     * @param baseURI The external URI of the server.
+     * @param sharedStore The store of the LFS objects shared by the repositories.
+     * @param config The server configuration.
+     */
+    public LfsDispatchFilter(String basePath, String lfsPath, String lfsColdPath, URI baseURI,
+                             SharedObjectStore sharedStore, ServerConfig config) {
+        this.basePath = Paths.get(basePath);
+        this.lfsPath = lfsPath;
+        this.lfsColdPath = lfsColdPath;
+        this.baseURI = baseURI;
+        this.sharedStore = sharedStore;
+        this.config = config;
+        this.missingRepoTtlNanos = TimeUnit.MILLISECONDS.toNanos(config.getLfsRepositoryMissingTtl());
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void init(FilterConfig filterConfig) throws ServletException {
+        //the LFS servlets are initialized with the context of this filter
+        servletConfig = new ServletConfig() {
+            @Override
+            public String getServletName() {
+                return filterConfig.getFilterName();
+            }
+
+            @Override
+            public ServletContext getServletContext() {
+                return filterConfig.getServletContext();
+            }
+
+            @Override
+            public String getInitParameter(String name) {
+                return null;
+            }
+
+            @Override
+            public Enumeration<String> getInitParameterNames() {
+                return Collections.emptyEnumeration();
+            }
+        };
+        long idleTimeout = config.getLfsRepositoryIdleTimeout();
+        long uploadMaxIdleTime = config.getLfsUploadMaxIdleTime();
+        long statisticsPeriod = ServerConfig.LOCK_MANAGER_JOURNAL.equals(config.getLfsLockManager())
+                ? config.getLfsLockStatisticsPeriod() : 0;
+        if (idleTimeout > 0 || uploadMaxIdleTime > 0 || statisticsPeriod > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "lfs-repo-maintenance");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        if (idleTimeout > 0) {
+            scheduler.scheduleWithFixedDelay(() -> evictIdle(idleTimeout),
+                    idleTimeout, idleTimeout, TimeUnit.MILLISECONDS);
+        }
+        if (uploadMaxIdleTime > 0) {
+            long period = Math.min(uploadMaxIdleTime, MAX_UPLOAD_CLEANUP_PERIOD);
+            scheduler.scheduleWithFixedDelay(() -> repos.values().stream()
+                    .map(LfsDispatchFilter::getIfSetUp)
+                    .filter(Objects::nonNull)
+                    .forEach(this::removeAbandonedUploads),
+                    period, period, TimeUnit.MILLISECONDS);
+        }
+        if (statisticsPeriod > 0) {
+            scheduler.scheduleWithFixedDelay(this::logLockCommitStatistics,
+                    statisticsPeriod, statisticsPeriod, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void doFilter(ServletRequest request, ServletResponse response, FilterChain chain)
+            throws IOException, ServletException {
+        HttpServletRequest req = (HttpServletRequest) request;
+        String path = getPath(req);
+        int lfsIndex = path.indexOf(LFS_PATH);
+        //only the repositories directly under the base path are served
+        String dirName = lfsIndex > 1 ? path.substring(1, lfsIndex) : null;
+        if (dirName == null || dirName.indexOf('/') >= 0
+                || dirName.equals(".") || dirName.equals("..")) {
+            chain.doFilter(request, response);
+            return;
+        }
+        String repoName = dirName.endsWith(GIT_SUFFIX) ? dirName : dirName + GIT_SUFFIX;
+        String servletPath = path.substring(0, lfsIndex + LFS_PATH.length());
+        String lfsRequest = path.substring(servletPath.length());
+
+        LfsServlets repoServlets = acquire(repoName);
+        if (repoServlets == null) {
+            //not a git repository, left to the GitServlet to reject
+            chain.doFilter(request, response);
+            return;
+        }
+        try {
+            if (lfsRequest.equals(BATCH)) {
+                dispatch(repoServlets.batchServlet, req, response, servletPath + BATCH, null);
+            } else if (lfsRequest.startsWith(OBJECTS)) {
+                dispatch(repoServlets.contentServlet, req, response, servletPath + "objects",
+                         lfsRequest.substring(OBJECTS.length() - 1));
+            } else if (lfsRequest.equals(LOCKS) || lfsRequest.startsWith(LOCKS + "/")) {
+                dispatch(repoServlets.lockingServlet, req, response, servletPath + LOCKS,
+                         lfsRequest.length() == LOCKS.length() ? null : lfsRequest.substring(LOCKS.length()));
+            } else {
+                chain.doFilter(request, response);
+            }
+        } finally {
+            release(repoName);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        for (String repoName : repos.keySet()) {
+            RepoEntry entry = repos.remove(repoName);
+            LfsServlets repoServlets = entry == null ? null : getIfSetUp(entry);
+            if (repoServlets != null) {
+                close(repoServlets);
+            }
+        }
+    }
+
+    /**
+     * @return The number of repositories whose LFS servlets are set up or being set up
+     */
+    public int getRepositoryCount() {
+        return repos.size();
+    }
+
+    /**
+     * @param repoName The name of a repository, with its .git suffix.
+     *
+     * @return The statistics of the commit batches of the lock journal of the repository,
+     *         or null if its LFS servlets aren't set up or its locks aren't journaled
+     */
+    public CommitStatistics getLockCommitStatistics(String repoName) {
+        RepoEntry entry = repos.get(repoName);
+        LfsServlets repoServlets = entry == null ? null : getIfSetUp(entry);
+        return repoServlets == null ? null : getLockCommitStatistics(repoServlets);
+    }
+
+    private static CommitStatistics getLockCommitStatistics(LfsServlets repoServlets) {
+        return repoServlets.lockManager instanceof JournalLfsLockManager
+                ? ((JournalLfsLockManager) repoServlets.lockManager).getCommitStatistics()
+                : null;
+    }
+
+    /**
+     * Log the commit statistics of the lock journals which have committed
+     * since their statistics were last logged.
+     */
+    private void logLockCommitStatistics() {
+        repos.forEach((repoName, entry) -> {
+            LfsServlets repoServlets = getIfSetUp(entry);
+            CommitStatistics statistics = repoServlets == null ? null : getLockCommitStatistics(repoServlets);
+            if (statistics == null) {
+                return;
+            }
+            long batchCount = statistics.getBatchCount();
+            if (batchCount != repoServlets.loggedBatchCount) {
+                repoServlets.loggedBatchCount = batchCount;
+                LOG.info("Lock journal commits of " + repoName + ": " + statistics);
+            }
+        });
+    }
+
+    private static String getPath(HttpServletRequest req) {
+        String servletPath = req.getServletPath();
+        String pathInfo = req.getPathInfo();
+        return (servletPath == null ? "" : servletPath) + (pathInfo == null ? "" : pathInfo);
+    }
+
+    private static void dispatch(HttpServlet servlet, HttpServletRequest req, ServletResponse response,
+                                 String servletPath, String pathInfo)
+            throws IOException, ServletException {
+        //the LFS servlets get the same paths as when mapped to their own URL patterns
+        servlet.service(new HttpServletRequestWrapper(req) {
+            @Override
+            public String getServletPath() {
+                return servletPath;
+            }
+
+            @Override
+            public String getPathInfo() {
+                return pathInfo;
+            }
+        }, response);
+    }
+
+    /**
+     * Get the LFS servlets of a repository, setting them up if needed,
+     * and keep them from being evicted until {@link #release(String)}.
+     *
+     * @return The LFS servlets, or null if the repository doesn't exist
+     */
+    private LfsServlets acquire(String repoName) throws ServletException {
+        Long expiry = missingRepos.get(repoName);
+        if (expiry != null) {
+            if (expiry - System.nanoTime() > 0) {
+                return null;
+            }
+            missingRepos.remove(repoName, expiry);
+        }
+        boolean[] created = new boolean[1];
+        RepoEntry entry = repos.compute(repoName, (name, current) -> {
+            if (current == null) {
+                current = new RepoEntry();
+                created[0] = true;
+            }
+            current.users++;
+            return current;
+        });
+        if (created[0]) {
+            //set up outside of the map, for the requests to the other repos not to wait for it
+            setUp(entry, repoName);
+        }
+        try {
+            LfsServlets repoServlets = entry.servlets.join();
+            if (repoServlets == null) {
+                release(repoName);
+            }
+            return repoServlets;
+        } catch (CompletionException e) {
+            release(repoName);
+            throw new ServletException("Cannot set up the LFS servlets of " + repoName, e.getCause());
+        }
+    }
+
+    private void setUp(RepoEntry entry, String repoName) {
+        CompletableFuture<Void> closing = closingRepos.get(repoName);
+        if (closing != null) {
+            closing.join();
+        }
+        try {
+            Path repoPath = findRepository(repoName);
+            if (repoPath == null) {
+                rememberMissing(repoName);
+                entry.servlets.complete(null);
+            } else {
+                entry.servlets.complete(createServlets(repoName, repoPath));
+            }
+        } catch (IOException | RuntimeException e) {
+            entry.servlets.completeExceptionally(e);
+        }
+    }
+
+    private void release(String repoName) {
+        repos.computeIfPresent(repoName, (name, entry) -> {
+            entry.users--;
+            entry.lastUsed = System.currentTimeMillis();
+            //the repos missing or failing to be set up are tried again by the next requests
+            if (entry.users == 0 && entry.servlets.isDone() && getIfSetUp(entry) == null) {
+                return null;
+            }
+            return entry;
+        });
+    }
+
+    private void evictIdle(long idleTimeout) {
+        long now = System.currentTimeMillis();
+        for (String repoName : repos.keySet()) {
+            LfsServlets[] evicted = new LfsServlets[1];
+            CompletableFuture<Void> closing = new CompletableFuture<>();
+            repos.computeIfPresent(repoName, (name, entry) -> {
+                if (entry.users > 0 || now - entry.lastUsed < idleTimeout) {
+                    return entry;
+                }
+                evicted[0] = getIfSetUp(entry);
+                if (evicted[0] != null) {
+                    //before any new entry of the repository can be created
+                    closingRepos.put(name, closing);
+                }
+                return null;
+            });
+            if (evicted[0] != null) {
+                //closed outside of the map, for the requests to the other repos not to wait for it
+                LOG.debug("Evicting the LFS servlets of idle repo " + repoName);
+                try {
+                    close(evicted[0]);
+                } finally {
+                    closingRepos.remove(repoName, closing);
+                    closing.complete(null);
+                }
+            }
+        }
+        long nanoNow = System.nanoTime();
+        missingRepos.values().removeIf(expiry -> expiry - nanoNow <= 0);
+    }
+
+    /**
+     * @return The LFS servlets of a repository if they are set up,
+     *         or null if they are being set up, or if they couldn't be
+     */
+    private static LfsServlets getIfSetUp(RepoEntry entry) {
+        return entry.servlets.isDone() && !entry.servlets.isCompletedExceptionally()
+                ? entry.servlets.join()
+                : null;
+    }
+
+    private void rememberMissing(String repoName) {
+        if (missingRepoTtlNanos <= 0) {
+            return;
+        }
+        missingRepos.put(repoName, System.nanoTime() + missingRepoTtlNanos);
+        if (missingRepos.size() <= MAX_MISSING_REPOS) {
+            return;
+        }
+        //drop the expired entries first
+        long now = System.nanoTime();
+        missingRepos.values().removeIf(expiry -> expiry - now <= 0);
+        Iterator<String> it = missingRepos.keySet().iterator();
+        while (it.hasNext() && missingRepos.size() > MAX_MISSING_REPOS) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void removeAbandonedUploads(LfsServlets entry) {
+        try {
+            entry.contentServlet.removeAbandonedUploads(config.getLfsUploadMaxIdleTime());
+        } catch (IOException | RuntimeException e) {
+            LOG.warn("Failed to clean up the abandoned uploads of " + entry.fsRepo.getDir(), e);
+        }
+    }
+
+    /**
+     * Find the git repository of a repository name, in the directory of that
+     * name or of that name without its .git suffix, whichever the repository
+     * is named with in the URL, so that both URLs get the same LFS servlets.
+     */
+    private Path findRepository(String repoName) {
+        Path repoPath = basePath.resolve(repoName);
+        if (isGitDirectory(repoPath)) {
+            return repoPath;
+        }
+        repoPath = basePath.resolve(repoName.substring(0, repoName.length() - GIT_SUFFIX.length()));
+        if (isGitDirectory(repoPath)) {
+            return repoPath;
+        }
+        LOG.debug("No git repo for LFS requests to " + repoName);
+        return null;
+    }
+
+    /**
+     * Whether a repository, by the directory of its LFS objects, can be read,
+     * for its objects to be linked into the other repositories.
+     */
+    private boolean isReadable(Path lfsRepoPath) {
+        if (!lfsRepoPath.getParent().equals(Paths.get(lfsPath).toAbsolutePath().normalize())) {
+            return false;
+        }
+        String repoName = lfsRepoPath.getFileName().toString();
+        if (!repoName.endsWith(GIT_SUFFIX)) {
+            return false;
+        }
+        Path repoPath = findRepository(repoName);
+        if (repoPath == null) {
+            return false;
+        }
+        try {
+            getAccessor(repoPath).checkReadAccess(null, null);
+            return true;
+        } catch (LfsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @return The access rules of a repository, whose config is only read
+     *         again once changed
+     */
+    private LfsRepositoryAccessor getAccessor(Path repoPath) {
+        return accessors.computeIfAbsent(repoPath, LfsRepositoryAccessor::new);
+    }
+
+    private LfsServlets createServlets(String repoName, Path repoPath) throws IOException {
+        LOG.info("Setting up the LFS servlets of repo " + repoPath);
+        //the LFS file locking servlet
+        LockManager lockManager;
+        if (ServerConfig.LOCK_MANAGER_JOURNAL.equals(config.getLfsLockManager())) {
+            Path lfsRepoPath = Paths.get(lfsPath, repoName);
+            Files.createDirectories(lfsRepoPath);
+            lockManager = new JournalLfsLockManager(lfsRepoPath, repoPath,
+                    config.getLfsLockFlushInterval(), config.getLfsLockMaxBatchSize());
+        } else {
+            lockManager = new FileLfsLockManager(Paths.get(lfsPath, repoName), repoPath);
+        }
+        LfsServlets entry;
+        try {
+            LfsFileLockingServlet lockingServlet = new LfsFileLockingServlet(lockManager, getAccessor(repoPath));
+            //the LFS batch servlet
+            DedupFileLfsRepository fsRepo = new DedupFileLfsRepository(
+                    baseURI + "/" + repoName + LFS_PATH + OBJECTS, Paths.get(lfsPath, repoName),
+                    lfsColdPath == null ? null : Paths.get(lfsColdPath, repoName), sharedStore);
+            fsRepo.setReadableRepositories(this::isReadable);
+            fsRepo.setCompressionEnabled(config.isLfsCompression());
+            fsRepo.setHotCapacity(config.getLfsHotCapacity());
+            fsRepo.setMaxIdleTime(config.getLfsMaxIdleTime());
+            try {
+                //once, before any object is stored through the servlets
+                fsRepo.shareStoredObjects();
+            } catch (IOException | UncheckedIOException e) {
+                //retried the next time the repo is set up
+                LOG.warn("Failed to share the stored objects of " + fsRepo.getDir(), e);
+            }
+            CachingLfsRepository cachingRepo = new CachingLfsRepository(fsRepo,
+                    config.getLfsCacheMaxEntries(), config.getLfsCacheMaxMissingEntries(),
+                    config.getLfsCacheMissingTtl());
+            LfsBatchServlet batchServlet = new LfsBatchServlet(cachingRepo, getAccessor(repoPath));
+            batchServlet.setStreaming(config.isLfsStreaming());
+            batchServlet.setSupportedTransfers(Arrays.asList(
+                    LfsProtocolServletV2.TRANSFER_MULTIPART,
+                    LfsProtocolServletV2.TRANSFER_TUS,
+                    LfsProtocolServletV2.TRANSFER_BASIC));
+            //the LFS content servlet
+            FileLfsContentServlet contentServlet = new FileLfsContentServlet(fsRepo, cachingRepo);
+            entry = new LfsServlets(lockManager, lockingServlet, batchServlet, contentServlet, fsRepo);
+        } catch (IOException | RuntimeException e) {
+            //e.g. the lock journal, which would stay locked otherwise
+            closeLockManager(lockManager);
+            throw e;
+        }
+
+        try {
+            entry.fsRepo.startMover(config.getLfsMoverPeriod());
+            entry.lockingServlet.init(servletConfig);
+            entry.batchServlet.init(servletConfig);
+            entry.contentServlet.init(servletConfig);
+        } catch (ServletException e) {
+            close(entry);
+            throw new IOException(e);
+        } catch (RuntimeException e) {
+            close(entry);
+            throw e;
+        }
+        if (scheduler != null && config.getLfsUploadMaxIdleTime() > 0) {
+            //e.g. uploads abandoned before a restart, or while the repo was idle
+            scheduler.execute(() -> removeAbandonedUploads(entry));
+        }
+        return entry;
+    }
+
+    private static void close(LfsServlets entry) {
+        entry.fsRepo.stopMover();
+        entry.lockingServlet.destroy();
+        entry.batchServlet.destroy();
+        entry.contentServlet.destroy();
+        CommitStatistics statistics = getLockCommitStatistics(entry);
+        if (statistics != null) {
+            LOG.info("Lock journal commits of " + entry.fsRepo.getDir() + ": " + statistics);
+        }
+        //e.g. the lock journal, which must be released before the repo is set up again
+        closeLockManager(entry.lockManager);
+    }
+
+    private static void closeLockManager(LockManager lockManager) {
+        if (lockManager instanceof Closeable) {
+            try {
+                ((Closeable) lockManager).close();
+            } catch (IOException e) {
+                LOG.warn("Failed to close the lock manager", e);
+            }
+        }
+    }
+
+    private static boolean isGitDirectory(Path path) {
+        if (!Files.isDirectory(path)) {
+            return false;
+        }
+        try (Repository repository = RepositoryRegistry.open(path)) {
+            return repository.exactRef("HEAD") != null;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+}
@@ -30,8 +30,12 @@ public class LfsFileLockingServlet extends LfsFileLockingProtocolServlet {
     private RepositoryAccessor repoAccessor;
 
     public LfsFileLockingServlet(LockManager lockManager, Path repoPath) {
+        this(lockManager, new LfsRepositoryAccessor(repoPath));
+    }
+
+    public LfsFileLockingServlet(LockManager lockManager, RepositoryAccessor repoAccessor) {
         this.lockManager = lockManager;
-        this.repoAccessor = new LfsRepositoryAccessor(repoPath);
+        this.repoAccessor = repoAccessor;
     }
 
     @Override
@@ -9,17 +9,20 @@
  */
 package com.github.chirontt.gitserver;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
 
 import org.eclipse.jgit.lfs.errors.LfsException;
 import org.eclipse.jgit.lfs.errors.LfsRepositoryNotFound;
 import org.eclipse.jgit.lfs.errors.LfsRepositoryReadOnly;
 import org.eclipse.jgit.lfs.errors.LfsUnavailable;
+import org.eclipse.jgit.internal.storage.file.FileSnapshot;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 
 import com.github.chirontt.lfs.server.RepositoryAccessor;
+import com.github.chirontt.lfs.server.RepositoryRegistry;
 
 /**
  * An implementation of {@link RepositoryAccessor} with the following
@@ -34,17 +37,47 @@ import com.github.chirontt.lfs.server.RepositoryAccessor;
  *   * the repository's configuration has 'http.receivepack=true' setting;
  * otherwise repository updating is explicitly rejected.
  *
+ * The 'http.uploadpack' and 'http.receivepack' settings are cached,
+ * and the repository's config file is checked for modification
+ * at most once per {@link #CONFIG_CHECK_INTERVAL_MILLIS}, so config changes
+ * are picked up within that delay while most access checks are
+ * a volatile read without any file I/O.
+ *
  */
 public class LfsRepositoryAccessor implements RepositoryAccessor {
 
+    /** How often the repository's config file is checked for modification */
+    public static final long CONFIG_CHECK_INTERVAL_MILLIS = 2000;
+
+    private static final long CONFIG_CHECK_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(CONFIG_CHECK_INTERVAL_MILLIS);
+
+    /**
+     * Access settings read from the repository's config file.
+     */
+    private static class AccessFlags {
+        final boolean uploadPack;
+        final boolean receivePack;
+        //snapshot of the config file taken before reading these settings
+        final FileSnapshot snapshot;
+        //System.nanoTime() of the last check for config file modification
+        final long checkedAt;
+
+        AccessFlags(boolean uploadPack, boolean receivePack, FileSnapshot snapshot, long checkedAt) {
+            this.uploadPack = uploadPack;
+            this.receivePack = receivePack;
+            this.snapshot = snapshot;
+            this.checkedAt = checkedAt;
+        }
+    }
+
     private Path repoPath;
-    private FileRepositoryBuilder repositoryBuilder;
+    private File configFile;
+    private volatile AccessFlags accessFlags;
 
     public LfsRepositoryAccessor(Path repoPath) {
         this.repoPath = repoPath;
-        this.repositoryBuilder =
-                new FileRepositoryBuilder().setGitDir(repoPath.toFile())
-                                           .setMustExist(true);
+        this.configFile = repoPath.resolve("config").toFile();
     }
 
     /** {@inheritDoc} */
@@ -54,7 +87,7 @@ public class LfsRepositoryAccessor implements RepositoryAccessor {
         //check that the repository is readable
     	//i.e. not having http.uploadpack=false setting
         try {
-            if (!getRepoConfigBooleanValue("http", "uploadpack", true)) {
+            if (!getAccessFlags().uploadPack) {
                 throw new LfsUnavailable(repoPath.getFileName().toString());
             }
         } catch (IOException e) {
@@ -73,7 +106,7 @@ public class LfsRepositoryAccessor implements RepositoryAccessor {
             //check if the repository allows upload
             //i.e. having http.receivepack=true setting
             try {
-                if (!getRepoConfigBooleanValue("http", "receivepack", false)) {
+                if (!getAccessFlags().receivePack) {
                     throw new LfsRepositoryReadOnly(repoPath.getFileName().toString());
                 }
             } catch (IOException e) {
@@ -100,11 +133,35 @@ public class LfsRepositoryAccessor implements RepositoryAccessor {
         return true;
     }
 
-    private boolean getRepoConfigBooleanValue(String section, String name, boolean defaultValue)
-            throws IOException {
-        try (Repository repository = repositoryBuilder.build()) {
-            repository.getConfig();
-            return repository.getConfig().getBoolean(section, name, defaultValue);
+    private AccessFlags getAccessFlags() throws IOException {
+        AccessFlags flags = accessFlags;
+        if (flags != null && System.nanoTime() - flags.checkedAt < CONFIG_CHECK_INTERVAL_NANOS) {
+            return flags;
+        }
+
+        synchronized (this) {
+            flags = accessFlags;
+            long now = System.nanoTime();
+            if (flags != null) {
+                if (now - flags.checkedAt < CONFIG_CHECK_INTERVAL_NANOS) {
+                    //refreshed by another thread in the meantime
+                    return flags;
+                }
+                if (!flags.snapshot.isModified(configFile)) {
+                    accessFlags = new AccessFlags(flags.uploadPack, flags.receivePack,
+                                                  flags.snapshot, now);
+                    return accessFlags;
+                }
+            }
+            //take the snapshot before reading the config,
+            //so that a modification made while reading is not missed
+            FileSnapshot snapshot = FileSnapshot.save(configFile);
+            try (Repository repository = RepositoryRegistry.open(repoPath)) {
+                boolean uploadPack = repository.getConfig().getBoolean("http", "uploadpack", true);
+                boolean receivePack = repository.getConfig().getBoolean("http", "receivepack", false);
+                accessFlags = new AccessFlags(uploadPack, receivePack, snapshot, now);
+                return accessFlags;
+            }
         }
     }
 
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.gitserver;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import com.github.chirontt.lfs.server.CachingLfsRepository;
+import com.github.chirontt.lfs.server.fs.TieredFileLfsRepository;
+
+/**
+ * Configuration of the {@link JGitHttpServer}.
+ *
+ * The settings are read from an optional properties file, whose path is
+ * given by the {@code jgitserver.config} system property, and from the
+ * system properties prefixed with {@code jgitserver.}, which override
+ * the settings of the file, e.g. {@code -Djgitserver.threads.max=400}
+ * or {@code threads.max=400} in the file.
+ * Durations are in milliseconds, and sizes in bytes.
+ */
+public class ServerConfig {
+
+    /** Prefix of the system properties of the settings. */
+    public static final String PROPERTY_PREFIX = "jgitserver.";
+
+    /** System property giving the path of the configuration file. */
+    public static final String CONFIG_FILE_PROPERTY = PROPERTY_PREFIX + "config";
+
+    /** LFS lock manager keeping a lock file per lock. */
+    public static final String LOCK_MANAGER_FILE = "file";
+
+    /** LFS lock manager keeping the locks in memory, persisted to a journal. */
+    public static final String LOCK_MANAGER_JOURNAL = "journal";
+
+    private final Properties properties;
+
+    ServerConfig(Properties properties) {
+        this.properties = properties;
+    }
+
+    /**
+     * Load the configuration from the configuration file, if any,
+     * and from the system properties.
+     *
+     * @return The configuration
+     *
+     * @throws IOException if the configuration file cannot be read
+     */
+    public static ServerConfig load() throws IOException {
+        Properties properties = new Properties();
+        String configFile = System.getProperty(CONFIG_FILE_PROPERTY);
+        if (configFile != null) {
+            try (Reader reader = Files.newBufferedReader(Paths.get(configFile))) {
+                properties.load(reader);
+            }
+        }
+        //the system properties override the configuration file
+        Properties systemProperties = System.getProperties();
+        for (String name : systemProperties.stringPropertyNames()) {
+            if (name.startsWith(PROPERTY_PREFIX) && !name.equals(CONFIG_FILE_PROPERTY)) {
+                properties.setProperty(name.substring(PROPERTY_PREFIX.length()),
+                                       systemProperties.getProperty(name));
+            }
+        }
+        return new ServerConfig(properties);
+    }
+
+    //server
+
+    /** @return The server port number */
+    public int getPort() {
+        return getInt("port", 8080);
+    }
+
+    /** @return The path to the git repositories */
+    public String getBasePath() {
+        return getString("basePath", "/git");
+    }
+
+    /** @return The path to the LFS storage */
+    public String getLfsPath() {
+        return getString("lfsPath", "/git-lfs-storage");
+    }
+
+    /** @return The path to the cold tier of the LFS storage, or null for no cold tier */
+    public String getLfsColdPath() {
+        return getString("lfsColdPath", null);
+    }
+
+    //threads
+
+    /** @return Whether to run the requests on virtual threads, if supported */
+    public boolean isVirtualThreads() {
+        return getBoolean("virtualThreads", false);
+    }
+
+    /** @return The maximum number of platform threads of the server */
+    public int getMaxThreads() {
+        return getInt("threads.max", 200);
+    }
+
+    /** @return The minimum number of platform threads of the server */
+    public int getMinThreads() {
+        return getInt("threads.min", 8);
+    }
+
+    /** @return How long an idle platform thread is kept above the minimum */
+    public int getThreadIdleTimeout() {
+        return getInt("threads.idleTimeout", 60000);
+    }
+
+    //connector
+
+    /** @return The number of acceptor threads, -1 for Jetty's default */
+    public int getAcceptors() {
+        return getInt("acceptors", -1);
+    }
+
+    /** @return The number of selector threads, -1 for Jetty's default */
+    public int getSelectors() {
+        return getInt("selectors", -1);
+    }
+
+    /** @return The size of the queue of connections to accept, 0 for the OS default */
+    public int getAcceptQueueSize() {
+        return getInt("acceptQueueSize", 0);
+    }
+
+    /** @return How long an idle connection is kept open */
+    public long getIdleTimeout() {
+        return getLong("idleTimeout", 30000);
+    }
+
+    /** @return The maximum number of open connections, 0 for no limit */
+    public int getMaxConnections() {
+        return getInt("maxConnections", 0);
+    }
+
+    /** @return The maximum number of connections accepted per second, 0 for no limit */
+    public int getMaxAcceptRate() {
+        return getInt("maxAcceptRate", 0);
+    }
+
+    //HTTP
+
+    /** @return The size of the response buffer */
+    public int getOutputBufferSize() {
+        return getInt("outputBufferSize", 32768);
+    }
+
+    /** @return The maximum size of the request headers */
+    public int getRequestHeaderSize() {
+        return getInt("requestHeaderSize", 8192);
+    }
+
+    /** @return The maximum size of the response headers */
+    public int getResponseHeaderSize() {
+        return getInt("responseHeaderSize", 8192);
+    }
+
+    //HTTP/2
+
+    /** @return Whether HTTP/2 is enabled, in cleartext (h2c) and over TLS (h2) */
+    public boolean isHttp2Enabled() {
+        return getBoolean("http2.enabled", false);
+    }
+
+    /** @return The maximum number of concurrent streams of an HTTP/2 connection */
+    public int getHttp2MaxConcurrentStreams() {
+        return getInt("http2.maxConcurrentStreams", 128);
+    }
+
+    /** @return The initial flow-control window of an HTTP/2 connection */
+    public int getHttp2InitialSessionRecvWindow() {
+        return getInt("http2.initialSessionRecvWindow", 8 * 1024 * 1024);
+    }
+
+    /** @return The initial flow-control window of an HTTP/2 stream */
+    public int getHttp2InitialStreamRecvWindow() {
+        return getInt("http2.initialStreamRecvWindow", 1024 * 1024);
+    }
+
+    //TLS
+
+    /** @return The port number of the TLS connector, 0 for no TLS connector */
+    public int getTlsPort() {
+        return getInt("tls.port", 0);
+    }
+
+    /** @return The path to the key store holding the server certificate */
+    public String getKeyStorePath() {
+        return getString("tls.keyStorePath", null);
+    }
+
+    /** @return The password of the key store */
+    public String getKeyStorePassword() {
+        return getString("tls.keyStorePassword", null);
+    }
+
+    /** @return The type of the key store */
+    public String getKeyStoreType() {
+        return getString("tls.keyStoreType", "PKCS12");
+    }
+
+    /** @return The password of the key of the server certificate, or null if that of the key store */
+    public String getKeyManagerPassword() {
+        return getString("tls.keyManagerPassword", null);
+    }
+
+    /** @return The TLS protocols to enable, or null for the JSSE defaults */
+    public String[] getTlsProtocols() {
+        return getStrings("tls.protocols");
+    }
+
+    /** @return The cipher suites to enable, or null for the JSSE defaults */
+    public String[] getTlsIncludeCipherSuites() {
+        return getStrings("tls.includeCipherSuites");
+    }
+
+    /** @return The cipher suites to disable, or null for Jetty's defaults */
+    public String[] getTlsExcludeCipherSuites() {
+        return getStrings("tls.excludeCipherSuites");
+    }
+
+    /** @return The name of the JSSE provider, or null for the default provider */
+    public String getTlsProvider() {
+        return getString("tls.provider", null);
+    }
+
+    /** @return The class name of a JSSE provider to install, e.g. that of Conscrypt, or null */
+    public String getTlsProviderClass() {
+        return getString("tls.providerClass", null);
+    }
+
+    /** @return The number of TLS sessions cached for resumption, -1 for the JSSE default */
+    public int getTlsSessionCacheSize() {
+        return getInt("tls.sessionCacheSize", -1);
+    }
+
+    /** @return How long a TLS session can be resumed, in seconds, -1 for the JSSE default */
+    public int getTlsSessionTimeout() {
+        return getInt("tls.sessionTimeout", -1);
+    }
+
+    /** @return Whether the TLS sessions can be resumed from session tickets kept by the clients */
+    public boolean isTlsSessionTickets() {
+        return getBoolean("tls.sessionTickets", true);
+    }
+
+    //repositories and LFS storage
+
+    /** @return How long an unused repository handle stays cached, 0 for JGit's default */
+    public long getRepositoryIdleTimeout() {
+        return getLong("repositoryIdleTimeout", 0);
+    }
+
+    /** @return How long the LFS servlets of an unused repository stay set up, 0 for ever */
+    public long getLfsRepositoryIdleTimeout() {
+        return getLong("lfs.repositoryIdleTimeout", TimeUnit.MINUTES.toMillis(30));
+    }
+
+    /** @return How long a repository missing for the LFS requests is remembered as such, 0 for not at all */
+    public long getLfsRepositoryMissingTtl() {
+        return getLong("lfs.repositoryMissingTtl", 5000);
+    }
+
+    /** @return The maximum number of LFS object sizes cached per repository */
+    public int getLfsCacheMaxEntries() {
+        return getInt("lfs.cache.maxEntries", CachingLfsRepository.DEFAULT_MAX_ENTRIES);
+    }
+
+    /** @return The maximum number of missing LFS objects remembered per repository */
+    public int getLfsCacheMaxMissingEntries() {
+        return getInt("lfs.cache.maxMissingEntries", CachingLfsRepository.DEFAULT_MAX_MISSING_ENTRIES);
+    }
+
+    /** @return How long an LFS object is remembered as missing */
+    public long getLfsCacheMissingTtl() {
+        return getLong("lfs.cache.missingTtl", CachingLfsRepository.DEFAULT_MISSING_TTL_MILLIS);
+    }
+
+    /** @return Whether the LFS batch responses are streamed */
+    public boolean isLfsStreaming() {
+        return getBoolean("lfs.streaming", true);
+    }
+
+    /** @return Whether the LFS objects are compressed at rest */
+    public boolean isLfsCompression() {
+        return getBoolean("lfs.compression", false);
+    }
+
+    /** @return The capacity of the hot tier of each repository, 0 for no limit */
+    public long getLfsHotCapacity() {
+        return getLong("lfs.tier.hotCapacity", 0);
+    }
+
+    /** @return How long an LFS object not read stays in the hot tier */
+    public long getLfsMaxIdleTime() {
+        return getLong("lfs.tier.maxIdleTime", TieredFileLfsRepository.DEFAULT_MAX_IDLE_TIME);
+    }
+
+    /** @return The time between two runs of the mover of the LFS objects between the tiers */
+    public long getLfsMoverPeriod() {
+        return getLong("lfs.tier.moverPeriod", TimeUnit.MINUTES.toMillis(10));
+    }
+
+    /** @return Time after which an unfinished LFS upload is considered abandoned and removed, 0 for never */
+    public long getLfsUploadMaxIdleTime() {
+        return getLong("lfs.upload.maxIdleTime", TimeUnit.HOURS.toMillis(24));
+    }
+
+    /** @return The kind of LFS lock manager, {@link #LOCK_MANAGER_FILE} or {@link #LOCK_MANAGER_JOURNAL} */
+    public String getLfsLockManager() {
+        String value = getString("lfs.locks.manager", LOCK_MANAGER_FILE);
+        if (!value.equals(LOCK_MANAGER_FILE) && !value.equals(LOCK_MANAGER_JOURNAL)) {
+            throw new IllegalArgumentException("Invalid value of lfs.locks.manager: " + value);
+        }
+        return value;
+    }
+
+    /** @return How long the lock journal waits for more records to join a commit batch, 0 for no group commit */
+    public long getLfsLockFlushInterval() {
+        return getLong("lfs.locks.flushInterval", 0);
+    }
+
+    /** @return The maximum number of records in a commit batch of the lock journal */
+    public int getLfsLockMaxBatchSize() {
+        return getInt("lfs.locks.maxBatchSize", 64);
+    }
+
+    /** @return The time between two logs of the commit statistics of the lock journals, 0 for never */
+    public long getLfsLockStatisticsPeriod() {
+        return getLong("lfs.locks.statisticsPeriod", TimeUnit.MINUTES.toMillis(10));
+    }
+
+    private String getString(String key, String defaultValue) {
+        String value = properties.getProperty(key);
+        return value == null || value.trim().isEmpty() ? defaultValue : value.trim();
+    }
+
+    private String[] getStrings(String key) {
+        String value = getString(key, null);
+        return value == null ? null : value.split("\\s*,\\s*");
+    }
+
+    private int getInt(String key, int defaultValue) {
+        String value = getString(key, null);
+        try {
+            return value == null ? defaultValue : Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + key + ": " + value, e);
+        }
+    }
+
+    private long getLong(String key, long defaultValue) {
+        String value = getString(key, null);
+        try {
+            return value == null ? defaultValue : Long.parseLong(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid value of " + key + ": " + value, e);
+        }
+    }
+
+    private boolean getBoolean(String key, boolean defaultValue) {
+        String value = getString(key, null);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+}
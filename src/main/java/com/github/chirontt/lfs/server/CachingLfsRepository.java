@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lfs.server.LargeFileRepository;
+import org.eclipse.jgit.lfs.server.Response;
+
+/**
+ * {@link LargeFileRepository} decorator which caches the sizes of the
+ * LFS objects of the underlying repository, so that repeated batch
+ * requests for the same objects don't touch the storage.
+ *
+ * LFS objects are content-addressed and never change once stored, so the
+ * size of an existing object is cached until it is explicitly invalidated.
+ * Missing objects are cached for a short period only, as they may be
+ * uploaded at any time; an upload through the content servlet should call
+ * {@link #objectStored(AnyLongObjectId, long)} so the new object is seen
+ * immediately.
+ *
+ * Both caches are bounded; when full, arbitrary entries are evicted.
+ *
+ * The uploads in progress through the content servlet are tracked by the
+ * {@link UploadTracker} of this repository, shared with the content servlet:
+ * the first uploader of an object wins, and the content servlet answers
+ * the other uploads of the object with 429 and Retry-After until it is done.
+ */
+public class CachingLfsRepository implements LargeFileRepository {
+
+    public static final int DEFAULT_MAX_ENTRIES = 100_000;
+    public static final int DEFAULT_MAX_MISSING_ENTRIES = 10_000;
+    public static final long DEFAULT_MISSING_TTL_MILLIS = 5000;
+
+    private final LargeFileRepository repository;
+    private final int maxEntries;
+    private final int maxMissingEntries;
+    private final long missingTtlNanos;
+
+    //oid -> size of the existing objects
+    private final ConcurrentMap<LongObjectId, Long> sizes = new ConcurrentHashMap<>();
+    //oid -> expiry time (System.nanoTime()) of the missing objects
+    private final ConcurrentMap<LongObjectId, Long> missing = new ConcurrentHashMap<>();
+    private final UploadTracker uploadTracker = new UploadTracker();
+
+    public CachingLfsRepository(LargeFileRepository repository) {
+        this(repository, DEFAULT_MAX_ENTRIES, DEFAULT_MAX_MISSING_ENTRIES,
+             DEFAULT_MISSING_TTL_MILLIS);
+    }
+
+    /**
+     * @param repository The underlying LFS repository.
+     * @param maxEntries Maximum number of existing objects to cache the size of.
+     * @param maxMissingEntries Maximum number of missing objects to remember;
+     *        0 disables the caching of missing objects.
+     * @param missingTtlMillis How long, in milliseconds, an object is
+     *        remembered as missing.
+     */
+    public CachingLfsRepository(LargeFileRepository repository, int maxEntries,
+            int maxMissingEntries, long missingTtlMillis) {
+        this.repository = repository;
+        this.maxEntries = maxEntries;
+        this.maxMissingEntries = maxMissingEntries;
+        this.missingTtlNanos = TimeUnit.MILLISECONDS.toNanos(missingTtlMillis);
+    }
+
+    /**
+     * @return The underlying LFS repository
+     */
+    public LargeFileRepository getRepository() {
+        return repository;
+    }
+
+    /**
+     * @return The tracker of the uploads in progress to this repository
+     */
+    public UploadTracker getUploadTracker() {
+        return uploadTracker;
+    }
+
+    @Override
+    public Response.Action getDownloadAction(AnyLongObjectId id) {
+        return repository.getDownloadAction(id);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return The upload action, or null if the underlying repository
+     *         needs no upload of the object
+     */
+    @Override
+    public Response.Action getUploadAction(AnyLongObjectId id, long size) {
+        //the object is about to be uploaded: stop reporting it as missing
+        missing.remove(id.copy());
+        return repository.getUploadAction(id, size);
+    }
+
+    @Override
+    public Response.Action getVerifyAction(AnyLongObjectId id) {
+        return repository.getVerifyAction(id);
+    }
+
+    @Override
+    public long getSize(AnyLongObjectId id) throws IOException {
+        LongObjectId oid = id.copy();
+        Long size = sizes.get(oid);
+        if (size != null) {
+            return size;
+        }
+        Long expiry = missing.get(oid);
+        if (expiry != null) {
+            if (expiry - System.nanoTime() > 0) {
+                return -1;
+            }
+            missing.remove(oid, expiry);
+        }
+
+        long length = repository.getSize(oid);
+        if (length >= 0) {
+            objectStored(oid, length);
+        } else if (maxMissingEntries > 0) {
+            missing.put(oid, System.nanoTime() + missingTtlNanos);
+            //the object may have been stored in the meantime
+            if (sizes.containsKey(oid)) {
+                missing.remove(oid);
+            }
+            evictMissingIfFull();
+        }
+        return length;
+    }
+
+    /**
+     * Record that an object has been stored in the underlying repository.
+     *
+     * @param id The object ID.
+     * @param size The object size.
+     */
+    public void objectStored(AnyLongObjectId id, long size) {
+        LongObjectId oid = id.copy();
+        missing.remove(oid);
+        if (maxEntries > 0) {
+            sizes.put(oid, size);
+            evictIfFull();
+        }
+    }
+
+    /**
+     * Forget whatever is cached about an object,
+     * e.g. after it has been removed from the underlying repository.
+     *
+     * @param id The object ID.
+     */
+    public void invalidate(AnyLongObjectId id) {
+        LongObjectId oid = id.copy();
+        sizes.remove(oid);
+        missing.remove(oid);
+    }
+
+    /**
+     * Forget whatever is cached about all objects.
+     */
+    public void invalidateAll() {
+        sizes.clear();
+        missing.clear();
+    }
+
+    private void evictIfFull() {
+        if (sizes.size() <= maxEntries) return;
+        Iterator<LongObjectId> it = sizes.keySet().iterator();
+        while (it.hasNext() && sizes.size() > maxEntries) {
+            it.next();
+            it.remove();
+        }
+    }
+
+    private void evictMissingIfFull() {
+        if (missing.size() <= maxMissingEntries) return;
+        //drop the expired entries first
+        long now = System.nanoTime();
+        missing.values().removeIf(expiry -> expiry - now <= 0);
+        Iterator<LongObjectId> it = missing.keySet().iterator();
+        while (it.hasNext() && missing.size() > maxMissingEntries) {
+            it.next();
+            it.remove();
+        }
+    }
+
+}
@@ -30,7 +30,10 @@ import java.io.Reader;
 import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Base64;
+import java.util.Collections;
 import java.util.List;
 
 import jakarta.servlet.ServletException;
@@ -47,12 +50,24 @@ import org.eclipse.jgit.lfs.errors.LfsUnauthorized;
 import org.eclipse.jgit.lfs.errors.LfsUnavailable;
 import org.eclipse.jgit.lfs.errors.LfsValidationError;
 import org.eclipse.jgit.lfs.internal.LfsText;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
 import org.eclipse.jgit.lfs.server.LargeFileRepository;
+import org.eclipse.jgit.lfs.server.LfsObject;
 import org.eclipse.jgit.lfs.server.LfsProtocolServlet;
+import org.eclipse.jgit.lfs.server.Response;
 import org.eclipse.jgit.lfs.server.internal.LfsGson;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.gson.FieldNamingPolicy;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
 /**
  * LFS protocol handler implementing the LFS batch API v2.4 [1]
  *
@@ -95,15 +110,77 @@ public abstract class LfsProtocolServletV2 extends LfsProtocolServlet {
         }
     }
 
-    protected void checkAccessToMainRepository(LfsRequestV2 lfsRequest, String path, String username)
-            throws LfsException {
-        //check if the transfer property contains "basic"
-        //as this LFS server only supports "basic" transfer
+    /**
+     * LFS response (LFS Batch API v2.4)
+     */
+    protected static class BodyV2 extends Response.Body {
+        //identifier of the transfer adapter that the server has picked
+        //among the ones the client has configured
+        String transfer;
+
+        public String getTransfer() {
+            return transfer;
+        }
+    }
+
+    /** The basic transfer adapter, which all servers support. */
+    public static final String TRANSFER_BASIC = "basic"; //$NON-NLS-1$
+
+    /** The tus transfer adapter, for resumable uploads. */
+    public static final String TRANSFER_TUS = "tus"; //$NON-NLS-1$
+
+    /** The multipart transfer adapter, for parallel transfers of parts of objects. */
+    public static final String TRANSFER_MULTIPART = "multipart"; //$NON-NLS-1$
+
+    private List<String> supportedTransfers = Collections.singletonList(TRANSFER_BASIC);
+
+    /**
+     * @return The transfer adapters supported by this server,
+     *         in order of preference
+     */
+    public List<String> getSupportedTransfers() {
+        return supportedTransfers;
+    }
+
+    /**
+     * Set the transfer adapters supported by this server.
+     *
+     * @param supportedTransfers The transfer adapters, in order of preference.
+     */
+    public void setSupportedTransfers(List<String> supportedTransfers) {
+        this.supportedTransfers = Collections.unmodifiableList(new ArrayList<>(supportedTransfers));
+    }
+
+    /**
+     * Pick the transfer adapter for the request: the first one of this server's
+     * supported transfers that the client has configured too.
+     *
+     * @param lfsRequest The LFS request.
+     *
+     * @return The identifier of the transfer adapter
+     *
+     * @throws LfsValidationError if the client has no transfer adapter in common with the server
+     */
+    protected String negotiateTransfer(LfsRequestV2 lfsRequest) throws LfsValidationError {
         List<String> transfers = lfsRequest.getTransfers();
-        if (transfers != null && !transfers.contains("basic")) {
-            throw new LfsValidationError("Missing 'basic' in transfer property: " + transfers);
+        if (transfers == null || transfers.isEmpty()) {
+            //the basic transfer adapter MUST be assumed
+            transfers = Collections.singletonList(TRANSFER_BASIC);
         }
+        for (String transfer : supportedTransfers) {
+            //tus is only defined for uploads
+            if (TRANSFER_TUS.equals(transfer) && !lfsRequest.isUpload()) {
+                continue;
+            }
+            if (transfers.contains(transfer)) {
+                return transfer;
+            }
+        }
+        throw new LfsValidationError("No supported transfer in transfer property: " + transfers);
+    }
 
+    protected void checkAccessToMainRepository(LfsRequestV2 lfsRequest, String path, String username)
+            throws LfsException {
         RepositoryAccessor repoAccessor = getRepositoryAccessor(path);
         if (repoAccessor == null) {
             return;
@@ -128,10 +205,56 @@ public abstract class LfsProtocolServletV2 extends LfsProtocolServlet {
 
     private static final int SC_BANDWIDTH_LIMIT_EXCEEDED = 509;
 
+    //number of objects of a streamed batch which are resolved and written together
+    private static final int STREAMING_CHUNK_SIZE = 256;
+
+    //the request members which must precede the objects for them to be streamed,
+    //an absent member being indistinguishable from one coming after the objects
+    private static final List<String> STREAMING_MEMBERS = Arrays.asList(
+            "operation", "transfers", "ref"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+
+    //same settings as LfsGson, whose Gson instance is not accessible
+    private static final Gson GSON = new GsonBuilder()
+            .setFieldNamingPolicy(FieldNamingPolicy.LOWER_CASE_WITH_UNDERSCORES)
+            .disableHtmlEscaping()
+            .create();
+
+    private boolean streaming;
+
+    /**
+     * @return true if batch requests are processed in streaming mode
+     */
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * Enable or disable the streaming mode, in which the objects of a batch
+     * request are read incrementally and the information of each object is
+     * written as soon as it is resolved, instead of parsing the whole request
+     * and building the whole response in memory first.
+     *
+     * The objects can only be streamed if the request's operation, transfers
+     * and ref all precede them in the request body, since each of them may
+     * change the response; otherwise, e.g. with the git-lfs client which sends
+     * the transfers and the ref after the objects, the request is buffered
+     * as in non-streaming mode.
+     *
+     * @param streaming true to enable the streaming mode
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming;
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doPost(HttpServletRequest req, HttpServletResponse res)
             throws ServletException, IOException {
+        if (streaming) {
+            doStreamingPost(req, res);
+            return;
+        }
+
         Writer w = new BufferedWriter(
                 new OutputStreamWriter(res.getOutputStream(), UTF_8));
 
@@ -143,43 +266,199 @@ public abstract class LfsProtocolServletV2 extends LfsProtocolServlet {
         String auth = req.getHeader(HDR_AUTHORIZATION);
 
         res.setContentType(CONTENTTYPE_VND_GIT_LFS_JSON);
-        LargeFileRepository repo = null;
         try {
-            checkAccessToMainRepository(request, path, getUsername(req));
-            repo = getLargeFileRepository(request, path, auth);
-            if (repo == null) {
-                String error = MessageFormat
-                        .format(LfsText.get().lfsFailedToGetRepository, path);
-                LOG.error(error);
-                throw new LfsException(error);
-            }
+            validate(request.getObjects());
+            TransferHandler handler = getTransferHandler(req, request, path, auth,
+                                                         request.getObjects());
             res.setStatus(SC_OK);
-            TransferHandler handler = TransferHandler
-                    .forOperation(request.getOperation(), repo, request.getObjects());
             LfsGson.toJson(handler.process(), w);
-        } catch (LfsValidationError e) {
-            sendError(res, w, SC_UNPROCESSABLE_ENTITY, e.getMessage());
-        } catch (LfsRepositoryNotFound e) {
-            sendError(res, w, SC_NOT_FOUND, e.getMessage());
-        } catch (LfsRepositoryReadOnly e) {
-            sendError(res, w, SC_FORBIDDEN, e.getMessage());
-        } catch (LfsRateLimitExceeded e) {
-            sendError(res, w, SC_RATE_LIMIT_EXCEEDED, e.getMessage());
-        } catch (LfsBandwidthLimitExceeded e) {
-            sendError(res, w, SC_BANDWIDTH_LIMIT_EXCEEDED, e.getMessage());
-        } catch (LfsInsufficientStorage e) {
-            sendError(res, w, SC_INSUFFICIENT_STORAGE, e.getMessage());
-        } catch (LfsUnavailable e) {
-            sendError(res, w, SC_SERVICE_UNAVAILABLE, e.getMessage());
-        } catch (LfsUnauthorized e) {
-            sendError(res, w, SC_UNAUTHORIZED, e.getMessage());
         } catch (LfsException e) {
-            sendError(res, w, SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            sendError(res, w, e);
         } finally {
             w.flush();
         }
     }
 
+    private void doStreamingPost(HttpServletRequest req, HttpServletResponse res)
+            throws IOException {
+        Writer w = new BufferedWriter(
+                new OutputStreamWriter(res.getOutputStream(), UTF_8));
+
+        JsonReader reader = GSON.newJsonReader(new BufferedReader(
+                new InputStreamReader(req.getInputStream(), UTF_8)));
+        String path = req.getPathInfo();
+        LOG.debug("pathInfo=" + path);
+        String auth = req.getHeader(HDR_AUTHORIZATION);
+
+        res.setContentType(CONTENTTYPE_VND_GIT_LFS_JSON);
+        //the request members other than the objects
+        JsonObject members = new JsonObject();
+        //objects which had to be buffered, if they came before the operation
+        List<LfsObject> objects = new ArrayList<>();
+        JsonWriter out = null;
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                if (!"objects".equals(name) || reader.peek() != JsonToken.BEGIN_ARRAY) { //$NON-NLS-1$
+                    members.add(name, JsonParser.parseReader(reader));
+                } else if (out == null && objects.isEmpty()
+                        && STREAMING_MEMBERS.stream().allMatch(members::has)) {
+                    LfsRequestV2 request = GSON.fromJson(members, LfsRequestV2.class);
+                    TransferHandler handler = getTransferHandler(req, request, path, auth,
+                                                                 Collections.emptyList());
+                    out = streamObjects(reader, handler, res, w);
+                } else {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        objects.add(GSON.fromJson(reader, LfsObject.class));
+                    }
+                    reader.endArray();
+                }
+            }
+            reader.endObject();
+
+            if (out != null) {
+                out.endArray().endObject();
+            } else {
+                LfsRequestV2 request = GSON.fromJson(members, LfsRequestV2.class);
+                validate(objects);
+                TransferHandler handler = getTransferHandler(req, request, path, auth, objects);
+                res.setStatus(SC_OK);
+                GSON.toJson(handler.process(), w);
+            }
+        } catch (LfsException e) {
+            //the streamed chunks are flushed as soon as written,
+            //so the body has started if the response is committed
+            if (out != null || res.isCommitted()) {
+                throw abort(e);
+            }
+            sendError(res, w, e);
+        } catch (IOException | RuntimeException e) {
+            if (out != null || res.isCommitted()) {
+                throw abort(e);
+            }
+            throw e;
+        }
+        w.flush();
+    }
+
+    /**
+     * Fail a streamed response whose body has already started: the exception
+     * thrown out of the servlet makes the container abort the connection,
+     * instead of ending the body, so that the client cannot mistake
+     * the objects written so far for the whole batch.
+     */
+    private static IOException abort(Exception e) {
+        LOG.warn("Aborting the streamed batch response", e);
+        return new IOException("Streamed batch response aborted: " + e.getMessage(), e);
+    }
+
+    /**
+     * Stream the objects of the request to the response, a chunk at a time.
+     * Each chunk is validated and resolved before any of it is written,
+     * and the response only starts with the first chunk, so that a failure
+     * there is still reported with an error status.
+     *
+     * @return The writer of the response, whose objects array is still open
+     */
+    private static JsonWriter streamObjects(JsonReader reader, TransferHandler handler,
+            HttpServletResponse res, Writer w) throws IOException, LfsException {
+        JsonWriter out = null;
+        List<LfsObject> chunk = new ArrayList<>(STREAMING_CHUNK_SIZE);
+        reader.beginArray();
+        boolean more = true;
+        while (more) {
+            more = reader.hasNext();
+            if (more) {
+                chunk.add(GSON.fromJson(reader, LfsObject.class));
+                if (chunk.size() < STREAMING_CHUNK_SIZE) {
+                    continue;
+                }
+            } else if (chunk.isEmpty() && out != null) {
+                break;
+            }
+            validate(chunk);
+            List<Response.ObjectInfo> infos = chunk.isEmpty() ? Collections.emptyList()
+                                                              : handler.process(chunk);
+            if (out == null) {
+                res.setStatus(SC_OK);
+                out = GSON.newJsonWriter(w);
+                out.beginObject()
+                   .name("transfer").value(handler.transfer) //$NON-NLS-1$
+                   .name("objects").beginArray(); //$NON-NLS-1$
+            }
+            writeObjectInfos(infos, out);
+            chunk.clear();
+        }
+        reader.endArray();
+        return out;
+    }
+
+    /**
+     * Check the objects of a batch request.
+     *
+     * @throws LfsValidationError if an object has an invalid oid or size
+     */
+    private static void validate(List<LfsObject> objects) throws LfsValidationError {
+        if (objects == null) {
+            return;
+        }
+        for (LfsObject o : objects) {
+            if (o == null || !LongObjectId.isId(o.getOid())) {
+                throw new LfsValidationError("Invalid object ID: " + (o == null ? null : o.getOid()));
+            }
+            if (o.getSize() < 0) {
+                throw new LfsValidationError("Invalid size of object " + o.getOid() + ": " + o.getSize());
+            }
+        }
+    }
+
+    private static void writeObjectInfos(List<Response.ObjectInfo> infos, JsonWriter out)
+            throws IOException {
+        for (Response.ObjectInfo info : infos) {
+            GSON.toJson(info, Response.ObjectInfo.class, out);
+        }
+        //let the client start on these objects while the next ones are resolved
+        out.flush();
+    }
+
+    private TransferHandler getTransferHandler(HttpServletRequest req, LfsRequestV2 request,
+            String path, String auth, List<LfsObject> objects) throws LfsException {
+        String transfer = negotiateTransfer(request);
+        checkAccessToMainRepository(request, path, getUsername(req));
+        LargeFileRepository repo = getLargeFileRepository(request, path, auth);
+        if (repo == null) {
+            String error = MessageFormat
+                    .format(LfsText.get().lfsFailedToGetRepository, path);
+            LOG.error(error);
+            throw new LfsException(error);
+        }
+        return TransferHandler.forOperation(request.getOperation(), transfer, repo, objects);
+    }
+
+    private void sendError(HttpServletResponse rsp, Writer writer, LfsException e) {
+        if (e instanceof LfsValidationError) {
+            sendError(rsp, writer, SC_UNPROCESSABLE_ENTITY, e.getMessage());
+        } else if (e instanceof LfsRepositoryNotFound) {
+            sendError(rsp, writer, SC_NOT_FOUND, e.getMessage());
+        } else if (e instanceof LfsRepositoryReadOnly) {
+            sendError(rsp, writer, SC_FORBIDDEN, e.getMessage());
+        } else if (e instanceof LfsRateLimitExceeded) {
+            sendError(rsp, writer, SC_RATE_LIMIT_EXCEEDED, e.getMessage());
+        } else if (e instanceof LfsBandwidthLimitExceeded) {
+            sendError(rsp, writer, SC_BANDWIDTH_LIMIT_EXCEEDED, e.getMessage());
+        } else if (e instanceof LfsInsufficientStorage) {
+            sendError(rsp, writer, SC_INSUFFICIENT_STORAGE, e.getMessage());
+        } else if (e instanceof LfsUnavailable) {
+            sendError(rsp, writer, SC_SERVICE_UNAVAILABLE, e.getMessage());
+        } else if (e instanceof LfsUnauthorized) {
+            sendError(rsp, writer, SC_UNAUTHORIZED, e.getMessage());
+        } else {
+            sendError(rsp, writer, SC_INTERNAL_SERVER_ERROR, e.getMessage());
+        }
+    }
+
     private void sendError(HttpServletResponse rsp, Writer writer, int status,
             String message) {
         rsp.setStatus(status);
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import static org.eclipse.jgit.util.HttpSupport.HDR_CONTENT_RANGE;
+import static org.eclipse.jgit.util.HttpSupport.HDR_RANGE;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.eclipse.jgit.lfs.server.Response;
+
+/**
+ * Constants and helpers of the "multipart" transfer adapter,
+ * which splits large objects into parts transferred over separate
+ * connections, in parallel.
+ *
+ * With this adapter, the actions of an object in the batch response are
+ * its parts, named "part-0" to "part-(n-1)", instead of a single "upload"
+ * or "download" action. Each part action has the object URL as href, and
+ * the header to send along, which selects the bytes of the part:
+ * <ul>
+ * <li>a {@code Range: bytes=first-last} header for the download of a part,
+ * with a GET request;</li>
+ * <li>a {@code Content-Range: bytes first-last/size} header for the upload
+ * of a part, with a PUT request.</li>
+ * </ul>
+ * The server assembles the parts of an upload, and verifies the object once
+ * all its parts have been received.
+ */
+public final class MultipartSupport {
+
+    /** The prefix of the names of the part actions. */
+    public static final String PART_ACTION_PREFIX = "part-"; //$NON-NLS-1$
+
+    /** The minimum size of a part. */
+    public static final long MIN_PART_SIZE = 64L * 1024 * 1024;
+
+    /** The maximum number of parts of an object. */
+    public static final int MAX_PARTS = 256;
+
+    private static final long MB = 1024 * 1024;
+
+    private MultipartSupport() {
+    }
+
+    /**
+     * Get the size of the parts of an object, all of which but the last one
+     * have that size.
+     *
+     * @param size The size of the object.
+     *
+     * @return The part size
+     */
+    public static long getPartSize(long size) {
+        if (size <= MIN_PART_SIZE * MAX_PARTS) {
+            return MIN_PART_SIZE;
+        }
+        //bigger parts, rounded up to the next MB, to stay within MAX_PARTS parts
+        long partSize = (size + MAX_PARTS - 1) / MAX_PARTS;
+        return (partSize + MB - 1) / MB * MB;
+    }
+
+    /**
+     * @param size The size of the object.
+     *
+     * @return The number of parts of the object
+     */
+    public static int getPartCount(long size) {
+        if (size == 0) {
+            return 1;
+        }
+        long partSize = getPartSize(size);
+        return (int) ((size + partSize - 1) / partSize);
+    }
+
+    /**
+     * Turn a basic upload or download action into the part actions of an object.
+     *
+     * @param action The basic action.
+     * @param size The size of the object.
+     * @param upload true for upload actions, false for download actions.
+     *
+     * @return The part actions, by name, in part order
+     */
+    public static Map<String, Response.Action> toPartActions(Response.Action action,
+            long size, boolean upload) {
+        Map<String, Response.Action> actions = new LinkedHashMap<>();
+        int partCount = getPartCount(size);
+        long partSize = getPartSize(size);
+        for (int i = 0; i < partCount; i++) {
+            Response.Action part = new Response.Action();
+            part.href = action.href;
+            part.header = action.header == null
+                    ? new HashMap<>() : new HashMap<>(action.header);
+            if (size > 0) {
+                long first = i * partSize;
+                long last = Math.min(first + partSize, size) - 1;
+                if (upload) {
+                    part.header.put(HDR_CONTENT_RANGE,
+                            "bytes " + first + "-" + last + "/" + size); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                } else {
+                    part.header.put(HDR_RANGE, "bytes=" + first + "-" + last); //$NON-NLS-1$ //$NON-NLS-2$
+                }
+            }
+            actions.put(PART_ACTION_PREFIX + i, part);
+        }
+        return actions;
+    }
+
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.lib.RepositoryCacheConfig;
+import org.eclipse.jgit.util.FS;
+
+/**
+ * Registry of shared, reference-counted {@link Repository} handles,
+ * built on JGit's {@link RepositoryCache}.
+ *
+ * The same cache is used by JGit's GitServlet, so the LFS servlets and
+ * the git smart HTTP servlet all reuse the same warm repository handles,
+ * with their already loaded config, refs and pack indexes.
+ * Handles which are no longer in use are evicted from the cache
+ * after an idle period.
+ */
+public final class RepositoryRegistry {
+
+    private RepositoryRegistry() {
+    }
+
+    /**
+     * Set how long a repository handle which is no longer in use
+     * stays in the cache before being evicted and closed.
+     *
+     * @param expireAfterMillis The idle period, in milliseconds.
+     */
+    public static void setIdleTimeout(long expireAfterMillis) {
+        RepositoryCacheConfig config = new RepositoryCacheConfig();
+        config.setExpireAfter(expireAfterMillis);
+        config.install();
+    }
+
+    /**
+     * Open the git repository at the given path, reusing the cached handle if any.
+     * The returned repository must be closed after use, which only releases
+     * this use of the shared handle.
+     *
+     * @param gitDir Path to the git repository (i.e. its git directory).
+     *
+     * @return The shared repository handle
+     *
+     * @throws IOException if the repository doesn't exist or cannot be opened
+     */
+    public static Repository open(Path gitDir) throws IOException {
+        return RepositoryCache.open(FileKey.exact(gitDir.toFile(), FS.DETECTED), true);
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks, striped by key, serializing the updates
+ * of the same key without a global lock.
+ *
+ * These are {@link Lock}s rather than monitors, so that file I/O done
+ * while holding them doesn't pin the carriers of virtual threads.
+ */
+public class StripedLock {
+
+    /** The default number of stripes. */
+    public static final int DEFAULT_STRIPES = 64;
+
+    private final Lock[] stripes;
+
+    public StripedLock() {
+        this(DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripeCount The number of stripes.
+     */
+    public StripedLock(int stripeCount) {
+        stripes = new Lock[stripeCount];
+        for (int i = 0; i < stripeCount; i++) {
+            stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * @param key The key.
+     *
+     * @return The lock of the stripe of the key
+     */
+    public Lock get(Object key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % stripes.length];
+    }
+
+    /**
+     * Acquire the lock of the stripe of a key, to be released with
+     * {@link #unlock(Object)} in a finally block.
+     *
+     * @param key The key.
+     */
+    public void lock(Object key) {
+        get(key).lock();
+    }
+
+    /**
+     * Release the lock of the stripe of a key.
+     *
+     * @param key The key.
+     */
+    public void unlock(Object key) {
+        get(key).unlock();
+    }
+
+}
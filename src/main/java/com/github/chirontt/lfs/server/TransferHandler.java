@@ -16,28 +16,34 @@ import static org.eclipse.jgit.lfs.lib.Constants.UPLOAD;
 import static org.eclipse.jgit.lfs.lib.Constants.VERIFY;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eclipse.jgit.lfs.lib.LongObjectId;
 import org.eclipse.jgit.lfs.server.LargeFileRepository;
 import org.eclipse.jgit.lfs.server.LfsObject;
 import org.eclipse.jgit.lfs.server.Response;
 import org.eclipse.jgit.lfs.server.Response.Action;
-import org.eclipse.jgit.lfs.server.Response.Body;
 import org.eclipse.jgit.lfs.server.internal.LfsServerText;
 
 abstract class TransferHandler {
 
-	static TransferHandler forOperation(String operation,
+	static TransferHandler forOperation(String operation, String transfer,
 			LargeFileRepository repository, List<LfsObject> objects) {
 		switch (operation) {
 		case UPLOAD:
-			return new Upload(repository, objects);
+			return new Upload(transfer, repository, objects);
 		case DOWNLOAD:
-			return new Download(repository, objects);
+			return new Download(transfer, repository, objects);
 		case VERIFY:
 		default:
 			throw new UnsupportedOperationException(MessageFormat.format(
@@ -46,73 +52,68 @@ abstract class TransferHandler {
 	}
 
 	private static class Upload extends TransferHandler {
-		Upload(LargeFileRepository repository,
+		Upload(String transfer, LargeFileRepository repository,
 				List<LfsObject> objects) {
-			super(repository, objects);
+			super(transfer, repository, objects);
 		}
 
 		@Override
-		Body process() throws IOException {
-			Response.Body body = new Response.Body();
-			if (!objects.isEmpty()) {
-				body.objects = new ArrayList<>();
-				for (LfsObject o : objects) {
-					addObjectInfo(body, o);
-				}
-			}
-			return body;
-		}
-
-		private void addObjectInfo(Response.Body body, LfsObject o)
-				throws IOException {
+		Response.ObjectInfo getObjectInfo(LfsObject o, LongObjectId oid,
+				long storedSize) throws IOException {
 			Response.ObjectInfo info = new Response.ObjectInfo();
-			body.objects.add(info);
 			info.oid = o.getOid();
 			info.size = o.getSize();
 
-			LongObjectId oid = LongObjectId.fromString(o.getOid());
-			if (repository.getSize(oid) == -1) {
+			if (storedSize == -1) {
+				//also for an object being uploaded by another client: the
+				//content servlet answers the upload with 429 and Retry-After,
+				//which the client retries, until the first uploader is done
+				Action upload = repository.getUploadAction(oid, o.getSize());
+				if (upload == null) {
+					//no upload needed, e.g. linked from the shared store
+					return info;
+				}
 				info.actions = new HashMap<>();
-				info.actions.put(UPLOAD,
-						repository.getUploadAction(oid, o.getSize()));
+				if (LfsProtocolServletV2.TRANSFER_MULTIPART.equals(transfer)) {
+					info.actions = MultipartSupport.toPartActions(upload,
+							o.getSize(), true);
+				} else if (LfsProtocolServletV2.TRANSFER_TUS.equals(transfer)) {
+					info.actions.put(UPLOAD,
+							TusSupport.toTusAction(upload, o.getSize()));
+				} else {
+					info.actions.put(UPLOAD, upload);
+				}
 				Action verify = repository.getVerifyAction(oid);
 				if (verify != null) {
 					info.actions.put(VERIFY, verify);
 				}
 			}
+			return info;
 		}
 	}
 
 	private static class Download extends TransferHandler {
-		Download(LargeFileRepository repository,
+		Download(String transfer, LargeFileRepository repository,
 				List<LfsObject> objects) {
-			super(repository, objects);
+			super(transfer, repository, objects);
 		}
 
 		@Override
-		Body process() throws IOException {
-			Response.Body body = new Response.Body();
-			if (!objects.isEmpty()) {
-				body.objects = new ArrayList<>();
-				for (LfsObject o : objects) {
-					addObjectInfo(body, o);
-				}
-			}
-			return body;
-		}
-
-		private void addObjectInfo(Response.Body body, LfsObject o)
-				throws IOException {
+		Response.ObjectInfo getObjectInfo(LfsObject o, LongObjectId oid,
+				long storedSize) throws IOException {
 			Response.ObjectInfo info = new Response.ObjectInfo();
-			body.objects.add(info);
 			info.oid = o.getOid();
 			info.size = o.getSize();
 
-			LongObjectId oid = LongObjectId.fromString(o.getOid());
-			if (repository.getSize(oid) >= 0) {
-				info.actions = new HashMap<>();
-				info.actions.put(DOWNLOAD,
-						repository.getDownloadAction(oid));
+			if (storedSize >= 0) {
+				Action download = repository.getDownloadAction(oid);
+				if (LfsProtocolServletV2.TRANSFER_MULTIPART.equals(transfer)) {
+					info.actions = MultipartSupport.toPartActions(download,
+							storedSize, false);
+				} else {
+					info.actions = new HashMap<>();
+					info.actions.put(DOWNLOAD, download);
+				}
 			} else {
 				info.error = new Response.Error();
 				info.error.code = SC_NOT_FOUND;
@@ -120,18 +121,156 @@ abstract class TransferHandler {
 						LfsServerText.get().objectNotFound,
 						oid.getName());
 			}
+			return info;
 		}
 	}
 
+	// batches smaller than this are resolved on the request thread,
+	// as handing them off would cost more than the stat calls themselves
+	static final int PARALLEL_THRESHOLD = 64;
+
+	// minimum number of objects resolved by a single task
+	private static final int MIN_OBJECTS_PER_TASK = 32;
+
+	private static final int PARALLELISM = Math
+			.max(2, Runtime.getRuntime().availableProcessors());
+
+	// shared by all batch requests, so the number of concurrent
+	// size lookups is bounded regardless of the number of requests
+	private static final ExecutorService SIZE_EXECUTOR = Executors
+			.newFixedThreadPool(PARALLELISM, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r,
+							"lfs-size-lookup-" + count.incrementAndGet()); //$NON-NLS-1$
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	final String transfer;
+
 	final LargeFileRepository repository;
 
 	final List<LfsObject> objects;
 
-	TransferHandler(LargeFileRepository repository,
+	TransferHandler(String transfer, LargeFileRepository repository,
 			List<LfsObject> objects) {
+		this.transfer = transfer;
 		this.repository = repository;
 		this.objects = objects;
 	}
 
-	abstract Response.Body process() throws IOException;
+	/**
+	 * Process the whole batch of objects.
+	 *
+	 * @return the response body
+	 * @throws IOException
+	 *             if the objects cannot be looked up in the repository
+	 */
+	Response.Body process() throws IOException {
+		LfsProtocolServletV2.BodyV2 body = new LfsProtocolServletV2.BodyV2();
+		body.transfer = transfer;
+		if (!objects.isEmpty()) {
+			body.objects = process(objects);
+		}
+		return body;
+	}
+
+	/**
+	 * Process a part of the batch of objects, e.g. when the batch is streamed.
+	 *
+	 * @param batch
+	 *            the objects to process
+	 * @return the information of each object, in the same order as the batch
+	 * @throws IOException
+	 *             if the objects cannot be looked up in the repository
+	 */
+	List<Response.ObjectInfo> process(List<LfsObject> batch)
+			throws IOException {
+		LongObjectId[] oids = toObjectIds(batch);
+		long[] sizes = getSizes(oids);
+		List<Response.ObjectInfo> infos = new ArrayList<>(oids.length);
+		for (int i = 0; i < oids.length; i++) {
+			infos.add(getObjectInfo(batch.get(i), oids[i], sizes[i]));
+		}
+		return infos;
+	}
+
+	abstract Response.ObjectInfo getObjectInfo(LfsObject o, LongObjectId oid,
+			long storedSize) throws IOException;
+
+	static LongObjectId[] toObjectIds(List<LfsObject> objects) {
+		LongObjectId[] oids = new LongObjectId[objects.size()];
+		for (int i = 0; i < oids.length; i++) {
+			oids[i] = LongObjectId.fromString(objects.get(i).getOid());
+		}
+		return oids;
+	}
+
+	/**
+	 * Get the sizes of the given objects in the repository.
+	 * <p>
+	 * Large batches are split into ranges which are looked up in parallel on
+	 * a bounded, shared executor, the request thread taking the first range
+	 * itself. The result is in the same order as the given object IDs.
+	 *
+	 * @param oids
+	 *            the object IDs
+	 * @return the size of each object, or -1 if it doesn't exist
+	 * @throws IOException
+	 *             if the size of any of the objects cannot be retrieved
+	 */
+	long[] getSizes(LongObjectId[] oids) throws IOException {
+		long[] sizes = new long[oids.length];
+		if (oids.length < PARALLEL_THRESHOLD) {
+			getSizes(oids, sizes, 0, oids.length);
+			return sizes;
+		}
+
+		int tasks = Math.min(PARALLELISM,
+				Math.max(1, oids.length / MIN_OBJECTS_PER_TASK));
+		int rangeSize = (oids.length + tasks - 1) / tasks;
+		List<Future<Void>> futures = new ArrayList<>(tasks - 1);
+		try {
+			for (int from = rangeSize; from < oids.length; from += rangeSize) {
+				int start = from;
+				int end = Math.min(from + rangeSize, oids.length);
+				futures.add(SIZE_EXECUTOR.submit(() -> {
+					getSizes(oids, sizes, start, end);
+					return null;
+				}));
+			}
+			getSizes(oids, sizes, 0, Math.min(rangeSize, oids.length));
+			for (Future<Void> f : futures) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(e.getMessage());
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		} finally {
+			for (Future<Void> f : futures) {
+				f.cancel(false);
+			}
+		}
+		return sizes;
+	}
+
+	private void getSizes(LongObjectId[] oids, long[] sizes, int from, int to)
+			throws IOException {
+		for (int i = from; i < to; i++) {
+			sizes[i] = repository.getSize(oids[i]);
+		}
+	}
 }
@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import java.util.HashMap;
+
+import org.eclipse.jgit.lfs.server.Response;
+
+/**
+ * Constants and helpers of the tus resumable upload protocol [1],
+ * as used by the git-lfs "tus" transfer adapter.
+ *
+ * [1] https://tus.io/protocols/resumable-upload
+ */
+public final class TusSupport {
+
+    /** The tus protocol version supported. */
+    public static final String TUS_VERSION = "1.0.0"; //$NON-NLS-1$
+
+    /** The "Tus-Resumable" header, carrying the protocol version. */
+    public static final String HDR_TUS_RESUMABLE = "Tus-Resumable"; //$NON-NLS-1$
+
+    /** The "Upload-Offset" header: the number of bytes already received. */
+    public static final String HDR_UPLOAD_OFFSET = "Upload-Offset"; //$NON-NLS-1$
+
+    /** The "Upload-Length" header: the total size of the upload. */
+    public static final String HDR_UPLOAD_LENGTH = "Upload-Length"; //$NON-NLS-1$
+
+    /** The content type of the chunks sent by PATCH requests. */
+    public static final String CONTENTTYPE_OFFSET_OCTET_STREAM =
+            "application/offset+octet-stream"; //$NON-NLS-1$
+
+    private TusSupport() {
+    }
+
+    /**
+     * Turn a basic upload action into a tus upload action:
+     * the same URL, with the tus headers the client is to send
+     * with each of its HEAD and PATCH requests.
+     *
+     * @param action The basic upload action.
+     * @param size The size of the object to upload.
+     *
+     * @return The tus upload action
+     */
+    public static Response.Action toTusAction(Response.Action action, long size) {
+        Response.Action tusAction = new Response.Action();
+        tusAction.href = action.href;
+        tusAction.header = action.header == null
+                ? new HashMap<>() : new HashMap<>(action.header);
+        tusAction.header.put(HDR_TUS_RESUMABLE, TUS_VERSION);
+        tusAction.header.put(HDR_UPLOAD_LENGTH, Long.toString(size));
+        return tusAction;
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+
+/**
+ * Tracker of the LFS objects being uploaded to a repository,
+ * so that the same object isn't written by concurrent uploads:
+ * the first upload wins, and the other ones are to be retried later,
+ * by which time the object has usually been stored.
+ *
+ * An upload is either exclusive, e.g. a single PUT request or a chunk of
+ * a tus upload, or shared, e.g. a part of a multipart upload, whose parts
+ * are uploaded concurrently by the same client.
+ */
+public class UploadTracker {
+
+    //number of shared uploads in progress, or this value for an exclusive upload
+    private static final int EXCLUSIVE = -1;
+
+    private final ConcurrentMap<LongObjectId, Integer> uploads = new ConcurrentHashMap<>();
+
+    /**
+     * Start the upload of an object, unless it conflicts with an upload in progress.
+     *
+     * @param id The object ID.
+     * @param exclusive Whether the upload excludes any other one,
+     *                  or only the exclusive ones.
+     *
+     * @return true if the upload has started, and is to be finished with
+     *         {@link #finish(AnyLongObjectId)}; false if it conflicts
+     */
+    public boolean tryStart(AnyLongObjectId id, boolean exclusive) {
+        boolean[] started = new boolean[1];
+        uploads.compute(id.copy(), (oid, writers) -> {
+            if (writers == null) {
+                started[0] = true;
+                return exclusive ? EXCLUSIVE : 1;
+            }
+            if (!exclusive && writers.intValue() != EXCLUSIVE) {
+                started[0] = true;
+                return writers.intValue() + 1;
+            }
+            return writers;
+        });
+        return started[0];
+    }
+
+    /**
+     * Finish an upload started with {@link #tryStart(AnyLongObjectId, boolean)}.
+     *
+     * @param id The object ID.
+     */
+    public void finish(AnyLongObjectId id) {
+        uploads.computeIfPresent(id.copy(), (oid, writers) ->
+                writers.intValue() == EXCLUSIVE || writers.intValue() == 1
+                        ? null : writers.intValue() - 1);
+    }
+
+    /**
+     * @param id The object ID.
+     *
+     * @return Whether an upload of the object is in progress
+     */
+    public boolean isInProgress(AnyLongObjectId id) {
+        return uploads.containsKey(id);
+    }
+
+}
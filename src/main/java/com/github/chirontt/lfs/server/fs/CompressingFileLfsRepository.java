@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lfs.server.Response;
+import org.eclipse.jgit.lfs.server.fs.FileLfsRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.chirontt.lfs.server.MultipartSupport;
+
+/**
+ * FileLfsRepository which can store its objects compressed at rest.
+ *
+ * When compression is enabled, each newly stored object is sampled,
+ * and is replaced by a gzip file next to it if the samples compress well.
+ * The object ID and the size of an object remain those of its uncompressed
+ * content, the latter being recorded in an extra field of the gzip header,
+ * so that the compressed file can either be decompressed on the fly,
+ * or sent as is to the clients accepting the gzip content encoding.
+ *
+ * The objects are compressed in the background, off the upload requests.
+ * The objects large enough to be transferred in parts are not compressed,
+ * as a gzip file can only be read from its start: each part, or resumed
+ * download, of such an object would decompress everything before it.
+ */
+public class CompressingFileLfsRepository extends FileLfsRepository {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(CompressingFileLfsRepository.class);
+
+    /** Suffix of the file names of the compressed objects. */
+    public static final String COMPRESSED_SUFFIX = ".gz"; //$NON-NLS-1$
+
+    //objects smaller than this take a single file system block anyway
+    private static final long MIN_COMPRESSED_SIZE = 4 * 1024;
+    //objects larger than this are transferred in parts, i.e. read in ranges
+    private static final long MAX_COMPRESSED_SIZE = MultipartSupport.MIN_PART_SIZE;
+    //size and number of the samples of an object tried for compressibility
+    private static final int SAMPLE_SIZE = 64 * 1024;
+    private static final int SAMPLES = 3;
+    //an object is stored compressed if it shrinks to this ratio or less
+    private static final double MAX_COMPRESSION_RATIO = 0.9;
+
+    //gzip header, with an extra field holding the uncompressed size of the object
+    private static final int GZIP_HEADER_SIZE = 24;
+    private static final byte FLG_FEXTRA = 4;
+    private static final byte OS_UNKNOWN = (byte) 255;
+    private static final byte SI1 = 'L';
+    private static final byte SI2 = 'F';
+
+    //shared by all repositories, so that the compression of the new objects
+    //takes a bounded number of threads regardless of the number of uploads
+    private static final ExecutorService COMPRESSOR = Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() / 2), new ThreadFactory() {
+                private final AtomicInteger count = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "lfs-compressor-" + count.incrementAndGet()); //$NON-NLS-1$
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+
+    private volatile boolean compressionEnabled;
+
+    /**
+     * @param url The external URL of this repository's objects.
+     * @param dir The storage directory of this repository.
+     *
+     * @throws IOException
+     */
+    public CompressingFileLfsRepository(String url, Path dir) throws IOException {
+        super(url, dir);
+    }
+
+    /**
+     * Enable or disable the compression of the objects stored from now on.
+     * Objects already compressed remain readable either way.
+     *
+     * @param enabled Whether to compress the new objects.
+     */
+    public void setCompressionEnabled(boolean enabled) {
+        this.compressionEnabled = enabled;
+    }
+
+    /**
+     * @return Whether the new objects are compressed
+     */
+    public boolean isCompressionEnabled() {
+        return compressionEnabled;
+    }
+
+    /**
+     * Get the path of the compressed file of an object.
+     *
+     * @param id The object ID.
+     *
+     * @return The path of the compressed file of the object
+     */
+    public Path getCompressedPath(AnyLongObjectId id) {
+        return toCompressedPath(getPath(id));
+    }
+
+    /**
+     * Get the path of the file actually storing an object,
+     * either uncompressed or compressed.
+     *
+     * @param id The object ID.
+     *
+     * @return The path of the file storing the object, or null if the object doesn't exist
+     */
+    public Path getStoredPath(AnyLongObjectId id) {
+        Path path = getPath(id);
+        if (Files.exists(path)) {
+            return path;
+        }
+        Path compressed = toCompressedPath(path);
+        return Files.exists(compressed) ? compressed : null;
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getSize(AnyLongObjectId id) throws IOException {
+        long size = super.getSize(id);
+        if (size >= 0) {
+            return size;
+        }
+        try {
+            return getUncompressedSize(getCompressedPath(id));
+        } catch (NoSuchFileException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The verify callback is handled by {@link FileLfsContentServlet}
+     * at the URL of the object.
+     */
+    @Override
+    public Response.Action getVerifyAction(AnyLongObjectId id) {
+        return getAction(id);
+    }
+
+    /**
+     * Compress an object which has just been stored in this repository,
+     * in the background, if compression is enabled and the object compresses well.
+     * {@link #objectReady(AnyLongObjectId)} is called once that is done.
+     *
+     * @param id The object ID.
+     *
+     * @throws IOException
+     */
+    public void objectStored(AnyLongObjectId id) throws IOException {
+        if (!compressionEnabled) {
+            objectReady(id);
+            return;
+        }
+        LongObjectId oid = id.copy();
+        COMPRESSOR.execute(() -> {
+            try {
+                compress(oid);
+            } catch (IOException e) {
+                //left uncompressed
+                LOG.warn("Failed to compress object " + oid.name(), e);
+            }
+            try {
+                objectReady(oid);
+            } catch (IOException e) {
+                LOG.warn("Failed to complete the storage of object " + oid.name(), e);
+            }
+        });
+    }
+
+    /**
+     * Called once an object just stored in this repository is in its final
+     * form, i.e. compressed or not; does nothing by default.
+     *
+     * @param id The object ID.
+     *
+     * @throws IOException
+     */
+    protected void objectReady(AnyLongObjectId id) throws IOException {
+        //nothing to do
+    }
+
+    /**
+     * Replace an uncompressed object with its compressed file,
+     * if the object compresses well.
+     *
+     * @param id The object ID.
+     *
+     * @return true if the object has been compressed
+     *
+     * @throws IOException
+     */
+    boolean compress(AnyLongObjectId id) throws IOException {
+        Path path = getPath(id);
+        long size;
+        try {
+            size = Files.size(path);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (size < MIN_COMPRESSED_SIZE || size > MAX_COMPRESSED_SIZE
+                || !isCompressible(path, size)) {
+            return false;
+        }
+        Path compressed = toCompressedPath(path);
+        Path tmp = Files.createTempFile(path.getParent(), path.getFileName().toString(), ".tmp"); //$NON-NLS-1$
+        try {
+            long compressedSize = writeCompressed(path, tmp, size);
+            if (compressedSize > size * MAX_COMPRESSION_RATIO) {
+                //the samples weren't representative of the whole object
+                return false;
+            }
+            Files.move(tmp, compressed, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        Files.delete(path);
+        LOG.debug("Compressed object " + id.name() + " of " + size + " bytes");
+        return true;
+    }
+
+    /**
+     * Try to compress a few samples spread over an object.
+     */
+    private static boolean isCompressible(Path path, long size) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        byte[] output = new byte[SAMPLE_SIZE];
+        long sampled = 0;
+        long compressed = 0;
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            int samples = size <= SAMPLE_SIZE * SAMPLES ? 1 : SAMPLES;
+            for (int i = 0; i < samples; i++) {
+                long position = samples == 1 ? 0 : (size - SAMPLE_SIZE) * i / (samples - 1);
+                ByteBuffer buffer = ByteBuffer.wrap(sample);
+                while (buffer.hasRemaining()
+                        && channel.read(buffer, position + buffer.position()) != -1) {
+                    //read the whole sample
+                }
+                deflater.reset();
+                deflater.setInput(sample, 0, buffer.position());
+                deflater.finish();
+                while (!deflater.finished()) {
+                    compressed += deflater.deflate(output);
+                }
+                sampled += buffer.position();
+            }
+        } finally {
+            deflater.end();
+        }
+        return compressed <= sampled * MAX_COMPRESSION_RATIO;
+    }
+
+    /**
+     * Write the gzip file of an object.
+     *
+     * @return The size of the gzip file
+     */
+    private static long writeCompressed(Path source, Path target, long size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(GZIP_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 0x1f).put((byte) 0x8b).put((byte) Deflater.DEFLATED).put(FLG_FEXTRA)
+              .putInt(0) //no modification time
+              .put((byte) 0).put(OS_UNKNOWN)
+              .putShort((short) 12) //XLEN
+              .put(SI1).put(SI2).putShort((short) 8).putLong(size);
+
+        CRC32 crc = new CRC32();
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] buffer = new byte[64 * 1024];
+        byte[] output = new byte[64 * 1024];
+        try (InputStream in = Files.newInputStream(source);
+             OutputStream out = new BufferedOutputStream(Files.newOutputStream(target))) {
+            out.write(header.array());
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, n);
+                deflater.setInput(buffer, 0, n);
+                while (!deflater.needsInput()) {
+                    out.write(output, 0, deflater.deflate(output));
+                }
+            }
+            deflater.finish();
+            while (!deflater.finished()) {
+                out.write(output, 0, deflater.deflate(output));
+            }
+            ByteBuffer trailer = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            trailer.putInt((int) crc.getValue()).putInt((int) size);
+            out.write(trailer.array());
+        } finally {
+            deflater.end();
+        }
+        return Files.size(target);
+    }
+
+    /**
+     * Read the uncompressed size of an object from the header of its gzip file.
+     *
+     * @param compressed The path of the compressed file of the object.
+     *
+     * @return The size of the uncompressed object
+     *
+     * @throws IOException if the file doesn't exist, or isn't a compressed object
+     */
+    public static long getUncompressedSize(Path compressed) throws IOException {
+        try (FileChannel channel = FileChannel.open(compressed, StandardOpenOption.READ)) {
+            return getUncompressedSize(channel, compressed);
+        }
+    }
+
+    /**
+     * Read the uncompressed size of an object from the header of its open gzip file,
+     * without changing the position of the channel.
+     *
+     * @param channel The open compressed file of the object.
+     * @param compressed The path of the compressed file, for the error message.
+     *
+     * @return The size of the uncompressed object
+     *
+     * @throws IOException if the file isn't a compressed object
+     */
+    static long getUncompressedSize(FileChannel channel, Path compressed) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(GZIP_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        while (header.hasRemaining() && channel.read(header, header.position()) != -1) {
+            //read the whole header
+        }
+        if (header.hasRemaining()
+                || header.get(0) != (byte) 0x1f || header.get(1) != (byte) 0x8b
+                || (header.get(3) & FLG_FEXTRA) == 0 || header.getShort(10) != 12
+                || header.get(12) != SI1 || header.get(13) != SI2
+                || header.getShort(14) != 8) {
+            throw new IOException("Invalid compressed object " + compressed);
+        }
+        return header.getLong(16);
+    }
+
+    /**
+     * @return Whether a path is that of a compressed object
+     */
+    static boolean isCompressedPath(Path path) {
+        return path.getFileName().toString().endsWith(COMPRESSED_SUFFIX);
+    }
+
+    static Path toCompressedPath(Path path) {
+        return path.resolveSibling(path.getFileName() + COMPRESSED_SUFFIX);
+    }
+
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lfs.server.Response;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * TieredFileLfsRepository whose objects are deduplicated across repositories
+ * through a {@link SharedObjectStore}.
+ *
+ * An object missing from this repository but present in the shared store,
+ * e.g. because it has been uploaded to a fork, is linked into this
+ * repository when a client asks to upload it, in place of the upload:
+ * no upload action is returned, and the client skips the upload.
+ * The object is never linked when it is only looked up, e.g. by a download,
+ * so that the readers of a repository cannot get the objects of another
+ * repository by their IDs.
+ *
+ * The client asking to upload an object doesn't prove that it has the object's
+ * content, only that it knows its ID and size: a writer of this repository
+ * knowing the ID of an object of another repository could have it linked
+ * here, and then download it. The object is therefore only linked if one of
+ * the repositories referencing it in the shared store is readable, as told
+ * by {@link #setReadableRepositories(Predicate)}, i.e. if it could be
+ * downloaded from there anyway: the objects of the repositories which can't
+ * be read are uploaded again instead.
+ *
+ * The objects of the hot tier are shared, as the shared store is on the same
+ * file system as the hot tier, for its objects to be hard-linked. The objects
+ * demoted to the cold tier are shared through the cold directory of the
+ * shared store if it has one: an object demoted from several repositories
+ * is then stored once in the cold tier too.
+ *
+ * The objects are shared once ready, i.e. compressed if they are to be,
+ * and those stored before the shared store existed are shared once by
+ * {@link #shareStoredObjects()}, never when they are looked up.
+ */
+public class DedupFileLfsRepository extends TieredFileLfsRepository {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(DedupFileLfsRepository.class);
+
+    //marker file of a repository whose objects stored before the shared store have been shared
+    static final String SHARED_MARKER = ".shared"; //$NON-NLS-1$
+
+    private final SharedObjectStore sharedStore;
+    //whether the objects of a repository, by its directory, can be read;
+    //none by default, i.e. no object is linked from the shared store
+    private volatile Predicate<Path> readableRepositories = repoDir -> false;
+
+    /**
+     * @param url The external URL of this repository's objects.
+     * @param dir The storage directory of this repository.
+     * @param sharedStore The store shared by all the repositories.
+     *
+     * @throws IOException
+     */
+    public DedupFileLfsRepository(String url, Path dir, SharedObjectStore sharedStore)
+            throws IOException {
+        this(url, dir, null, sharedStore);
+    }
+
+    /**
+     * @param url The external URL of this repository's objects.
+     * @param dir The storage directory of this repository, i.e. its hot tier.
+     * @param coldDir The directory of the cold tier of this repository,
+     *                or null for no cold tier.
+     * @param sharedStore The store shared by all the repositories.
+     *
+     * @throws IOException
+     */
+    public DedupFileLfsRepository(String url, Path dir, Path coldDir,
+            SharedObjectStore sharedStore) throws IOException {
+        super(url, dir, coldDir);
+        this.sharedStore = sharedStore;
+    }
+
+    /**
+     * @return The store shared by all the repositories
+     */
+    public SharedObjectStore getSharedStore() {
+        return sharedStore;
+    }
+
+    /**
+     * Set the check of the repositories whose objects can be linked into
+     * this repository, for the objects they reference in the shared store.
+     *
+     * @param readableRepositories Whether the objects of a repository,
+     *                             by its directory, can be read.
+     */
+    public void setReadableRepositories(Predicate<Path> readableRepositories) {
+        this.readableRepositories = readableRepositories;
+    }
+
+    /**
+     * Share the objects of the hot tier stored before the shared store existed,
+     * once per repository: a marker file records that it has been done, the
+     * objects stored afterwards being shared as they are stored.
+     *
+     * To be called when the repository is set up, before it serves any request,
+     * so that no object just stored, e.g. still to be compressed, is shared
+     * before it is ready.
+     *
+     * @return The number of objects shared, -1 if already done
+     *
+     * @throws IOException
+     */
+    public int shareStoredObjects() throws IOException {
+        Path marker = getDir().resolve(SHARED_MARKER);
+        if (Files.exists(marker)) {
+            return -1;
+        }
+        int count = 0;
+        try (Stream<Path> walk = Files.walk(getDir(), 3)) {
+            for (Path path : (Iterable<Path>) walk::iterator) {
+                String name = path.getFileName().toString();
+                if (OBJECT_FILE_NAME.matcher(name).matches()) {
+                    publish(LongObjectId.fromString(name.substring(0, 64)));
+                    count++;
+                }
+            }
+        }
+        Files.createFile(marker);
+        return count;
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * @return The upload action, or null if the object has been linked
+     *         from the shared store instead
+     */
+    @Override
+    public Response.Action getUploadAction(AnyLongObjectId id, long size) {
+        try {
+            if (sharedStore.linkInto(id, getPath(id), size, getDir(), readableRepositories) >= 0) {
+                hotObjectAdded(id);
+                return null;
+            }
+        } catch (IOException e) {
+            LOG.warn("Cannot link object " + id.name() + " from the shared store", e);
+        }
+        return super.getUploadAction(id, size);
+    }
+
+    /**
+     * Share an object which has just been stored in this repository,
+     * once compressed if compression is enabled.
+     *
+     * @param id The object ID.
+     *
+     * @throws IOException
+     */
+    @Override
+    protected void objectReady(AnyLongObjectId id) throws IOException {
+        super.objectReady(id);
+        publish(id);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The object is linked from the cold directory of the shared store,
+     * copied there first unless already demoted from another repository.
+     */
+    @Override
+    protected void demote(AnyLongObjectId id, Path hotPath, Path coldPath) throws IOException {
+        if (!sharedStore.demote(id, hotPath, coldPath)) {
+            super.demote(id, hotPath, coldPath);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The object is linked from the shared store if still there.
+     */
+    @Override
+    protected void promote(AnyLongObjectId id, Path coldPath, Path hotPath) throws IOException {
+        sharedStore.promote(id, coldPath, hotPath);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void objectDemoted(AnyLongObjectId id, Path hotPath) throws IOException {
+        sharedStore.release(id, hotPath);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void objectPromoted(AnyLongObjectId id, Path hotPath) throws IOException {
+        sharedStore.publish(id, hotPath, getDir());
+    }
+
+    private void publish(AnyLongObjectId id) throws IOException {
+        Path stored = getStoredPath(id);
+        if (stored != null && !isCold(stored)) {
+            sharedStore.publish(id, stored, getDir());
+        }
+    }
+
+}
@@ -0,0 +1,792 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.apache.http.HttpStatus.SC_BAD_REQUEST;
+import static org.apache.http.HttpStatus.SC_INTERNAL_SERVER_ERROR;
+import static org.apache.http.HttpStatus.SC_NOT_FOUND;
+import static org.apache.http.HttpStatus.SC_NOT_MODIFIED;
+import static org.apache.http.HttpStatus.SC_OK;
+import static org.apache.http.HttpStatus.SC_PARTIAL_CONTENT;
+import static org.apache.http.HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+import static org.apache.http.HttpStatus.SC_UNPROCESSABLE_ENTITY;
+import static org.eclipse.jgit.util.HttpSupport.ENCODING_GZIP;
+import static org.eclipse.jgit.util.HttpSupport.HDR_ACCEPT_ENCODING;
+import static org.eclipse.jgit.util.HttpSupport.HDR_ACCEPT_RANGES;
+import static org.eclipse.jgit.util.HttpSupport.HDR_CONTENT_ENCODING;
+import static org.eclipse.jgit.util.HttpSupport.HDR_CONTENT_RANGE;
+import static org.eclipse.jgit.util.HttpSupport.HDR_CONTENT_TYPE;
+import static org.eclipse.jgit.util.HttpSupport.HDR_ETAG;
+import static org.eclipse.jgit.util.HttpSupport.HDR_IF_MODIFIED_SINCE;
+import static org.eclipse.jgit.util.HttpSupport.HDR_IF_NONE_MATCH;
+import static org.eclipse.jgit.util.HttpSupport.HDR_IF_RANGE;
+import static org.eclipse.jgit.util.HttpSupport.HDR_LAST_MODIFIED;
+import static org.eclipse.jgit.util.HttpSupport.HDR_RANGE;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.zip.GZIPInputStream;
+
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.ee10.servlet.HttpOutput;
+import org.eclipse.jetty.ee10.servlet.ServletContextRequest;
+import org.eclipse.jetty.io.ByteBufferPool;
+import org.eclipse.jetty.io.RetainableByteBuffer;
+import org.eclipse.jgit.lfs.errors.InvalidLongObjectIdException;
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lfs.server.LfsObject;
+import org.eclipse.jgit.lfs.server.fs.FileLfsRepository;
+import org.eclipse.jgit.lfs.server.internal.LfsGson;
+import org.eclipse.jgit.lfs.server.internal.LfsServerText;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonParseException;
+
+import com.github.chirontt.lfs.server.CachingLfsRepository;
+import com.github.chirontt.lfs.server.LfsProtocolServletV2;
+import com.github.chirontt.lfs.server.UploadTracker;
+
+/**
+ * Servlet serving the content of the LFS objects of a {@link FileLfsRepository},
+ * as a replacement for JGit's FileLfsServlet.
+ *
+ * Objects are read into buffers of Jetty's pool, which are written straight
+ * to the connection, rather than memory-mapped, so that no mappings of the
+ * files are left for the garbage collector to release.
+ * As LFS objects are immutable, their ID serves as a strong ETag,
+ * which together with Last-Modified allows conditional requests.
+ * One or several byte ranges of an object can be requested,
+ * subject to If-Range, so that interrupted downloads can be resumed.
+ * Uploads are done either with a single PUT request, in chunks
+ * with the tus resumable upload protocol (HEAD and PATCH requests
+ * with a Tus-Resumable header), see {@link TusUploadHandler},
+ * or in parts uploaded in parallel (PUT requests with a Content-Range
+ * header), see {@link MultipartUploadHandler}. An object is only written
+ * by one upload at a time, the concurrent uploads of the same object getting
+ * a 429 (Too Many Requests) response with a Retry-After header.
+ * Objects stored compressed by a {@link CompressingFileLfsRepository}
+ * are sent as is to the clients accepting the gzip content encoding,
+ * and decompressed on the fly for the others.
+ * The reads of the objects of a {@link TieredFileLfsRepository} are recorded,
+ * for the objects read from its cold tier to be promoted.
+ */
+public class FileLfsContentServlet extends HttpServlet {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(FileLfsContentServlet.class);
+
+    private static final String CONTENTTYPE_OCTET_STREAM = "application/octet-stream"; //$NON-NLS-1$
+
+    //size of the buffers in which the objects are read to be sent
+    private static final int SEND_BUFFER_SIZE = 256 * 1024;
+    //requests for more ranges than this get the whole object instead
+    private static final int MAX_RANGES = 64;
+
+    private static final int SC_TOO_MANY_REQUESTS = 429;
+    private static final String HDR_RETRY_AFTER = "Retry-After"; //$NON-NLS-1$
+    //delay before retrying the upload of an object already being uploaded
+    private static final int UPLOAD_RETRY_AFTER_SECONDS = 5;
+
+    private final FileLfsRepository repository;
+    private final PartialUploadStore partialUploadStore;
+    private final UploadTracker uploadTracker;
+    private final TusUploadHandler tusUploadHandler;
+    private final MultipartUploadHandler multipartUploadHandler;
+
+    /**
+     * @param repository The repository storing the LFS objects.
+     * @param cache Optional cache of object sizes to notify of the uploaded objects,
+     *              whose upload tracker is shared with the batch servlet.
+     */
+    public FileLfsContentServlet(FileLfsRepository repository, CachingLfsRepository cache) {
+        this.repository = repository;
+        this.partialUploadStore = new PartialUploadStore(repository, cache);
+        //shared with the batch servlet through the cache, if any
+        this.uploadTracker = cache != null ? cache.getUploadTracker() : new UploadTracker();
+        this.tusUploadHandler = new TusUploadHandler(partialUploadStore);
+        this.multipartUploadHandler = new MultipartUploadHandler(partialUploadStore);
+    }
+
+    /**
+     * Remove what the uploads abandoned by their clients have left behind:
+     * the partial files not written to for the given time,
+     * the digests of the tus uploads not resumed since,
+     * and the parts hashed of the multipart uploads whose files are removed.
+     *
+     * @param maxIdleMillis Time after which an upload is considered abandoned.
+     *
+     * @throws IOException if the partial files cannot be listed
+     */
+    public void removeAbandonedUploads(long maxIdleMillis) throws IOException {
+        tusUploadHandler.expireDigests(maxIdleMillis);
+        partialUploadStore.removeAbandoned(maxIdleMillis);
+        multipartUploadHandler.expireUploads();
+    }
+
+    /**
+     * A satisfiable byte range of an object, with inclusive bounds.
+     */
+    static class ByteRange {
+        final long first;
+        final long last;
+
+        ByteRange(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        long length() {
+            return last - first + 1;
+        }
+
+        String toContentRange(long size) {
+            return "bytes " + first + "-" + last + "/" + size; //$NON-NLS-1$
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void service(HttpServletRequest req, HttpServletResponse rsp)
+            throws ServletException, IOException {
+        //HttpServlet doesn't dispatch PATCH requests
+        if ("PATCH".equals(req.getMethod())) { //$NON-NLS-1$
+            doPatch(req, rsp);
+        } else {
+            super.service(req, rsp);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doGet(HttpServletRequest req, HttpServletResponse rsp)
+            throws ServletException, IOException {
+        serve(req, rsp, true);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doHead(HttpServletRequest req, HttpServletResponse rsp)
+            throws ServletException, IOException {
+        if (TusUploadHandler.isTusRequest(req)) {
+            AnyLongObjectId oid = getObjectToTransfer(req, rsp);
+            if (oid != null) {
+                tusUploadHandler.head(oid, req, rsp);
+            }
+            return;
+        }
+        serve(req, rsp, false);
+    }
+
+    /**
+     * Handle a chunk of a resumable (tus) upload.
+     */
+    protected void doPatch(HttpServletRequest req, HttpServletResponse rsp)
+            throws ServletException, IOException {
+        AnyLongObjectId oid = getObjectToTransfer(req, rsp);
+        if (oid == null || !startUpload(oid, true, rsp)) {
+            return;
+        }
+        try {
+            tusUploadHandler.patch(oid, req, rsp);
+        } finally {
+            uploadTracker.finish(oid);
+        }
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    protected void doPut(HttpServletRequest req, HttpServletResponse rsp)
+            throws ServletException, IOException {
+        AnyLongObjectId oid = getObjectToTransfer(req, rsp);
+        if (oid == null) {
+            return;
+        }
+        boolean partUpload = MultipartUploadHandler.isPartUpload(req);
+        //the parts of a multipart upload are uploaded concurrently
+        if (!startUpload(oid, !partUpload, rsp)) {
+            return;
+        }
+        try {
+            if (partUpload) {
+                multipartUploadHandler.putPart(oid, req, rsp);
+            } else {
+                putObject(oid, req, rsp);
+            }
+        } finally {
+            uploadTracker.finish(oid);
+        }
+    }
+
+    /**
+     * Store an object uploaded with a single PUT request.
+     */
+    private void putObject(AnyLongObjectId oid, HttpServletRequest req, HttpServletResponse rsp)
+            throws IOException {
+        if (repository.getSize(oid) >= 0) {
+            //uploaded by another client in the meantime
+            rsp.setContentType(LfsProtocolServletV2.CONTENTTYPE_VND_GIT_LFS_JSON);
+            rsp.setStatus(SC_OK);
+            return;
+        }
+        long size;
+        try (InputStream in = req.getInputStream()) {
+            //verifies the content against the object ID before moving it into place
+            size = partialUploadStore.store(oid, in);
+        } catch (IOException e) {
+            LOG.error("Failed to upload object " + oid.getName(), e);
+            sendError(rsp, SC_INTERNAL_SERVER_ERROR, e.getMessage());
+            return;
+        }
+        if (size < 0) {
+            sendError(rsp, SC_BAD_REQUEST,
+                    "Uploaded content doesn't match object " + oid.getName());
+            return;
+        }
+        rsp.setContentType(LfsProtocolServletV2.CONTENTTYPE_VND_GIT_LFS_JSON);
+        rsp.setStatus(SC_OK);
+    }
+
+    /**
+     * Start the upload of an object, or reject it with a 429 (Too Many Requests)
+     * response if the object is already being uploaded.
+     *
+     * @return true if the upload has started
+     */
+    private boolean startUpload(AnyLongObjectId oid, boolean exclusive, HttpServletResponse rsp)
+            throws IOException {
+        if (uploadTracker.tryStart(oid, exclusive)) {
+            return true;
+        }
+        rsp.setHeader(HDR_RETRY_AFTER, Integer.toString(UPLOAD_RETRY_AFTER_SECONDS));
+        sendError(rsp, SC_TOO_MANY_REQUESTS,
+                "Object " + oid.getName() + " is already being uploaded");
+        return false;
+    }
+
+    /**
+     * Handle the verify callback of an upload: check that the object
+     * has been stored, with the size the client has uploaded.
+     * The content itself has been verified against the object ID
+     * before being stored.
+     */
+    @Override
+    protected void doPost(HttpServletRequest req, HttpServletResponse rsp)
+            throws ServletException, IOException {
+        AnyLongObjectId oid = getObjectToTransfer(req, rsp);
+        if (oid == null) {
+            return;
+        }
+        LfsObject object;
+        try (Reader r = new BufferedReader(
+                new InputStreamReader(req.getInputStream(), UTF_8))) {
+            object = LfsGson.fromJson(r, LfsObject.class);
+        } catch (JsonParseException e) {
+            object = null;
+        }
+        if (object == null || !oid.getName().equals(object.getOid())) {
+            sendError(rsp, SC_UNPROCESSABLE_ENTITY,
+                    "Invalid verify request for object " + oid.getName());
+            return;
+        }
+        long size = repository.getSize(oid);
+        if (size < 0) {
+            sendError(rsp, SC_NOT_FOUND, MessageFormat.format(
+                    LfsServerText.get().objectNotFound, oid.getName()));
+            return;
+        }
+        if (size != object.getSize()) {
+            sendError(rsp, SC_UNPROCESSABLE_ENTITY, "Object " + oid.getName()
+                    + " has size " + size + ", not " + object.getSize());
+            return;
+        }
+        rsp.setContentType(LfsProtocolServletV2.CONTENTTYPE_VND_GIT_LFS_JSON);
+        rsp.setStatus(SC_OK);
+    }
+
+    private void serve(HttpServletRequest req, HttpServletResponse rsp, boolean sendContent)
+            throws IOException {
+        AnyLongObjectId oid = getObjectToTransfer(req, rsp);
+        if (oid == null) {
+            return;
+        }
+
+        //the file is opened before anything is sent, as it can be moved at any time,
+        //e.g. compressed or demoted, in which case it is looked up again
+        Path path = null;
+        BasicFileAttributes attrs = null;
+        FileChannel channel = null;
+        for (int attempt = 1; channel == null; attempt++) {
+            try {
+                path = findObject(oid);
+                if (path == null) {
+                    throw new NoSuchFileException(repository.getPath(oid).toString());
+                }
+                attrs = Files.readAttributes(path, BasicFileAttributes.class);
+                channel = FileChannel.open(path, StandardOpenOption.READ);
+            } catch (NoSuchFileException e) {
+                if (path == null || attempt == 2) {
+                    sendError(rsp, SC_NOT_FOUND, MessageFormat.format(
+                            LfsServerText.get().objectNotFound, oid.getName()));
+                    return;
+                }
+            }
+        }
+        try (FileChannel file = channel) {
+            serve(req, rsp, sendContent, oid, path, attrs, file);
+        }
+    }
+
+    private void serve(HttpServletRequest req, HttpServletResponse rsp, boolean sendContent,
+            AnyLongObjectId oid, Path path, BasicFileAttributes attrs, FileChannel channel)
+            throws IOException {
+        if (sendContent && repository instanceof TieredFileLfsRepository) {
+            ((TieredFileLfsRepository) repository).objectRead(oid, path);
+        }
+        ByteBufferPool pool = getByteBufferPool(req);
+        boolean compressed = CompressingFileLfsRepository.isCompressedPath(path);
+        long size = compressed
+                ? CompressingFileLfsRepository.getUncompressedSize(channel, path) : attrs.size();
+        long lastModified = attrs.lastModifiedTime().toMillis();
+        //the compressed file is sent as is, with a distinct ETag, to the clients accepting it
+        boolean sendCompressed = compressed && req.getHeader(HDR_RANGE) == null
+                && acceptsGzip(req);
+        String etag = '"' + oid.getName() + (sendCompressed ? "-gzip" : "") + '"'; //$NON-NLS-1$ //$NON-NLS-2$
+
+        rsp.setHeader(HDR_ETAG, etag);
+        rsp.setDateHeader(HDR_LAST_MODIFIED, lastModified);
+        rsp.setHeader(HDR_ACCEPT_RANGES, "bytes"); //$NON-NLS-1$
+        if (compressed) {
+            rsp.setHeader("Vary", HDR_ACCEPT_ENCODING); //$NON-NLS-1$
+        }
+        if (isNotModified(req, etag, lastModified)) {
+            rsp.setStatus(SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (sendCompressed) {
+            rsp.setContentType(CONTENTTYPE_OCTET_STREAM);
+            rsp.setHeader(HDR_CONTENT_ENCODING, ENCODING_GZIP);
+            rsp.setStatus(SC_OK);
+            rsp.setContentLengthLong(attrs.size());
+            if (sendContent) {
+                sendFile(channel, path, 0, attrs.size(), pool, rsp.getOutputStream());
+            }
+            return;
+        }
+
+        List<ByteRange> ranges = null;
+        String rangeHeader = req.getHeader(HDR_RANGE);
+        if (rangeHeader != null && isRangeApplicable(req, etag, lastModified)) {
+            ranges = parseRanges(rangeHeader, size);
+            if (ranges != null && ranges.isEmpty()) {
+                rsp.setHeader(HDR_CONTENT_RANGE, "bytes */" + size); //$NON-NLS-1$
+                rsp.setStatus(SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+            if (ranges != null && ranges.size() == 1
+                    && ranges.get(0).first == 0 && ranges.get(0).last == size - 1) {
+                //the whole object
+                ranges = null;
+            }
+        }
+
+        if (ranges == null) {
+            rsp.setContentType(CONTENTTYPE_OCTET_STREAM);
+            rsp.setStatus(SC_OK);
+            rsp.setContentLengthLong(size);
+            if (sendContent) {
+                sendContent(channel, path, compressed, List.of(new ByteRange(0, size - 1)),
+                            null, pool, rsp.getOutputStream());
+            }
+        } else if (ranges.size() == 1) {
+            ByteRange range = ranges.get(0);
+            rsp.setContentType(CONTENTTYPE_OCTET_STREAM);
+            rsp.setStatus(SC_PARTIAL_CONTENT);
+            rsp.setHeader(HDR_CONTENT_RANGE, range.toContentRange(size));
+            rsp.setContentLengthLong(range.length());
+            if (sendContent) {
+                sendContent(channel, path, compressed, ranges, null, pool, rsp.getOutputStream());
+            }
+        } else {
+            sendMultipleRanges(rsp, channel, path, compressed, size, ranges, sendContent, pool);
+        }
+    }
+
+    /**
+     * Find the file storing an object, either uncompressed or compressed.
+     *
+     * @return The path of the file, or null if the object doesn't exist
+     */
+    private Path findObject(AnyLongObjectId oid) throws IOException {
+        if (!(repository instanceof CompressingFileLfsRepository)) {
+            return repository.getPath(oid);
+        }
+        CompressingFileLfsRepository compressingRepository =
+                (CompressingFileLfsRepository) repository;
+        Path path = compressingRepository.getStoredPath(oid);
+        //a deduplicating repository links in the objects of the shared store on lookup
+        if (path == null && repository instanceof DedupFileLfsRepository
+                && repository.getSize(oid) >= 0) {
+            path = compressingRepository.getStoredPath(oid);
+        }
+        return path;
+    }
+
+    private static boolean acceptsGzip(HttpServletRequest req) {
+        String header = req.getHeader(HDR_ACCEPT_ENCODING);
+        if (header == null) {
+            return false;
+        }
+        for (String coding : header.split(",")) { //$NON-NLS-1$
+            String[] params = coding.split(";"); //$NON-NLS-1$
+            String name = params[0].trim();
+            if (!name.equalsIgnoreCase(ENCODING_GZIP) && !name.equals("*")) { //$NON-NLS-1$
+                continue;
+            }
+            for (int i = 1; i < params.length; i++) {
+                String param = params[i].trim();
+                if (param.startsWith("q=")) { //$NON-NLS-1$
+                    try {
+                        return Double.parseDouble(param.substring(2)) > 0;
+                    } catch (NumberFormatException e) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Send several ranges of an object as a multipart/byteranges response.
+     */
+    private static void sendMultipleRanges(HttpServletResponse rsp, FileChannel channel, Path path,
+            boolean compressed, long size, List<ByteRange> ranges, boolean sendContent,
+            ByteBufferPool pool) throws IOException {
+        String boundary = UUID.randomUUID().toString();
+        List<byte[]> partHeaders = new ArrayList<>(ranges.size());
+        long contentLength = 0;
+        for (ByteRange range : ranges) {
+            byte[] partHeader = ("\r\n--" + boundary + "\r\n" //$NON-NLS-1$ //$NON-NLS-2$
+                    + HDR_CONTENT_TYPE + ": " + CONTENTTYPE_OCTET_STREAM + "\r\n" //$NON-NLS-1$ //$NON-NLS-2$
+                    + HDR_CONTENT_RANGE + ": " + range.toContentRange(size) + "\r\n\r\n") //$NON-NLS-1$ //$NON-NLS-2$
+                    .getBytes(StandardCharsets.US_ASCII);
+            partHeaders.add(partHeader);
+            contentLength += partHeader.length + range.length();
+        }
+        byte[] closing = ("\r\n--" + boundary + "--\r\n").getBytes(StandardCharsets.US_ASCII); //$NON-NLS-1$ //$NON-NLS-2$
+        contentLength += closing.length;
+
+        rsp.setContentType("multipart/byteranges; boundary=" + boundary); //$NON-NLS-1$
+        rsp.setStatus(SC_PARTIAL_CONTENT);
+        rsp.setContentLengthLong(contentLength);
+        if (!sendContent) {
+            return;
+        }
+        OutputStream out = rsp.getOutputStream();
+        sendContent(channel, path, compressed, ranges, partHeaders, pool, out);
+        out.write(closing);
+    }
+
+    /**
+     * Check the If-Range precondition, if any, of a range request:
+     * the ranges are only sent if the object is still the one the client
+     * has got the other parts from, otherwise the whole object is sent.
+     */
+    private static boolean isRangeApplicable(HttpServletRequest req, String etag, long lastModified) {
+        String ifRange = req.getHeader(HDR_IF_RANGE);
+        if (ifRange == null) {
+            return true;
+        }
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("W/")) { //$NON-NLS-1$
+            //weak validators are not allowed in If-Range
+            return false;
+        }
+        if (ifRange.startsWith("\"")) { //$NON-NLS-1$
+            return ifRange.equals(etag);
+        }
+        long date;
+        try {
+            date = req.getDateHeader(HDR_IF_RANGE);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        //the date must be an exact match of Last-Modified, to the second
+        return date >= 0 && date / 1000 == lastModified / 1000;
+    }
+
+    private static boolean isNotModified(HttpServletRequest req, String etag, long lastModified) {
+        String ifNoneMatch = req.getHeader(HDR_IF_NONE_MATCH);
+        if (ifNoneMatch != null) {
+            //If-Modified-Since is ignored when If-None-Match is present
+            return matchesEtag(ifNoneMatch, etag);
+        }
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = req.getDateHeader(HDR_IF_MODIFIED_SINCE);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        //HTTP dates have a resolution of one second
+        return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static boolean matchesEtag(String header, String etag) {
+        for (String tag : header.split(",")) { //$NON-NLS-1$
+            tag = tag.trim();
+            if (tag.startsWith("W/")) { //$NON-NLS-1$
+                //weak comparison
+                tag = tag.substring(2);
+            }
+            if (tag.equals("*") || tag.equals(etag)) { //$NON-NLS-1$
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Parse a Range header.
+     *
+     * Overlapping and adjacent ranges are coalesced, and the ranges which
+     * cannot be satisfied are dropped.
+     *
+     * @param header The Range header value.
+     * @param size The size of the object.
+     *
+     * @return The byte ranges, in ascending order; an empty list if none of them
+     *         is satisfiable; or null if the header is to be ignored, as it is
+     *         malformed or asks for too many ranges
+     */
+    static List<ByteRange> parseRanges(String header, long size) {
+        if (!header.startsWith("bytes=")) { //$NON-NLS-1$
+            return null;
+        }
+        String[] specs = header.substring("bytes=".length()).split(","); //$NON-NLS-1$ //$NON-NLS-2$
+        if (specs.length > MAX_RANGES) {
+            return null;
+        }
+        List<ByteRange> ranges = new ArrayList<>(specs.length);
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+            try {
+                String firstStr = spec.substring(0, dash).trim();
+                String lastStr = spec.substring(dash + 1).trim();
+                if (firstStr.isEmpty()) {
+                    //suffix range: the last n bytes
+                    long suffix = Long.parseLong(lastStr);
+                    if (suffix < 0) {
+                        return null;
+                    }
+                    if (suffix > 0 && size > 0) {
+                        ranges.add(new ByteRange(Math.max(0, size - suffix), size - 1));
+                    }
+                    continue;
+                }
+                long first = Long.parseLong(firstStr);
+                long last = lastStr.isEmpty() ? Long.MAX_VALUE : Long.parseLong(lastStr);
+                if (first < 0 || last < first) {
+                    return null;
+                }
+                if (first < size) {
+                    ranges.add(new ByteRange(first, Math.min(last, size - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return coalesce(ranges);
+    }
+
+    private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+        ranges.sort(Comparator.comparingLong(range -> range.first));
+        List<ByteRange> coalesced = new ArrayList<>(ranges.size());
+        ByteRange current = ranges.get(0);
+        for (int i = 1; i < ranges.size(); i++) {
+            ByteRange next = ranges.get(i);
+            if (next.first <= current.last + 1) {
+                current = new ByteRange(current.first, Math.max(current.last, next.last));
+            } else {
+                coalesced.add(current);
+                current = next;
+            }
+        }
+        coalesced.add(current);
+        return coalesced;
+    }
+
+    /**
+     * Send parts of an object to the response output stream, each preceded
+     * by its part header if any, decompressing the object if it is stored
+     * compressed: the ranges being sorted, the object is decompressed once
+     * for all of them.
+     */
+    private static void sendContent(FileChannel channel, Path path, boolean compressed,
+            List<ByteRange> ranges, List<byte[]> partHeaders, ByteBufferPool pool,
+            OutputStream out) throws IOException {
+        if (!compressed) {
+            for (int i = 0; i < ranges.size(); i++) {
+                if (partHeaders != null) {
+                    out.write(partHeaders.get(i));
+                }
+                ByteRange range = ranges.get(i);
+                sendFile(channel, path, range.first, range.length(), pool, out);
+            }
+            return;
+        }
+        //the stream closes the channel, which its caller closes anyway
+        try (InputStream in = new GZIPInputStream(
+                Channels.newInputStream(channel.position(0)), 64 * 1024)) {
+            byte[] buffer = new byte[64 * 1024];
+            long position = 0;
+            for (int i = 0; i < ranges.size(); i++) {
+                if (partHeaders != null) {
+                    out.write(partHeaders.get(i));
+                }
+                ByteRange range = ranges.get(i);
+                in.skipNBytes(range.first - position);
+                long remaining = range.length();
+                while (remaining > 0) {
+                    int n = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                    if (n == -1) {
+                        throw new IOException("Unexpected end of compressed file " + path);
+                    }
+                    out.write(buffer, 0, n);
+                    remaining -= n;
+                }
+                position = range.last + 1;
+            }
+        }
+    }
+
+    /**
+     * Send a part of a file to the response output stream, read a buffer
+     * of the pool at a time, each buffer being written by Jetty without
+     * another copy.
+     */
+    private static void sendFile(FileChannel channel, Path path, long position, long length,
+            ByteBufferPool pool, OutputStream out) throws IOException {
+        long end = position + length;
+        long pos = position;
+        if (!(out instanceof HttpOutput)) {
+            WritableByteChannel target = Channels.newChannel(out);
+            while (pos < end) {
+                long n = channel.transferTo(pos, end - pos, target);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of file " + path);
+                }
+                pos += n;
+            }
+            return;
+        }
+        HttpOutput httpOut = (HttpOutput) out;
+        RetainableByteBuffer buffer = pool.acquire((int) Math.min(SEND_BUFFER_SIZE, length), true);
+        try {
+            ByteBuffer bytes = buffer.getByteBuffer();
+            while (pos < end) {
+                bytes.clear();
+                if (bytes.remaining() > end - pos) {
+                    bytes.limit((int) (end - pos));
+                }
+                int n = channel.read(bytes, pos);
+                if (n <= 0) {
+                    throw new IOException("Unexpected end of file " + path);
+                }
+                pos += n;
+                bytes.flip();
+                httpOut.write(bytes);
+            }
+        } finally {
+            buffer.release();
+        }
+    }
+
+    /**
+     * @return The buffer pool of the server, or a non-pooling one
+     *         outside of a Jetty servlet context
+     */
+    private static ByteBufferPool getByteBufferPool(HttpServletRequest req) {
+        ServletContextRequest request = ServletContextRequest.getServletContextRequest(req);
+        return request == null ? ByteBufferPool.NON_POOLING
+                               : request.getComponents().getByteBufferPool();
+    }
+
+    private AnyLongObjectId getObjectToTransfer(HttpServletRequest req, HttpServletResponse rsp)
+            throws IOException {
+        String info = req.getPathInfo();
+        int length = 1 + Constants.LONG_OBJECT_ID_STRING_LENGTH;
+        if (info == null || info.length() != length) {
+            sendError(rsp, SC_UNPROCESSABLE_ENTITY, MessageFormat.format(
+                    LfsServerText.get().invalidPathInfo, info));
+            return null;
+        }
+        try {
+            return LongObjectId.fromString(info.substring(1, length));
+        } catch (InvalidLongObjectIdException e) {
+            sendError(rsp, SC_UNPROCESSABLE_ENTITY, e.getMessage());
+            return null;
+        }
+    }
+
+    static void sendError(HttpServletResponse rsp, int status, String message)
+            throws IOException {
+        if (rsp.isCommitted()) {
+            return;
+        }
+        rsp.setStatus(status);
+        rsp.setContentType(LfsProtocolServletV2.CONTENTTYPE_VND_GIT_LFS_JSON);
+        Writer w = new BufferedWriter(
+                new OutputStreamWriter(rsp.getOutputStream(), UTF_8));
+        LfsGson.toJson(message, w);
+        w.flush();
+    }
+
+}
@@ -0,0 +1,434 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import static org.apache.http.HttpStatus.SC_BAD_REQUEST;
+import static org.apache.http.HttpStatus.SC_CONFLICT;
+import static org.apache.http.HttpStatus.SC_OK;
+import static org.eclipse.jgit.util.HttpSupport.HDR_CONTENT_RANGE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+
+import com.github.chirontt.lfs.server.LfsProtocolServletV2;
+import com.github.chirontt.lfs.server.MultipartSupport;
+import com.github.chirontt.lfs.server.StripedLock;
+
+/**
+ * Server side of the uploads of the "multipart" transfer adapter,
+ * see {@link MultipartSupport}.
+ *
+ * The parts of an object, which may be received concurrently and in any
+ * order, are written at their offsets into a partial file of the
+ * {@link PartialUploadStore}. The received parts are recorded in a separate
+ * file, one byte per part after the size of the object, so that only the
+ * missing parts need to be sent again after an interruption. The parts
+ * declaring another size than the one of the upload in progress are rejected.
+ * Once all the parts have been received, the object is verified and moved
+ * into place.
+ *
+ * SHA-256 can only hash the object in order, so the parts are hashed in part
+ * order as they become contiguous: a part received right after the bytes
+ * hashed so far is hashed as it is written, and the parts received before
+ * their turn are read back once from the partial file when the parts before
+ * them have been received. Once all the parts have been received, only the
+ * parts not hashed yet, e.g. all of them after a restart of the server,
+ * are read to verify the object. A part already received in this run of the
+ * server isn't written again, so that no hashed bytes are overwritten.
+ */
+class MultipartUploadHandler {
+
+    private static final String PARTIAL_SUFFIX = ".multipart"; //$NON-NLS-1$
+    private static final String PARTS_SUFFIX = ".parts"; //$NON-NLS-1$
+
+    //the size of the object, at the start of the file of the received parts
+    private static final int PARTS_HEADER_LENGTH = Long.BYTES;
+
+    private final PartialUploadStore store;
+    //serializes the bookkeeping of the received parts of an object
+    private final StripedLock stripes = new StripedLock();
+    private final ConcurrentMap<LongObjectId, PartUpload> uploads = new ConcurrentHashMap<>();
+
+    private static class PartUpload {
+        //parts are written under the read lock, and the object completed under
+        //the write lock, so that no part is written into an already stored object
+        final ReadWriteLock lock = new ReentrantReadWriteLock();
+        //held while the digest is advanced
+        final Lock hashing = new ReentrantLock();
+        final MessageDigest md = Constants.newMessageDigest();
+        //number of bytes hashed, all of them in parts received
+        long hashed;
+        //parts received, and being written, in this run of the server
+        final Set<Integer> received = ConcurrentHashMap.newKeySet();
+        final Set<Integer> writing = ConcurrentHashMap.newKeySet();
+    }
+
+    MultipartUploadHandler(PartialUploadStore store) {
+        this.store = store;
+    }
+
+    static boolean isPartUpload(HttpServletRequest req) {
+        return req.getHeader(HDR_CONTENT_RANGE) != null;
+    }
+
+    /**
+     * Receive a part of an object, as selected by the Content-Range header.
+     */
+    void putPart(AnyLongObjectId oid, HttpServletRequest req, HttpServletResponse rsp)
+            throws IOException {
+        long[] range = parseContentRange(req.getHeader(HDR_CONTENT_RANGE));
+        if (range == null) {
+            FileLfsContentServlet.sendError(rsp, SC_BAD_REQUEST,
+                    "Invalid " + HDR_CONTENT_RANGE + ": " + req.getHeader(HDR_CONTENT_RANGE));
+            return;
+        }
+        long first = range[0];
+        long last = range[1];
+        long size = range[2];
+        long partSize = MultipartSupport.getPartSize(size);
+        if (first % partSize != 0 || last != Math.min(first + partSize, size) - 1) {
+            FileLfsContentServlet.sendError(rsp, SC_BAD_REQUEST,
+                    HDR_CONTENT_RANGE + " " + req.getHeader(HDR_CONTENT_RANGE)
+                    + " isn't a part of the object");
+            return;
+        }
+        int part = (int) (first / partSize);
+        int partCount = MultipartSupport.getPartCount(size);
+
+        Path partial = store.getPartialPath(oid, PARTIAL_SUFFIX);
+        Path parts = store.getPartialPath(oid, PARTS_SUFFIX);
+        if (store.getExistingSize(oid) >= 0) {
+            //already uploaded, e.g. by another client
+            rsp.setContentType(LfsProtocolServletV2.CONTENTTYPE_VND_GIT_LFS_JSON);
+            rsp.setStatus(SC_OK);
+            return;
+        }
+        long uploadSize;
+        stripes.lock(oid);
+        try {
+            uploadSize = startUpload(parts, size);
+            if (uploadSize < 0) {
+                //a new upload, the state of any previous one being stale
+                uploads.remove(oid);
+                uploadSize = size;
+            }
+        } finally {
+            stripes.unlock(oid);
+        }
+        if (uploadSize != size) {
+            FileLfsContentServlet.sendError(rsp, SC_CONFLICT,
+                    "Object " + oid.getName() + " is being uploaded with a size of " + uploadSize
+                    + " bytes, not " + size);
+            return;
+        }
+
+        PartUpload upload = uploads.computeIfAbsent(oid.copy(), key -> new PartUpload());
+        long length = last - first + 1;
+        long received;
+        if (upload.received.contains(part)) {
+            //not written again, its bytes may have been hashed already
+            try (InputStream in = req.getInputStream()) {
+                in.transferTo(OutputStream.nullOutputStream());
+            }
+            received = length;
+        } else {
+            upload.lock.readLock().lock();
+            try {
+                if (store.getExistingSize(oid) >= 0) {
+                    //already uploaded, e.g. by another client
+                    rsp.setContentType(LfsProtocolServletV2.CONTENTTYPE_VND_GIT_LFS_JSON);
+                    rsp.setStatus(SC_OK);
+                    return;
+                }
+                if (!upload.writing.add(part)) {
+                    FileLfsContentServlet.sendError(rsp, SC_CONFLICT,
+                            "Part " + part + " of object " + oid.getName() + " is already being uploaded");
+                    return;
+                }
+                try {
+                    received = writePart(req, partial, upload, first, length, size, partSize);
+                } finally {
+                    upload.writing.remove(part);
+                }
+            } finally {
+                upload.lock.readLock().unlock();
+            }
+        }
+        if (received != length) {
+            FileLfsContentServlet.sendError(rsp, SC_BAD_REQUEST,
+                    "Received " + received + " bytes for part " + part
+                    + " of " + length + " bytes");
+            return;
+        }
+
+        stripes.lock(oid);
+        try {
+            if (markReceived(parts, part, partCount)) {
+                //all the parts have been received: wait for the writes
+                //in progress, if any, before moving the partial file
+                boolean stored;
+                upload.lock.writeLock().lock();
+                try {
+                    stored = store.getExistingSize(oid) >= 0
+                            || (Files.exists(partial) && complete(oid, partial, size, upload));
+                    Files.deleteIfExists(parts);
+                    uploads.remove(oid, upload);
+                } finally {
+                    upload.lock.writeLock().unlock();
+                }
+                if (!stored) {
+                    FileLfsContentServlet.sendError(rsp, SC_BAD_REQUEST,
+                            "Uploaded content doesn't match object " + oid.getName());
+                    return;
+                }
+            }
+        } finally {
+            stripes.unlock(oid);
+        }
+        rsp.setContentType(LfsProtocolServletV2.CONTENTTYPE_VND_GIT_LFS_JSON);
+        rsp.setStatus(SC_OK);
+    }
+
+    /**
+     * Hash the parts received after the bytes hashed so far, in part order,
+     * reading them back from the partial file, unless the digest is being
+     * advanced by another request.
+     */
+    private static void hashReceivedParts(PartUpload upload, FileChannel channel,
+            long size, long partSize) throws IOException {
+        if (!upload.hashing.tryLock()) {
+            return;
+        }
+        try {
+            while (upload.hashed < size
+                    && upload.received.contains((int) (upload.hashed / partSize))) {
+                long end = Math.min(upload.hashed + partSize, size);
+                PartialUploadStore.hash(channel, upload.md, upload.hashed, end);
+                upload.hashed = end;
+            }
+        } finally {
+            upload.hashing.unlock();
+        }
+    }
+
+    /**
+     * Verify the object once all its parts have been received, hashing the
+     * bytes not hashed yet, and move it into place.
+     *
+     * @return true if the object has been stored,
+     *         false if the content doesn't match the object ID
+     */
+    private boolean complete(AnyLongObjectId oid, Path partial, long size, PartUpload upload)
+            throws IOException {
+        store.cutOff(oid, partial, size);
+        upload.hashing.lock();
+        try {
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.READ)) {
+                PartialUploadStore.hash(channel, upload.md, upload.hashed, size);
+            }
+            upload.hashed = size;
+            return store.complete(oid, partial, size, LongObjectId.fromRaw(upload.md.digest()));
+        } finally {
+            upload.hashing.unlock();
+        }
+    }
+
+    /**
+     * Drop the state of the uploads whose files have been removed,
+     * see {@link PartialUploadStore#removeAbandoned(long)}.
+     *
+     * @return The number of uploads dropped
+     */
+    int expireUploads() throws IOException {
+        int expired = 0;
+        for (Map.Entry<LongObjectId, PartUpload> entry : uploads.entrySet()) {
+            if (!Files.exists(store.getPartialPath(entry.getKey(), PARTS_SUFFIX))
+                    && uploads.remove(entry.getKey(), entry.getValue())) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Write a part into the partial file, hashing it as it is written if it
+     * comes right after the bytes hashed so far, then hash the parts received
+     * after it, if any.
+     *
+     * @return The number of bytes received, up to one more than the part length
+     */
+    private static long writePart(HttpServletRequest req, Path partial, PartUpload upload,
+            long first, long length, long size, long partSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            boolean hashing = upload.hashing.tryLock();
+            if (hashing && upload.hashed != first) {
+                upload.hashing.unlock();
+                hashing = false;
+            }
+            long received = -1;
+            try {
+                received = writePart(req, channel, first, length, hashing ? upload.md : null);
+                channel.force(false);
+            } finally {
+                if (hashing) {
+                    if (received == length) {
+                        upload.hashed = first + length;
+                    } else {
+                        //the part is to be sent again: hash from the start again
+                        upload.md.reset();
+                        upload.hashed = 0;
+                    }
+                    upload.hashing.unlock();
+                }
+            }
+            if (received == length) {
+                upload.received.add((int) (first / partSize));
+                hashReceivedParts(upload, channel, size, partSize);
+            }
+            return received;
+        }
+    }
+
+    /**
+     * Write the request body at the part offset of the partial file,
+     * and add the bytes written to the given digest, if any.
+     *
+     * @return The number of bytes received, up to one more than the part length
+     */
+    private static long writePart(HttpServletRequest req, FileChannel channel,
+            long position, long length, MessageDigest md) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        byte[] bytes = buffer.array();
+        long received = 0;
+        try (InputStream in = req.getInputStream()) {
+            int n;
+            while ((n = in.read(bytes)) != -1) {
+                if (received + n > length) {
+                    return length + 1;
+                }
+                buffer.clear().limit(n);
+                while (buffer.hasRemaining()) {
+                    received += channel.write(buffer, position + received);
+                }
+                if (md != null) {
+                    md.update(bytes, 0, n);
+                }
+            }
+        }
+        return received;
+    }
+
+    /**
+     * Record the size of the object in the file of the received parts,
+     * unless the upload of the object has already started.
+     *
+     * @return The size of the object being uploaded, or -1 if its upload
+     *         has just been started
+     */
+    private static long startUpload(Path parts, long size) throws IOException {
+        try (FileChannel channel = FileChannel.open(parts, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(PARTS_HEADER_LENGTH);
+            if (channel.size() < PARTS_HEADER_LENGTH) {
+                header.putLong(size).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, header.position());
+                }
+                channel.force(false);
+                return -1;
+            }
+            while (header.hasRemaining()
+                    && channel.read(header, header.position()) != -1) {
+                //read the size
+            }
+            return header.getLong(0);
+        }
+    }
+
+    /**
+     * Record that a part has been received.
+     *
+     * @return true if all the parts have now been received
+     */
+    private static boolean markReceived(Path parts, int part, int partCount)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(parts, StandardOpenOption.CREATE,
+                StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[] {1}), PARTS_HEADER_LENGTH + part);
+            channel.force(false);
+            if (channel.size() < PARTS_HEADER_LENGTH + partCount) {
+                return false;
+            }
+            ByteBuffer received = ByteBuffer.allocate(partCount);
+            while (received.hasRemaining()
+                    && channel.read(received, PARTS_HEADER_LENGTH + received.position()) != -1) {
+                //read all the part flags
+            }
+            for (int i = 0; i < partCount; i++) {
+                if (received.get(i) != 1) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Parse a Content-Range header of the form {@code bytes first-last/size}.
+     *
+     * @return {first, last, size}, or null if the header is invalid
+     */
+    static long[] parseContentRange(String header) {
+        if (header == null || !header.startsWith("bytes ")) { //$NON-NLS-1$
+            return null;
+        }
+        String spec = header.substring("bytes ".length()).trim(); //$NON-NLS-1$
+        int dash = spec.indexOf('-');
+        int slash = spec.indexOf('/');
+        if (dash < 0 || slash < dash) {
+            return null;
+        }
+        try {
+            long first = Long.parseLong(spec.substring(0, dash).trim());
+            long last = Long.parseLong(spec.substring(dash + 1, slash).trim());
+            long size = Long.parseLong(spec.substring(slash + 1).trim());
+            if (first < 0 || last < first || last >= size) {
+                return null;
+            }
+            return new long[] {first, last, size};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+}
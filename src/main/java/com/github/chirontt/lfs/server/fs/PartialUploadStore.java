@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lfs.server.fs.FileLfsRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.chirontt.lfs.server.CachingLfsRepository;
+
+/**
+ * Storage of the LFS objects being uploaded, in the "partial" directory
+ * of the LFS repository, until they are complete and verified against
+ * their object ID, and moved into the repository: an object whose content
+ * doesn't match its ID never becomes visible.
+ *
+ * The partial files of the uploads abandoned by their clients are deleted
+ * by {@link #removeAbandoned(long)}.
+ */
+class PartialUploadStore {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(PartialUploadStore.class);
+
+    static final String PARTIAL_DIR = "partial"; //$NON-NLS-1$
+
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    private final FileLfsRepository repository;
+    private final CachingLfsRepository cache;
+    private final Path partialDir;
+
+    PartialUploadStore(FileLfsRepository repository, CachingLfsRepository cache) {
+        this.repository = repository;
+        this.cache = cache;
+        this.partialDir = repository.getDir().resolve(PARTIAL_DIR);
+    }
+
+    /**
+     * Get the path of a partial file of an object, creating the partial directory if needed.
+     *
+     * @param oid The object ID.
+     * @param suffix Suffix of the file name, distinguishing the files of the different kinds of uploads.
+     *
+     * @return The path of the partial file
+     */
+    Path getPartialPath(AnyLongObjectId oid, String suffix) throws IOException {
+        Files.createDirectories(partialDir);
+        return partialDir.resolve(oid.getName() + suffix);
+    }
+
+    /**
+     * Delete the partial files of the uploads which haven't progressed for
+     * the given time, e.g. abandoned by their clients. The files of an object,
+     * e.g. the data and the received parts of a multipart upload, are only
+     * deleted together, once none of them has been written to for that time.
+     *
+     * @param maxIdleMillis Time after which an upload is considered abandoned.
+     *
+     * @return The number of partial files deleted
+     */
+    int removeAbandoned(long maxIdleMillis) throws IOException {
+        if (!Files.isDirectory(partialDir)) {
+            return 0;
+        }
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
+        //time of the last write to the files of each object
+        Map<String, Long> lastWrites = new HashMap<>();
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(partialDir)) {
+            for (Path file : stream) {
+                try {
+                    long lastWrite = Files.getLastModifiedTime(file).toMillis();
+                    lastWrites.merge(getObjectName(file), lastWrite, Math::max);
+                    files.add(file);
+                } catch (NoSuchFileException e) {
+                    //completed meanwhile
+                }
+            }
+        }
+        int removed = 0;
+        for (Path file : files) {
+            if (lastWrites.get(getObjectName(file)) < cutoff && Files.deleteIfExists(file)) {
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            LOG.info("Deleted " + removed + " partial files of abandoned uploads in " + partialDir);
+        }
+        return removed;
+    }
+
+    private static String getObjectName(Path file) {
+        //the partial files are named after their object ID
+        String name = file.getFileName().toString();
+        return name.length() > Constants.LONG_OBJECT_ID_STRING_LENGTH
+                ? name.substring(0, Constants.LONG_OBJECT_ID_STRING_LENGTH)
+                : name;
+    }
+
+    /**
+     * @return The size of the object in the repository, or -1 if it isn't there
+     */
+    long getExistingSize(AnyLongObjectId oid) throws IOException {
+        return repository.getSize(oid);
+    }
+
+    /**
+     * Store an object uploaded in a single request: its content is hashed
+     * as it is written to a partial file, which is moved into place
+     * if the content matches the object ID, otherwise discarded.
+     *
+     * @return The size of the stored object,
+     *         or -1 if the content doesn't match the object ID
+     */
+    long store(AnyLongObjectId oid, InputStream in) throws IOException {
+        Files.createDirectories(partialDir);
+        Path partial = Files.createTempFile(partialDir, oid.getName(), ".put"); //$NON-NLS-1$
+        try {
+            MessageDigest md = Constants.newMessageDigest();
+            long size = 0;
+            ReadableByteChannel source = Channels.newChannel(in);
+            try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+                while (source.read(buffer) != -1) {
+                    buffer.flip();
+                    size += buffer.remaining();
+                    while (buffer.hasRemaining()) {
+                        channel.write(buffer);
+                    }
+                    //hash the bytes just written, from the same buffer
+                    buffer.rewind();
+                    md.update(buffer);
+                    buffer.clear();
+                }
+                channel.force(false);
+            }
+            return complete(oid, partial, size, LongObjectId.fromRaw(md.digest())) ? size : -1;
+        } finally {
+            Files.deleteIfExists(partial);
+        }
+    }
+
+    /**
+     * Cut off any bytes of a partial file beyond the given length,
+     * e.g. written by a client with a different idea of the object size.
+     */
+    void cutOff(AnyLongObjectId oid, Path partial, long length) throws IOException {
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.WRITE)) {
+            if (channel.size() > length) {
+                LOG.warn("Cutting off " + (channel.size() - length) + " bytes beyond the size of object "
+                         + oid.getName());
+                channel.truncate(length);
+                channel.force(false);
+            }
+        }
+    }
+
+    /**
+     * Move a complete partial file into place as the object, if its content,
+     * already hashed, matches the object ID and its length is the hashed one,
+     * otherwise discard it.
+     *
+     * @return true if the object has been stored,
+     *         false if the content doesn't match the object ID
+     */
+    boolean complete(AnyLongObjectId oid, Path partial, long length, LongObjectId contentId)
+            throws IOException {
+        long actualLength = Files.size(partial);
+        if (actualLength != length) {
+            LOG.warn("Discarding upload of object " + oid.getName() + " of " + actualLength
+                     + " bytes instead of " + length);
+            Files.deleteIfExists(partial);
+            return false;
+        }
+        if (!contentId.equals(oid)) {
+            LOG.warn("Discarding upload of object " + oid.getName()
+                     + " whose content is " + contentId.getName());
+            Files.deleteIfExists(partial);
+            return false;
+        }
+
+        Path path = repository.getPath(oid);
+        Files.createDirectories(path.getParent());
+        Files.move(partial, path, StandardCopyOption.ATOMIC_MOVE,
+                   StandardCopyOption.REPLACE_EXISTING);
+        objectStored(oid, length);
+        return true;
+    }
+
+    /**
+     * Add the bytes of a partial file between two offsets to a digest,
+     * e.g. the bytes received before the digest was started.
+     */
+    static void hash(FileChannel channel, MessageDigest md, long from, long to)
+            throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        long position = from;
+        while (position < to) {
+            if (buffer.remaining() > to - position) {
+                buffer.limit((int) (to - position));
+            }
+            int n = channel.read(buffer, position);
+            if (n == -1) {
+                break;
+            }
+            position += n;
+            buffer.flip();
+            md.update(buffer);
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Notify the cache, and the compressing repository if any, of an object
+     * which has just been stored in the repository.
+     */
+    void objectStored(AnyLongObjectId oid, long size) throws IOException {
+        if (cache != null) {
+            cache.objectStored(oid, size);
+        }
+        if (repository instanceof CompressingFileLfsRepository) {
+            ((CompressingFileLfsRepository) repository).objectStored(oid);
+        }
+    }
+
+}
@@ -0,0 +1,354 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Content-addressed store of LFS objects shared by all the repositories,
+ * keyed only by object ID.
+ *
+ * Each repository keeps its own {@link DedupFileLfsRepository} directory,
+ * whose objects are hard links to the objects of this store: an object is
+ * stored once on disk however many repositories reference it, and the
+ * presence of the link in a repository directory is what grants that
+ * repository access to the object. Where hard links aren't supported,
+ * e.g. across file systems, objects are copied instead.
+ *
+ * The store records which repositories reference each object, in a
+ * references file next to it, one repository directory per line:
+ * an object is only linked into another repository if one of the
+ * repositories referencing it is readable, so that the objects of the
+ * repositories which can't be read are not handed out to the writers
+ * of other repositories knowing their IDs.
+ *
+ * With a cold tier, the store keeps a cold directory too, on the storage of
+ * the cold tiers of the repositories: an object demoted from several
+ * repositories is copied there once, and linked from there into their
+ * cold tiers, instead of being copied into each of them.
+ */
+public class SharedObjectStore {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(SharedObjectStore.class);
+
+    //suffix of the files recording the repositories referencing the objects
+    private static final String REFERENCES_SUFFIX = ".refs"; //$NON-NLS-1$
+
+    private final Path dir;
+    private final Path coldDir;
+
+    /**
+     * @param dir The directory of the shared store.
+     *
+     * @throws IOException if the directory cannot be created
+     */
+    public SharedObjectStore(Path dir) throws IOException {
+        this(dir, null);
+    }
+
+    /**
+     * @param dir The directory of the shared store.
+     * @param coldDir The directory of the objects demoted to the cold tier,
+     *                or null for no cold tier.
+     *
+     * @throws IOException if the directories cannot be created
+     */
+    public SharedObjectStore(Path dir, Path coldDir) throws IOException {
+        this.dir = Files.createDirectories(dir);
+        this.coldDir = coldDir == null ? null : Files.createDirectories(coldDir);
+    }
+
+    /**
+     * @return The directory of the shared store
+     */
+    public Path getDir() {
+        return dir;
+    }
+
+    /**
+     * @return The directory of the objects demoted to the cold tier,
+     *         or null if there is none
+     */
+    public Path getColdDir() {
+        return coldDir;
+    }
+
+    /**
+     * Get the path of an object in the shared store,
+     * with the same layout as in a FileLfsRepository.
+     *
+     * @param id The object ID.
+     *
+     * @return The path of the object
+     */
+    public Path getPath(AnyLongObjectId id) {
+        String name = id.name();
+        return dir.resolve(name.substring(0, 2))
+                  .resolve(name.substring(2, 4))
+                  .resolve(name);
+    }
+
+    /**
+     * Get the repositories referencing an object of the shared store.
+     *
+     * @param id The object ID.
+     *
+     * @return The directories of the repositories which have published
+     *         the object or had it linked in, empty if none
+     *
+     * @throws IOException
+     */
+    public Set<Path> getReferences(AnyLongObjectId id) throws IOException {
+        try {
+            return Files.readAllLines(getReferencesPath(id), StandardCharsets.UTF_8).stream()
+                        .filter(line -> !line.isEmpty())
+                        .map(line -> Paths.get(line))
+                        .collect(Collectors.toSet());
+        } catch (NoSuchFileException e) {
+            return Set.of();
+        }
+    }
+
+    /**
+     * Make an object of the shared store available at the given path,
+     * or at the path of its compressed file if it is stored compressed,
+     * if the object exists in the shared store with the given size
+     * and is referenced by a readable repository.
+     *
+     * @param id The object ID.
+     * @param target The path of the object in a repository.
+     * @param size The expected size of the object.
+     * @param repoDir The directory of the repository.
+     * @param readable Whether a repository, by its directory, can be read.
+     *
+     * @return The size of the object, or -1 if it isn't in the shared store
+     *         with that size, or not referenced by any readable repository
+     *
+     * @throws IOException
+     */
+    long linkInto(AnyLongObjectId id, Path target, long size, Path repoDir,
+                  Predicate<Path> readable) throws IOException {
+        Path source = getPath(id);
+        try {
+            if (Files.exists(source)) {
+                if (Files.size(source) != size || !isReadable(id, readable)) {
+                    return -1;
+                }
+                link(source, target);
+                addReference(id, repoDir);
+                return size;
+            }
+            source = CompressingFileLfsRepository.toCompressedPath(source);
+            if (Files.exists(source)) {
+                if (CompressingFileLfsRepository.getUncompressedSize(source) != size
+                        || !isReadable(id, readable)) {
+                    return -1;
+                }
+                link(source, CompressingFileLfsRepository.toCompressedPath(target));
+                addReference(id, repoDir);
+                return size;
+            }
+        } catch (NoSuchFileException e) {
+            //removed from the shared store in the meantime
+        }
+        return -1;
+    }
+
+    /**
+     * Add an object of a repository to the shared store, unless already there,
+     * and record the repository as referencing it.
+     *
+     * @param id The object ID.
+     * @param source The path of the verified object in a repository,
+     *               or of its compressed file.
+     * @param repoDir The directory of the repository.
+     *
+     * @throws IOException
+     */
+    void publish(AnyLongObjectId id, Path source, Path repoDir) throws IOException {
+        Path target = getPath(id);
+        if (CompressingFileLfsRepository.isCompressedPath(source)) {
+            target = CompressingFileLfsRepository.toCompressedPath(target);
+        }
+        if (!Files.exists(target)) {
+            link(source, target);
+        }
+        addReference(id, repoDir);
+    }
+
+    /**
+     * Remove an object from the shared store once no repository links to it,
+     * e.g. after it has been moved out of a repository.
+     *
+     * @param id The object ID.
+     * @param source The former path of the object in a repository,
+     *               or of its compressed file.
+     *
+     * @throws IOException
+     */
+    void release(AnyLongObjectId id, Path source) throws IOException {
+        releaseIfUnlinked(toVariant(getPath(id), source));
+    }
+
+    /**
+     * Demote an object of a repository to its cold tier: the object is copied
+     * to the cold directory of the shared store, unless already there, linked
+     * from there into the cold tier of the repository, then removed from its
+     * hot tier.
+     *
+     * @param id The object ID.
+     * @param hotPath The path of the object in the hot tier of a repository,
+     *                or of its compressed file.
+     * @param coldPath The path of the object in the cold tier of the repository.
+     *
+     * @return false if the shared store has no cold directory,
+     *         in which case nothing has been done
+     *
+     * @throws IOException
+     */
+    boolean demote(AnyLongObjectId id, Path hotPath, Path coldPath) throws IOException {
+        if (coldDir == null) {
+            return false;
+        }
+        Path shared = toVariant(getColdPath(id), hotPath);
+        if (!Files.exists(shared)) {
+            copy(hotPath, shared);
+        }
+        link(shared, coldPath);
+        Files.delete(hotPath);
+        return true;
+    }
+
+    /**
+     * Promote an object of a repository to its hot tier: the object is linked
+     * from the shared store if there, or else copied from the cold tier,
+     * then removed from the cold tier, and from the cold directory of the
+     * shared store once no repository links to it there.
+     *
+     * @param id The object ID.
+     * @param coldPath The path of the object in the cold tier of a repository,
+     *                 or of its compressed file.
+     * @param hotPath The path of the object in the hot tier of the repository.
+     *
+     * @throws IOException
+     */
+    void promote(AnyLongObjectId id, Path coldPath, Path hotPath) throws IOException {
+        Path shared = toVariant(getPath(id), coldPath);
+        try {
+            link(shared, hotPath);
+        } catch (NoSuchFileException e) {
+            copy(coldPath, hotPath);
+        }
+        Files.delete(coldPath);
+        if (coldDir != null) {
+            releaseIfUnlinked(toVariant(getColdPath(id), coldPath));
+        }
+    }
+
+    private boolean isReadable(AnyLongObjectId id, Predicate<Path> readable) throws IOException {
+        for (Path repoDir : getReferences(id)) {
+            if (readable.test(repoDir)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addReference(AnyLongObjectId id, Path repoDir) throws IOException {
+        Path repo = repoDir.toAbsolutePath().normalize();
+        if (getReferences(id).contains(repo)) {
+            return;
+        }
+        //lines appended concurrently are not interleaved, a repository recorded twice is harmless
+        Path refs = getReferencesPath(id);
+        Files.createDirectories(refs.getParent());
+        Files.write(refs, (repo + "\n").getBytes(StandardCharsets.UTF_8), //$NON-NLS-1$
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+    }
+
+    private Path getReferencesPath(AnyLongObjectId id) {
+        Path path = getPath(id);
+        return path.resolveSibling(path.getFileName() + REFERENCES_SUFFIX);
+    }
+
+    private Path getColdPath(AnyLongObjectId id) {
+        return coldDir.resolve(dir.relativize(getPath(id)));
+    }
+
+    /**
+     * @return The path of the compressed file of an object if the path of
+     *         the object in a repository is that of its compressed file
+     */
+    private static Path toVariant(Path path, Path repoPath) {
+        return CompressingFileLfsRepository.isCompressedPath(repoPath)
+                ? CompressingFileLfsRepository.toCompressedPath(path)
+                : path;
+    }
+
+    private static void releaseIfUnlinked(Path target) throws IOException {
+        try {
+            //the link count is the number of references to the object, plus the shared store's
+            Object links = Files.getAttribute(target, "unix:nlink"); //$NON-NLS-1$
+            if (links instanceof Integer && ((Integer) links).intValue() == 1) {
+                Files.delete(target);
+            }
+        } catch (NoSuchFileException e) {
+            //not shared
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            //link counts unavailable on this file system: keep the object shared
+        }
+    }
+
+    private static void link(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        try {
+            Files.createLink(target, source);
+        } catch (FileAlreadyExistsException e) {
+            //same content, linked by another request
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            if (e instanceof NoSuchFileException) {
+                throw (NoSuchFileException) e;
+            }
+            LOG.debug("Cannot link " + target + " to " + source + ", copying it instead", e);
+            copy(source, target);
+        }
+    }
+
+    private static void copy(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp"); //$NON-NLS-1$
+        try {
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+}
@@ -0,0 +1,512 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * CompressingFileLfsRepository storing its objects in two tiers:
+ * a hot tier, the repository directory on fast local disk, in front of
+ * a cold tier, a directory on slower bulk storage with the same layout.
+ *
+ * New objects are stored in the hot tier, and objects are looked up in
+ * both tiers. A background mover demotes to the cold tier the objects which
+ * haven't been read for a while, as well as the least recently read ones
+ * when the hot tier exceeds its capacity, and promotes to the hot tier
+ * the objects read from the cold tier. Reads from the cold tier are served
+ * from there, the promotion doesn't delay them.
+ *
+ * The mover keeps the objects of the hot tier in memory, from a scan of
+ * the hot tier on its first run, then once a day to catch up with changes
+ * made behind its back; in between, the objects are added as they are
+ * stored or promoted, and removed as they are demoted.
+ *
+ * The time an object was last used, i.e. stored, read or promoted, is kept
+ * in the file system as the last access time of its file, set explicitly
+ * as it is read or promoted, so that the read history of the objects
+ * survives the restarts of the server and the evictions of the repository.
+ * The last modification time is left alone, as it is the Last-Modified
+ * time of the object served to the clients.
+ */
+public class TieredFileLfsRepository extends CompressingFileLfsRepository {
+
+    private static final Logger LOG = LoggerFactory
+            .getLogger(TieredFileLfsRepository.class);
+
+    static final Pattern OBJECT_FILE_NAME = Pattern.compile(
+            "[0-9a-f]{64}(" + Pattern.quote(COMPRESSED_SUFFIX) + ")?"); //$NON-NLS-1$ //$NON-NLS-2$
+
+    //time between two scans of the hot tier
+    private static final long SCAN_PERIOD = TimeUnit.DAYS.toMillis(1);
+
+    //minimum time between two updates of the last access time of an object being read
+    private static final long ACCESS_TIME_GRANULARITY = TimeUnit.MINUTES.toMillis(1);
+
+    /** Default time, in milliseconds, after which an object not read is demoted. */
+    public static final long DEFAULT_MAX_IDLE_TIME = TimeUnit.DAYS.toMillis(30);
+
+    //shared by the movers of all the tiered repositories
+    private static final ScheduledExecutorService MOVER_EXECUTOR =
+            Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "lfs-tier-mover"); //$NON-NLS-1$
+                thread.setDaemon(true);
+                return thread;
+            });
+
+    private final Path coldDir;
+    private volatile long hotCapacity;
+    private volatile long maxIdleTime = DEFAULT_MAX_IDLE_TIME;
+
+    //objects read from the cold tier, to be promoted
+    private final Set<LongObjectId> promotions = ConcurrentHashMap.newKeySet();
+    //objects of the hot tier, by path, and time of the last scan of the hot tier
+    private final Map<Path, HotObject> hotObjects = new ConcurrentHashMap<>();
+    private long lastScan;
+    private ScheduledFuture<?> mover;
+
+    private final LongAdder hotReads = new LongAdder();
+    private final LongAdder coldReads = new LongAdder();
+    private final LongAdder promoted = new LongAdder();
+    private final LongAdder demoted = new LongAdder();
+
+    /**
+     * @param url The external URL of this repository's objects.
+     * @param dir The storage directory of this repository, i.e. its hot tier.
+     * @param coldDir The directory of the cold tier of this repository,
+     *                or null for no cold tier.
+     *
+     * @throws IOException
+     */
+    public TieredFileLfsRepository(String url, Path dir, Path coldDir) throws IOException {
+        super(url, dir);
+        this.coldDir = coldDir == null ? null : Files.createDirectories(coldDir);
+    }
+
+    /**
+     * @return The directory of the cold tier, or null if there is none
+     */
+    public Path getColdDir() {
+        return coldDir;
+    }
+
+    /**
+     * Set the maximum total size of the objects of the hot tier,
+     * beyond which the least recently read objects are demoted.
+     *
+     * @param capacity The capacity in bytes, 0 for no limit.
+     */
+    public void setHotCapacity(long capacity) {
+        this.hotCapacity = capacity;
+    }
+
+    /**
+     * Set the time after which an object not read is demoted.
+     *
+     * @param millis The time in milliseconds, 0 to only demote beyond the hot tier capacity.
+     */
+    public void setMaxIdleTime(long millis) {
+        this.maxIdleTime = millis;
+    }
+
+    /**
+     * Start the background mover of the objects between the tiers,
+     * unless there is no cold tier.
+     *
+     * @param periodMillis The time between two runs of the mover, in milliseconds.
+     */
+    public synchronized void startMover(long periodMillis) {
+        if (coldDir != null && mover == null) {
+            mover = MOVER_EXECUTOR.scheduleWithFixedDelay(this::moveObjects,
+                    periodMillis, periodMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stop the background mover.
+     */
+    public synchronized void stopMover() {
+        if (mover != null) {
+            mover.cancel(false);
+            mover = null;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The path is in the tier storing the object; new objects are stored in the hot tier.
+     */
+    @Override
+    public Path getPath(AnyLongObjectId id) {
+        Path hot = super.getPath(id);
+        if (coldDir == null || existsIn(hot)) {
+            return hot;
+        }
+        Path cold = toColdPath(hot);
+        return existsIn(cold) ? cold : hot;
+    }
+
+    /**
+     * @return Whether a path is that of an object in the cold tier
+     */
+    public boolean isCold(Path path) {
+        return coldDir != null && path.startsWith(coldDir);
+    }
+
+    /**
+     * Record the read of an object from the given path,
+     * for the object to be promoted if it has been read from the cold tier,
+     * or kept in the hot tier if it has been read from there.
+     *
+     * @param id The object ID.
+     * @param path The path the object has been read from.
+     */
+    public void objectRead(AnyLongObjectId id, Path path) {
+        if (coldDir == null) {
+            return;
+        }
+        if (isCold(path)) {
+            coldReads.increment();
+            promotions.add(id.copy());
+        } else {
+            hotReads.increment();
+            touch(path);
+        }
+    }
+
+    /**
+     * Record the use of an object of the hot tier now, unless recorded
+     * less than {@link #ACCESS_TIME_GRANULARITY} ago.
+     */
+    private void touch(Path path) {
+        HotObject object = hotObjects.get(path);
+        if (object == null) {
+            object = readHotObject(path);
+        }
+        long now = System.currentTimeMillis();
+        if (object == null || now - object.lastUsed < ACCESS_TIME_GRANULARITY) {
+            return;
+        }
+        try {
+            setLastUsed(path, now);
+        } catch (NoSuchFileException e) {
+            //moved in the meantime
+            return;
+        } catch (IOException e) {
+            LOG.warn("Cannot set the last access time of " + path, e);
+            return;
+        }
+        hotObjects.computeIfPresent(path,
+                (hotPath, known) -> new HotObject(known.id, hotPath, known.size, now));
+    }
+
+    private static void setLastUsed(Path path, long time) throws IOException {
+        Files.getFileAttributeView(path, BasicFileAttributeView.class)
+             .setTimes(null, FileTime.fromMillis(time), null);
+    }
+
+    /**
+     * @return The number of object reads served from the hot tier
+     */
+    public long getHotReads() {
+        return hotReads.sum();
+    }
+
+    /**
+     * @return The number of object reads served from the cold tier
+     */
+    public long getColdReads() {
+        return coldReads.sum();
+    }
+
+    /**
+     * @return The ratio of the object reads served from the hot tier, 1 if none
+     */
+    public double getHitRate() {
+        long hot = hotReads.sum();
+        long total = hot + coldReads.sum();
+        return total == 0 ? 1 : (double) hot / total;
+    }
+
+    /**
+     * @return The number of objects promoted to the hot tier
+     */
+    public long getPromotedCount() {
+        return promoted.sum();
+    }
+
+    /**
+     * @return The number of objects demoted to the cold tier
+     */
+    public long getDemotedCount() {
+        return demoted.sum();
+    }
+
+    /**
+     * Move an object file from the hot tier to the cold tier,
+     * without the object ever being missing from both tiers.
+     *
+     * @param id The object ID.
+     * @param hotPath The path of the object, or of its compressed file, in the hot tier.
+     * @param coldPath The path of the same file in the cold tier.
+     *
+     * @throws IOException
+     */
+    protected void demote(AnyLongObjectId id, Path hotPath, Path coldPath) throws IOException {
+        move(hotPath, coldPath);
+    }
+
+    /**
+     * Move an object file from the cold tier to the hot tier,
+     * without the object ever being missing from both tiers.
+     *
+     * @param id The object ID.
+     * @param coldPath The path of the object, or of its compressed file, in the cold tier.
+     * @param hotPath The path of the same file in the hot tier.
+     *
+     * @throws IOException
+     */
+    protected void promote(AnyLongObjectId id, Path coldPath, Path hotPath) throws IOException {
+        move(coldPath, hotPath);
+    }
+
+    /**
+     * Called after an object has been demoted to the cold tier.
+     *
+     * @param id The object ID.
+     * @param hotPath The former path of the object, or of its compressed file, in the hot tier.
+     *
+     * @throws IOException
+     */
+    protected void objectDemoted(AnyLongObjectId id, Path hotPath) throws IOException {
+        //nothing to do by default
+    }
+
+    /**
+     * Called after an object has been promoted to the hot tier.
+     *
+     * @param id The object ID.
+     * @param hotPath The new path of the object, or of its compressed file, in the hot tier.
+     *
+     * @throws IOException
+     */
+    protected void objectPromoted(AnyLongObjectId id, Path hotPath) throws IOException {
+        //nothing to do by default
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * The object is added to the objects of the hot tier known to the mover.
+     */
+    @Override
+    protected void objectReady(AnyLongObjectId id) throws IOException {
+        hotObjectAdded(id);
+    }
+
+    /**
+     * Add an object to the objects of the hot tier known to the mover,
+     * e.g. once stored or linked into the hot tier.
+     */
+    void hotObjectAdded(AnyLongObjectId id) {
+        if (coldDir == null) {
+            return;
+        }
+        Path path = super.getPath(id);
+        for (Path hotPath : new Path[] {path, toCompressedPath(path)}) {
+            HotObject object = readHotObject(hotPath);
+            if (object != null) {
+                hotObjects.put(hotPath, object);
+            }
+        }
+    }
+
+    /**
+     * @return The number of objects of the hot tier known to the mover
+     */
+    int getHotObjectCount() {
+        return hotObjects.size();
+    }
+
+    /**
+     * A run of the mover: promote the objects read from the cold tier,
+     * then demote the idle objects and those beyond the hot tier capacity.
+     */
+    void moveObjects() {
+        long promotedBefore = promoted.sum();
+        long demotedBefore = demoted.sum();
+        try {
+            for (LongObjectId id : promotions) {
+                promotions.remove(id);
+                Path cold = toColdPath(super.getPath(id));
+                for (Path source : new Path[] {cold, toCompressedPath(cold)}) {
+                    if (Files.exists(source)) {
+                        Path target = toHotPath(source);
+                        promote(id, source, target);
+                        //the copied file keeps the times of the cold file
+                        setLastUsed(target, System.currentTimeMillis());
+                        promoted.increment();
+                        objectPromoted(id, target);
+                        HotObject object = readHotObject(target);
+                        if (object != null) {
+                            hotObjects.put(target, object);
+                        }
+                    }
+                }
+            }
+            demoteObjects();
+        } catch (IOException | RuntimeException e) {
+            LOG.error("Failed to move objects between the tiers of " + getDir(), e);
+        }
+        if (promoted.sum() != promotedBefore || demoted.sum() != demotedBefore) {
+            LOG.info("Tiered storage " + getDir() + ": hit rate " + Math.round(getHitRate() * 100)
+                     + "%, " + promoted.sum() + " objects promoted, " + demoted.sum() + " demoted");
+        }
+    }
+
+    private static class HotObject {
+        final LongObjectId id;
+        final Path path;
+        final long size;
+        //time of the last use of the object
+        final long lastUsed;
+
+        HotObject(LongObjectId id, Path path, long size, long lastUsed) {
+            this.id = id;
+            this.path = path;
+            this.size = size;
+            this.lastUsed = lastUsed;
+        }
+    }
+
+    /**
+     * @return The object of a file of the hot tier, or null if there is no such file
+     */
+    private static HotObject readHotObject(Path path) {
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            LongObjectId id = LongObjectId.fromString(path.getFileName().toString().substring(0, 64));
+            //a new object has only been modified, it is then read
+            return new HotObject(id, path, attrs.size(),
+                    Math.max(attrs.lastModifiedTime().toMillis(), attrs.lastAccessTime().toMillis()));
+        } catch (NoSuchFileException e) {
+            //deleted or moved in the meantime
+        } catch (IOException e) {
+            LOG.warn("Cannot read the attributes of " + path, e);
+        }
+        return null;
+    }
+
+    /**
+     * Scan the hot tier for its objects, replacing those known to the mover.
+     */
+    private void scanHotObjects() throws IOException {
+        Map<Path, HotObject> scanned = new HashMap<>();
+        try (Stream<Path> walk = Files.walk(getDir(), 3)) {
+            walk.filter(path -> OBJECT_FILE_NAME.matcher(path.getFileName().toString()).matches())
+                .forEach(path -> {
+                    HotObject object = readHotObject(path);
+                    if (object != null) {
+                        scanned.put(path, object);
+                    }
+                });
+        }
+        //keeping the objects added during the scan
+        hotObjects.keySet().removeIf(path -> !scanned.containsKey(path) && !Files.exists(path));
+        hotObjects.putAll(scanned);
+    }
+
+    private void demoteObjects() throws IOException {
+        long now = System.currentTimeMillis();
+        if (now - lastScan >= SCAN_PERIOD) {
+            scanHotObjects();
+            lastScan = now;
+        }
+        List<HotObject> objects = new ArrayList<>(hotObjects.values());
+        objects.sort(Comparator.comparingLong(object -> object.lastUsed));
+
+        long hotSize = objects.stream().mapToLong(object -> object.size).sum();
+        for (HotObject object : objects) {
+            boolean idle = maxIdleTime > 0 && now - object.lastUsed > maxIdleTime;
+            boolean overCapacity = hotCapacity > 0 && hotSize > hotCapacity;
+            if (!idle && !overCapacity) {
+                //the remaining objects have been used more recently
+                break;
+            }
+            hotObjects.remove(object.path);
+            hotSize -= object.size;
+            try {
+                demote(object.id, object.path, toColdPath(object.path));
+            } catch (NoSuchFileException e) {
+                //deleted or moved in the meantime
+                continue;
+            }
+            demoted.increment();
+            objectDemoted(object.id, object.path);
+        }
+    }
+
+    /**
+     * Move an object file between the tiers, which may be on different file systems,
+     * without the object ever being missing from both tiers.
+     */
+    private static void move(Path source, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp"); //$NON-NLS-1$
+        try {
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        Files.deleteIfExists(source);
+    }
+
+    private static boolean existsIn(Path path) {
+        return Files.exists(path) || Files.exists(toCompressedPath(path));
+    }
+
+    private Path toColdPath(Path hotPath) {
+        return coldDir.resolve(getDir().relativize(hotPath));
+    }
+
+    private Path toHotPath(Path coldPath) {
+        return getDir().resolve(coldDir.relativize(coldPath));
+    }
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import static org.apache.http.HttpStatus.SC_BAD_REQUEST;
+import static org.apache.http.HttpStatus.SC_CONFLICT;
+import static org.apache.http.HttpStatus.SC_NO_CONTENT;
+import static org.apache.http.HttpStatus.SC_OK;
+import static org.apache.http.HttpStatus.SC_PRECONDITION_FAILED;
+import static org.apache.http.HttpStatus.SC_UNSUPPORTED_MEDIA_TYPE;
+import static org.eclipse.jgit.util.HttpSupport.HDR_CACHE_CONTROL;
+import static org.eclipse.jgit.util.HttpSupport.HDR_CONTENT_TYPE;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+
+import com.github.chirontt.lfs.server.TusSupport;
+
+/**
+ * Server side of the tus resumable upload protocol for LFS objects.
+ *
+ * The bytes of an object received so far are kept in a partial file
+ * of the {@link PartialUploadStore}, so that an interrupted
+ * upload can be resumed from where it stopped: a HEAD request returns the
+ * current offset, and each PATCH request appends a chunk at that offset.
+ * The bytes received are hashed as they are written, the digest being kept
+ * between the requests, so that once all the bytes of the object have been
+ * received, the partial file is verified against the object ID (SHA-256)
+ * without reading it again, and moved into place.
+ *
+ * The digest of an upload is kept as long as its partial file: the digests
+ * of the uploads not resumed for a while are dropped by
+ * {@link #expireDigests(long)}, together with the partial files, see
+ * {@link PartialUploadStore#removeAbandoned(long)}. An upload resumed without
+ * its digest, e.g. after a restart of the server, has the bytes received so
+ * far hashed once from the partial file, before the rest is hashed chunk by chunk.
+ */
+class TusUploadHandler {
+
+    private static final String PARTIAL_SUFFIX = ".tus"; //$NON-NLS-1$
+
+    private final PartialUploadStore store;
+    //digests of the bytes received so far, kept between the requests of an upload
+    private final ConcurrentMap<LongObjectId, UploadDigest> uploadDigests =
+            new ConcurrentHashMap<>();
+
+    private static class UploadDigest {
+        final MessageDigest md = Constants.newMessageDigest();
+        //number of bytes hashed
+        long offset;
+        //time of the last chunk
+        volatile long lastUsed = System.currentTimeMillis();
+    }
+
+    TusUploadHandler(PartialUploadStore store) {
+        this.store = store;
+    }
+
+    static boolean isTusRequest(HttpServletRequest req) {
+        return req.getHeader(TusSupport.HDR_TUS_RESUMABLE) != null;
+    }
+
+    /**
+     * Report the offset at which the upload of an object is to be resumed.
+     */
+    void head(AnyLongObjectId oid, HttpServletRequest req, HttpServletResponse rsp)
+            throws IOException {
+        if (!checkVersion(req, rsp)) {
+            return;
+        }
+        long offset = store.getExistingSize(oid);
+        if (offset < 0) {
+            offset = getPartialSize(oid);
+        }
+        rsp.setHeader(TusSupport.HDR_TUS_RESUMABLE, TusSupport.TUS_VERSION);
+        rsp.setHeader(TusSupport.HDR_UPLOAD_OFFSET, Long.toString(offset));
+        String uploadLength = req.getHeader(TusSupport.HDR_UPLOAD_LENGTH);
+        if (uploadLength != null) {
+            rsp.setHeader(TusSupport.HDR_UPLOAD_LENGTH, uploadLength);
+        }
+        rsp.setHeader(HDR_CACHE_CONTROL, "no-store"); //$NON-NLS-1$
+        rsp.setStatus(SC_OK);
+    }
+
+    /**
+     * Append a chunk of an object at the given offset,
+     * and complete the upload once all the bytes of the object are received.
+     */
+    void patch(AnyLongObjectId oid, HttpServletRequest req, HttpServletResponse rsp)
+            throws IOException {
+        if (!checkVersion(req, rsp)) {
+            return;
+        }
+        String contentType = req.getContentType();
+        if (contentType == null
+                || !contentType.startsWith(TusSupport.CONTENTTYPE_OFFSET_OCTET_STREAM)) {
+            FileLfsContentServlet.sendError(rsp, SC_UNSUPPORTED_MEDIA_TYPE,
+                    "Expected " + HDR_CONTENT_TYPE + ": " + TusSupport.CONTENTTYPE_OFFSET_OCTET_STREAM);
+            return;
+        }
+        long offset = getLongHeader(req, TusSupport.HDR_UPLOAD_OFFSET);
+        long length = getLongHeader(req, TusSupport.HDR_UPLOAD_LENGTH);
+        if (offset < 0 || length < 0 || offset > length) {
+            FileLfsContentServlet.sendError(rsp, SC_BAD_REQUEST,
+                    "Missing or invalid " + TusSupport.HDR_UPLOAD_OFFSET
+                    + " or " + TusSupport.HDR_UPLOAD_LENGTH + " header");
+            return;
+        }
+        rsp.setHeader(TusSupport.HDR_TUS_RESUMABLE, TusSupport.TUS_VERSION);
+
+        long existingSize = store.getExistingSize(oid);
+        if (existingSize >= 0) {
+            //already uploaded, e.g. by another client
+            rsp.setHeader(TusSupport.HDR_UPLOAD_OFFSET, Long.toString(existingSize));
+            rsp.setStatus(SC_NO_CONTENT);
+            return;
+        }
+
+        Path partial = store.getPartialPath(oid, PARTIAL_SUFFIX);
+        long received;
+        try (FileChannel channel = FileChannel.open(partial,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            FileLock lock = tryLock(channel);
+            if (lock == null) {
+                FileLfsContentServlet.sendError(rsp, SC_CONFLICT,
+                        "Upload of object " + oid.getName() + " already in progress");
+                return;
+            }
+            long current = channel.size();
+            if (offset != current) {
+                rsp.setHeader(TusSupport.HDR_UPLOAD_OFFSET, Long.toString(current));
+                FileLfsContentServlet.sendError(rsp, SC_CONFLICT,
+                        TusSupport.HDR_UPLOAD_OFFSET + " " + offset
+                        + " doesn't match the current offset " + current);
+                return;
+            }
+            UploadDigest digest = getUploadDigest(oid, channel, current);
+            try {
+                received = appendChunk(req, channel, current, length, digest);
+            } finally {
+                //keep whatever was received, for the client to resume from there
+                channel.force(false);
+            }
+            if (received > length) {
+                channel.truncate(current);
+                FileLfsContentServlet.sendError(rsp, SC_BAD_REQUEST,
+                        "Upload exceeds " + TusSupport.HDR_UPLOAD_LENGTH + " " + length);
+                return;
+            }
+            //complete the upload while still holding the lock on the partial file
+            if (received == length) {
+                uploadDigests.remove(oid);
+                if (!store.complete(oid, partial, length, LongObjectId.fromRaw(digest.md.digest()))) {
+                    FileLfsContentServlet.sendError(rsp, SC_BAD_REQUEST,
+                            "Uploaded content doesn't match object " + oid.getName());
+                    return;
+                }
+            }
+        }
+        rsp.setHeader(TusSupport.HDR_UPLOAD_OFFSET, Long.toString(received));
+        rsp.setStatus(SC_NO_CONTENT);
+    }
+
+    /**
+     * Get the digest of the bytes received so far of an upload, hashing them
+     * from the partial file if the digest hasn't been kept up to the offset.
+     */
+    private UploadDigest getUploadDigest(AnyLongObjectId oid, FileChannel channel, long offset)
+            throws IOException {
+        UploadDigest digest = uploadDigests.get(oid);
+        if (digest == null || digest.offset != offset) {
+            //e.g. resumed after a restart of the server, or a chunk partly hashed
+            digest = new UploadDigest();
+            PartialUploadStore.hash(channel, digest.md, 0, offset);
+            digest.offset = offset;
+            uploadDigests.put(oid.copy(), digest);
+        }
+        digest.lastUsed = System.currentTimeMillis();
+        return digest;
+    }
+
+    /**
+     * Drop the digests of the uploads not resumed for the given time.
+     *
+     * @return The number of digests dropped
+     */
+    int expireDigests(long maxIdleMillis) {
+        long cutoff = System.currentTimeMillis() - maxIdleMillis;
+        int expired = 0;
+        for (Map.Entry<LongObjectId, UploadDigest> entry : uploadDigests.entrySet()) {
+            if (entry.getValue().lastUsed < cutoff
+                    && uploadDigests.remove(entry.getKey(), entry.getValue())) {
+                expired++;
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * @return The number of uploads whose digest is kept
+     */
+    int getDigestCount() {
+        return uploadDigests.size();
+    }
+
+    /**
+     * Append the request body to the partial file,
+     * and add the bytes written to the digest of the upload.
+     *
+     * @return The new size of the partial file; more than the upload length
+     *         if the client has sent too many bytes
+     */
+    private static long appendChunk(HttpServletRequest req, FileChannel channel,
+            long position, long length, UploadDigest digest) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+        byte[] bytes = buffer.array();
+        long pos = position;
+        try (InputStream in = req.getInputStream()) {
+            int n;
+            while ((n = in.read(bytes)) != -1) {
+                if (pos + n > length) {
+                    return pos + n;
+                }
+                buffer.clear().limit(n);
+                while (buffer.hasRemaining()) {
+                    pos += channel.write(buffer, pos);
+                }
+                digest.md.update(bytes, 0, n);
+                digest.offset = pos;
+            }
+        }
+        return pos;
+    }
+
+    private static FileLock tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            //locked by another request of this server
+            return null;
+        }
+    }
+
+    private static boolean checkVersion(HttpServletRequest req, HttpServletResponse rsp)
+            throws IOException {
+        if (!TusSupport.TUS_VERSION.equals(req.getHeader(TusSupport.HDR_TUS_RESUMABLE))) {
+            rsp.setHeader("Tus-Version", TusSupport.TUS_VERSION); //$NON-NLS-1$
+            FileLfsContentServlet.sendError(rsp, SC_PRECONDITION_FAILED,
+                    "Unsupported tus version " + req.getHeader(TusSupport.HDR_TUS_RESUMABLE));
+            return false;
+        }
+        return true;
+    }
+
+    private static long getLongHeader(HttpServletRequest req, String name) {
+        String value = req.getHeader(name);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private long getPartialSize(AnyLongObjectId oid) throws IOException {
+        try {
+            return Files.size(store.getPartialPath(oid, PARTIAL_SUFFIX));
+        } catch (NoSuchFileException e) {
+            return 0;
+        }
+    }
+
+}
@@ -72,6 +72,12 @@ public abstract class LfsFileLockingProtocolServlet extends HttpServlet {
     private static final Logger LOG = LoggerFactory
             .getLogger(LfsFileLockingProtocolServlet.class);
 
+    /** Number of locks in a page of locks if the client gives no limit. */
+    public static final int DEFAULT_PAGE_SIZE = 100;
+
+    /** Maximum number of locks in a page of locks, whatever the limit given by the client. */
+    public static final int MAX_PAGE_SIZE = 1000;
+
     protected abstract LockManager getLockManager() throws LfsException;
 
     protected abstract RepositoryAccessor getRepositoryAccessor(String path)
@@ -92,6 +98,17 @@ public abstract class LfsFileLockingProtocolServlet extends HttpServlet {
         }
     }
 
+    /**
+     * @param limit The maximum number of locks in a page requested by the client,
+     *              0 or less if none.
+     *
+     * @return The number of locks in the page, bounded whatever the client requests,
+     *         the next page being given by the cursor of the response
+     */
+    static int getPageSize(int limit) {
+        return limit <= 0 ? DEFAULT_PAGE_SIZE : Math.min(limit, MAX_PAGE_SIZE);
+    }
+
     /** {@inheritDoc} */
     @Override
     protected void doGet(HttpServletRequest req, HttpServletResponse resp)
@@ -114,7 +131,7 @@ public abstract class LfsFileLockingProtocolServlet extends HttpServlet {
             if (pathInfo != null) {
                 throw new LfsException("Invalid path info in the GET request: " + pathInfo);
             }
-            int limit = 0; //default is no limit
+            int limit = 0; //the default page size
             if (limitStr != null && !limitStr.isEmpty()) {
                 try {
                     limit = Integer.parseInt(limitStr);
@@ -122,6 +139,7 @@ public abstract class LfsFileLockingProtocolServlet extends HttpServlet {
                     throw new LfsException("Invalid limit parameter in the GET request: " + limitStr);
                 }
             }
+            limit = getPageSize(limit);
             checkAccessToMainRepository(LfsFileLockingRequest.LockAction.LIST_LOCKS,
                     refspec, getUsername(req));
             LockManager lockManager = getLockManager();
@@ -190,7 +208,7 @@ public abstract class LfsFileLockingProtocolServlet extends HttpServlet {
                 LOG.debug(String.format("Retrieving locks for verification, with cursor=%1$s, limit=%2$d, refspec=%3$s, username=%4$s",
                         listLocksToVerify.getCursor(), listLocksToVerify.getLimit(), refName, username));
                 LocksToVerify locksToVerify = lockManager.listLocksToVerify(refName, username,
-                        listLocksToVerify.getCursor(), listLocksToVerify.getLimit());
+                        listLocksToVerify.getCursor(), getPageSize(listLocksToVerify.getLimit()));
                 resp.setStatus(SC_OK);
                 LfsGson.toJson(locksToVerify, w);
             } else {
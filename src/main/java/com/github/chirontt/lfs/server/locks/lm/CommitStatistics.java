@@ -0,0 +1,79 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Statistics of the commit batches of a lock journal,
+ * i.e. how many records each durable flush (fsync) has covered.
+ */
+public class CommitStatistics {
+
+    private final LongAdder batchCount = new LongAdder();
+    private final LongAdder recordCount = new LongAdder();
+    private final LongAccumulator maxBatchSize = new LongAccumulator(Long::max, 0);
+    private final AtomicLong flushNanos = new AtomicLong();
+
+    void recordBatch(int records, long elapsedNanos) {
+        batchCount.increment();
+        recordCount.add(records);
+        maxBatchSize.accumulate(records);
+        flushNanos.addAndGet(elapsedNanos);
+    }
+
+    /**
+     * @return The number of durable flushes
+     */
+    public long getBatchCount() {
+        return batchCount.sum();
+    }
+
+    /**
+     * @return The number of records made durable by all the flushes
+     */
+    public long getRecordCount() {
+        return recordCount.sum();
+    }
+
+    /**
+     * @return The largest number of records made durable by a single flush
+     */
+    public long getMaxBatchSize() {
+        return maxBatchSize.get();
+    }
+
+    /**
+     * @return The average number of records made durable by a flush
+     */
+    public double getAverageBatchSize() {
+        long batches = getBatchCount();
+        return batches == 0 ? 0 : (double) getRecordCount() / batches;
+    }
+
+    /**
+     * @return The average time, in milliseconds, spent writing and flushing a batch
+     */
+    public double getAverageFlushMillis() {
+        long batches = getBatchCount();
+        return batches == 0 ? 0 : flushNanos.get() / 1_000_000.0 / batches;
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "batches=%1$d, records=%2$d, maxBatchSize=%3$d, avgBatchSize=%4$.2f, avgFlushMillis=%5$.3f",
+                             getBatchCount(), getRecordCount(), getMaxBatchSize(),
+                             getAverageBatchSize(), getAverageFlushMillis());
+    }
+
+}
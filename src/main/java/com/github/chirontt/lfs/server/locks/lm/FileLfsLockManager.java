@@ -17,6 +17,7 @@ import java.io.StringWriter;
 import java.nio.channels.FileChannel;
 import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -26,16 +27,16 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
 import java.util.stream.Stream;
 
 import org.eclipse.jgit.lfs.errors.LfsException;
 import org.eclipse.jgit.lfs.server.internal.LfsGson;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 
 import com.github.chirontt.lfs.server.LfsRef;
+import com.github.chirontt.lfs.server.RepositoryRegistry;
+import com.github.chirontt.lfs.server.StripedLock;
 import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.CreatedOrDeletedLock;
 import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Lock;
 import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Locks;
@@ -49,17 +50,24 @@ import com.github.chirontt.lfs.server.locks.errors.LfsUnauthorized;
 /**
  * An implementation of {@link LockManager} which persists the LFS locks
  * to the file system.
+ *
+ * The index update and the lock file write/delete of a lock are done
+ * under the same lock, striped by lock ID, so that the index and
+ * the lock files cannot get out of step with each other.
  */
 public class FileLfsLockManager implements LockManager {
 
+    private final StripedLock stripes = new StripedLock();
     private Path locksPath;
-    private FileRepositoryBuilder repositoryBuilder;
+    private Path repoPath;
+    private RefTreeCache refTreeCache = RefTreeCache.SHARED;
+    //in-memory index of the lock files, kept in sync with the locks directory
+    private LockIndex lockIndex = new LockIndex();
 
-    public FileLfsLockManager(Path lfsPath, Path repoPath) {
+    public FileLfsLockManager(Path lfsPath, Path repoPath) throws IOException {
         this.locksPath = Paths.get(lfsPath.toString(), "locks");
-        this.repositoryBuilder =
-                new FileRepositoryBuilder().setGitDir(repoPath.toFile())
-                                           .setMustExist(true);
+        this.repoPath = repoPath;
+        loadLockIndex();
     }
 
     /** {@inheritDoc} */
@@ -81,22 +89,9 @@ public class FileLfsLockManager implements LockManager {
         }
 
     	//create the lock ID from its path property
-        String id = Base64.getUrlEncoder().encodeToString(path.getBytes(StandardCharsets.UTF_8));
-
-        Lock lock = null;
-        try {
-            lock = readLock(id);
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new LfsException("Failed to create lock. Reason: " + e.getMessage());
-        }
-        if (lock != null) {
-            String error = MessageFormat
-                    .format(LfsFileLockingText.get().lockExistsForPath, path);
-            throw new LfsLockExists(error, lock);
-        }
+        String id = LockUtils.toLockId(path);
 
-        lock = new Lock();
+        Lock lock = new Lock();
         lock.setId(id);
         lock.setPath(path);
         if (username != null && !username.isEmpty()) {
@@ -113,11 +108,41 @@ public class FileLfsLockManager implements LockManager {
             LfsRef ref = new LfsRef(refName);
             persistentLock.setRef(ref);
         }
+        //atomically claim the lock ID, so that exactly one of
+        //concurrent requests for the same path creates the lock
+        stripes.lock(id);
         try {
-            writeLock(persistentLock);
-        } catch (IOException e) {
-            e.printStackTrace();
-            throw new LfsException("Failed to create lock. Reason: " + e.getMessage());
+            PersistentLock existingLock = lockIndex.putIfAbsent(persistentLock);
+            if (existingLock != null) {
+                String error = MessageFormat
+                        .format(LfsFileLockingText.get().lockExistsForPath, path);
+                throw new LfsLockExists(error, existingLock.copyToLock());
+            }
+            try {
+                writeLock(persistentLock);
+            } catch (FileAlreadyExistsException e) {
+                //a lock file not known to the index, e.g. left by another process:
+                //adopt it, so that it is listed and can be deleted
+                lockIndex.remove(id, persistentLock);
+                PersistentLock lockOnDisk = null;
+                try {
+                    lockOnDisk = readPersistentLock(id);
+                } catch (IOException | RuntimeException ex) {
+                    e.addSuppressed(ex);
+                }
+                if (lockOnDisk != null && id.equals(lockOnDisk.getId())) {
+                    lockIndex.putIfAbsent(lockOnDisk);
+                }
+                String error = MessageFormat
+                        .format(LfsFileLockingText.get().lockExistsForPath, path);
+                throw new LfsLockExists(error, lockOnDisk == null ? lock : lockOnDisk.copyToLock());
+            } catch (IOException e) {
+                lockIndex.remove(id, persistentLock);
+                e.printStackTrace();
+                throw new LfsException("Failed to create lock. Reason: " + e.getMessage());
+            }
+        } finally {
+            stripes.unlock(id);
         }
 
         return new CreatedOrDeletedLock(lock);
@@ -127,12 +152,21 @@ public class FileLfsLockManager implements LockManager {
     @Override
     public Locks listLocks(String path, String id, String cursor, int limit, String refspec)
             throws LfsException {
-        try {
-            List<Lock> lockList = getLocks(path, id, cursor, limit, refspec);
+        if ((id != null && !id.isEmpty()) || (path != null && !path.isEmpty())) {
+            //lookup of a single lock
+            PersistentLock lock = (id != null && !id.isEmpty()) ? lockIndex.get(id)
+                                                                : lockIndex.getByPath(path);
+            List<Lock> lockList = new ArrayList<>();
+            if (lock != null && lockMatched(lock, path, refspec)) {
+                lockList.add(lock.copyToLock());
+            }
             return new Locks(lockList, null);
-        } catch (IOException e) {
-            throw new LfsException("Failed to retrieve the lock list. Reason: " + e.getMessage());
         }
+
+        LockIndex.Page page = lockIndex.page(refspec, cursor, limit);
+        List<Lock> lockList = new ArrayList<>(page.locks.size());
+        page.locks.forEach( lock -> lockList.add(lock.copyToLock()) );
+        return new Locks(lockList, page.nextCursor);
     }
 
     /** {@inheritDoc} */
@@ -140,16 +174,12 @@ public class FileLfsLockManager implements LockManager {
     public CreatedOrDeletedLock deleteLock(String id, String refName, String username, boolean force)
             throws LfsException {
         Lock lock = null;
-        try {
-            PersistentLock pLock = readPersistentLock(id);
-            if (pLock != null && 
-                (lockMatched(pLock, null, refName) || force)) {
-                lock = pLock.copyToLock();
-            } else {
-                throw new LfsException("Lock doesn't exist for deletion");
-            }
-        } catch (IOException e) {
-            throw new LfsException("Failed to delete lock. Reason: " + e.getMessage());
+        PersistentLock pLock = lockIndex.get(id);
+        if (pLock != null && 
+            (lockMatched(pLock, null, refName) || force)) {
+            lock = pLock.copyToLock();
+        } else {
+            throw new LfsException("Lock doesn't exist for deletion");
         }
         if (!force) {
             Owner owner = lock.getOwner();
@@ -160,11 +190,21 @@ public class FileLfsLockManager implements LockManager {
             }
         }
 
-        //remove the lock from persistence storage
+        //remove the lock from persistence storage,
+        //unless a concurrent request has already removed it
+        stripes.lock(id);
         try {
-            deleteLock(lock);
-        } catch (IOException e) {
-            throw new LfsException("Failed to delete lock. Reason: " + e.getMessage());
+            if (!lockIndex.remove(id, pLock)) {
+                throw new LfsException("Lock doesn't exist for deletion");
+            }
+            try {
+                deleteLock(lock);
+            } catch (IOException e) {
+                lockIndex.putIfAbsent(pLock);
+                throw new LfsException("Failed to delete lock. Reason: " + e.getMessage());
+            }
+        } finally {
+            stripes.unlock(id);
         }
 
         return new CreatedOrDeletedLock(lock);
@@ -174,23 +214,9 @@ public class FileLfsLockManager implements LockManager {
     @Override
     public LocksToVerify listLocksToVerify(String refName, String username, String cursor, int limit)
             throws LfsException {
-        List<Lock> matchingLocks = new ArrayList<>();
-        if (Files.exists(locksPath)) {
-            try (Stream<Path> stream = Files.list(locksPath)) {
-                stream.forEach( lockPath -> {
-                    try {
-                        PersistentLock lock = readPersistentLock(lockPath.getFileName().toString());
-                        if (lockMatched(lock, null, refName)) {
-                            matchingLocks.add(lock.copyToLock());
-                        }
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-                });
-            } catch (IOException e) {
-                throw new LfsException("Failed to retrieve the locks for verification. Reason: " + e.getMessage());
-            }
-        }
+        LockIndex.Page page = lockIndex.page(refName, cursor, limit);
+        List<Lock> matchingLocks = new ArrayList<>(page.locks.size());
+        page.locks.forEach( lock -> matchingLocks.add(lock.copyToLock()) );
 
         //split the matching lock list to ours and theirs
         List<Lock> ours = new ArrayList<>();
@@ -215,6 +241,7 @@ public class FileLfsLockManager implements LockManager {
         LocksToVerify locks = new LocksToVerify();
         locks.setOurs(ours);
         locks.setTheirs(theirs);
+        locks.setNextCursor(page.nextCursor);
         return locks;
     }
 
@@ -226,33 +253,30 @@ public class FileLfsLockManager implements LockManager {
         return true;
     }
 
-    private List<Lock> getLocks(String path, String id, String cursor, int limit, String refspec)
-            throws IOException {
-        List<Lock> locks = new ArrayList<>();
-        if (id != null && !id.isEmpty()) {
-            PersistentLock lock = readPersistentLock(id);
-            if (lock != null && lockMatched(lock, path, refspec)) {
-                locks.add(lock.copyToLock());
-            }
-        } else {
-            if (Files.exists(locksPath)) {
-                try (Stream<Path> stream = Files.list(locksPath)) {
-                    stream.forEach( lockPath -> {
-                        try {
-                    	    PersistentLock lock = readPersistentLock(lockPath.getFileName().toString());
-                    	    if (lockMatched(lock, path, refspec)) {
-                                locks.add(lock.copyToLock());
-                    	    }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
-                    });
+    /**
+     * Build the in-memory lock index from the lock files in the locks directory.
+     * This is the only time the whole locks directory is scanned; afterwards
+     * the index is kept in sync with every lock creation and deletion.
+     * 
+     * @throws IOException
+     */
+    private void loadLockIndex() throws IOException {
+        if (!Files.exists(locksPath)) return;
+
+        try (Stream<Path> stream = Files.list(locksPath)) {
+            stream.forEach( lockPath -> {
+                try {
+                    PersistentLock lock = readPersistentLock(lockPath.getFileName().toString());
+                    if (lock != null) {
+                        lockIndex.put(lock);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
                 }
-            }
+            });
         }
-        return locks;
     }
-    
+
     private boolean lockMatched(PersistentLock lock, String path, String refspec) {
         //does any of the criteria fail to match?
         if (path != null && !path.isEmpty() && !path.equals(lock.getPath())) {
@@ -268,15 +292,6 @@ public class FileLfsLockManager implements LockManager {
         return true;
     }
 
-    private Lock readLock(String id) throws IOException {
-        String json = readPersistentLockToJson(id);
-        if (json == null) return null;
-
-        StringReader reader = new StringReader(json);
-        Lock lock = LfsGson.fromJson(reader, Lock.class);
-        return lock;
-    }
-
     private PersistentLock readPersistentLock(String id) throws IOException {
         String json = readPersistentLockToJson(id);
         if (json == null) return null;
@@ -303,7 +318,7 @@ public class FileLfsLockManager implements LockManager {
 
         File lockFile = Paths.get(locksPath.toString(), lock.getId()).toFile();
         if (!lockFile.createNewFile()) {
-            throw new IOException("Lock file already exists!");
+            throw new FileAlreadyExistsException(lockFile.toString(), null, "Lock file already exists!");
         }
 	 
         //write the lock contents to file while locking it
@@ -338,8 +353,8 @@ public class FileLfsLockManager implements LockManager {
      */
     private boolean isPathPresentForRef(String refSpec, String path)
             throws IOException {
-        try (Repository repo = repositoryBuilder.build()) {
-            return LockUtils.isPathPresentForRef(repo, refSpec, path);
+        try (Repository repo = RepositoryRegistry.open(repoPath)) {
+            return refTreeCache.isPathPresentForRef(repo, refSpec, path);
         }
     }
 
@@ -0,0 +1,383 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.text.MessageFormat;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+
+import com.google.gson.JsonParseException;
+
+import org.eclipse.jgit.lfs.errors.LfsException;
+import org.eclipse.jgit.lfs.server.internal.LfsGson;
+import org.eclipse.jgit.lib.Repository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.CreatedOrDeletedLock;
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Lock;
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Locks;
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.LocksToVerify;
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Owner;
+import com.github.chirontt.lfs.server.locks.errors.LfsLockExists;
+import com.github.chirontt.lfs.server.locks.errors.LfsUnauthorized;
+import com.github.chirontt.lfs.server.locks.internal.LfsFileLockingText;
+import com.github.chirontt.lfs.server.LfsRef;
+import com.github.chirontt.lfs.server.RepositoryRegistry;
+import com.github.chirontt.lfs.server.StripedLock;
+import com.github.chirontt.lfs.server.locks.LockManager;
+
+/**
+ * An implementation of {@link LockManager} which keeps the LFS locks
+ * in memory, and persists the lock creation/deletion events
+ * to an append-only journal in the file system.
+ *
+ * The journal is replayed on start-up to restore the locks,
+ * and is compacted from time to time to keep the replay fast.
+ *
+ * Optionally, the journal runs in group-commit mode, where concurrent
+ * lock creations/deletions arriving within a short flush interval are
+ * made durable together with a single fsync; each of them returns
+ * only once its batch is on disk.
+ *
+ * The journaling of a lock creation/deletion is done under a lock,
+ * striped by lock ID, so that the records of a lock are journaled
+ * in the order its updates were made. The index of the locks is only
+ * updated once a record is durable, so that a lock whose creation
+ * could still be rolled back is never listed; until then, the lock ID
+ * is claimed by the pending creation/deletion.
+ *
+ * When the journal doesn't exist yet, it is created with the locks found
+ * in the lock files of {@link FileLfsLockManager}, if any, so that the lock
+ * manager can replace it without losing the existing locks. The lock files
+ * are left as they are, but aren't updated from then on.
+ */
+public class JournalLfsLockManager implements LockManager, Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(JournalLfsLockManager.class);
+
+    private static final String JOURNAL_FILE = "locks.journal";
+    private static final String LOCKS_DIR = "locks";
+
+    //the durable locks, only updated by the journal
+    private LockIndex lockIndex = new LockIndex();
+    //the locks whose creation or deletion is not durable yet, by lock ID
+    private final Map<String, PersistentLock> pendingLocks = new ConcurrentHashMap<>();
+    private LockJournal journal;
+    private Path repoPath;
+    private RefTreeCache refTreeCache = RefTreeCache.SHARED;
+    private final StripedLock stripes = new StripedLock();
+
+    public JournalLfsLockManager(Path lfsPath, Path repoPath) throws IOException {
+        this(lfsPath, repoPath, 0, 1);
+    }
+
+    /**
+     * Create a lock manager whose journal runs in group-commit mode.
+     * 
+     * @param lfsPath Path to the LFS storage of the repository.
+     * @param repoPath Path to the git repository.
+     * @param flushIntervalMillis How long to wait for more lock creations/deletions
+     *                            to join a commit batch; 0 turns group commit off.
+     * @param maxBatchSize Maximum number of lock creations/deletions in a commit batch.
+     * 
+     * @throws IOException if the journal cannot be replayed or opened
+     */
+    public JournalLfsLockManager(Path lfsPath, Path repoPath, long flushIntervalMillis, int maxBatchSize)
+            throws IOException {
+        this.repoPath = repoPath;
+        this.journal = new LockJournal(lfsPath.resolve(JOURNAL_FILE), lockIndex,
+                                       flushIntervalMillis, maxBatchSize);
+        if (!journal.exists()) {
+            importLockFiles(lfsPath.resolve(LOCKS_DIR));
+        }
+        journal.open( record -> {
+            if (LockJournal.CREATE.equals(record.op) && record.lock != null) {
+                lockIndex.put(record.lock);
+            } else if (LockJournal.DELETE.equals(record.op)) {
+                lockIndex.remove(record.id);
+            }
+        });
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CreatedOrDeletedLock createLock(String path, String refName, String username)
+            throws LfsException {
+        //sanity check for path
+        if (path == null || path.isEmpty()) {
+            throw new LfsException("Invalid path: " + path);
+        }
+        //check that the path actually exists for the ref in the repository
+        //before any lock creation
+        try {
+            if (!isPathPresentForRef(refName, path)) {
+                throw new LfsException("Path '" + path + "' doesn't exist for ref '" + refName + "' in the repository.");
+            }
+        } catch (IOException e) {
+            throw new LfsException(e.getMessage());
+        }
+
+    	//create the lock ID from its path property
+        String id = LockUtils.toLockId(path);
+
+        Lock lock = new Lock();
+        lock.setId(id);
+        lock.setPath(path);
+        if (username != null && !username.isEmpty()) {
+            Owner owner = new Owner(username);
+            lock.setOwner(owner);
+        }
+        //set the lock timestamp
+        ZonedDateTime zdt = ZonedDateTime.now(ZoneOffset.systemDefault()).truncatedTo(ChronoUnit.SECONDS);
+        lock.setLockedAt(zdt.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME));
+
+        //persist the lock
+        PersistentLock persistentLock = new PersistentLock(lock);
+        if (refName != null && !refName.isEmpty()) {
+            LfsRef ref = new LfsRef(refName);
+            persistentLock.setRef(ref);
+        }
+        //atomically claim the lock ID, so that exactly one of
+        //concurrent requests for the same path creates the lock
+        LockJournal.Append append;
+        stripes.lock(id);
+        try {
+            PersistentLock existingLock = pendingLocks.get(id);
+            if (existingLock == null) {
+                existingLock = lockIndex.get(id);
+            }
+            if (existingLock != null) {
+                String error = MessageFormat
+                        .format(LfsFileLockingText.get().lockExistsForPath, path);
+                throw new LfsLockExists(error, existingLock.copyToLock());
+            }
+            try {
+                append = journal.enqueue(LockJournal.Record.create(persistentLock));
+            } catch (IOException e) {
+                e.printStackTrace();
+                throw new LfsException("Failed to create lock. Reason: " + e.getMessage());
+            }
+            pendingLocks.put(id, persistentLock);
+        } finally {
+            stripes.unlock(id);
+        }
+        //wait for the record to be durable, and the lock indexed, outside the stripe,
+        //so that it can join the same batch as other locks' records
+        try {
+            append.await();
+        } catch (IOException e) {
+            e.printStackTrace();
+            throw new LfsException("Failed to create lock. Reason: " + e.getMessage());
+        } finally {
+            stripes.lock(id);
+            try {
+                pendingLocks.remove(id, persistentLock);
+            } finally {
+                stripes.unlock(id);
+            }
+        }
+
+        return new CreatedOrDeletedLock(lock);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public Locks listLocks(String path, String id, String cursor, int limit, String refspec)
+            throws LfsException {
+        if ((id != null && !id.isEmpty()) || (path != null && !path.isEmpty())) {
+            //lookup of a single lock
+            PersistentLock lock = (id != null && !id.isEmpty()) ? lockIndex.get(id)
+                                                                : lockIndex.getByPath(path);
+            List<Lock> lockList = new ArrayList<>();
+            if (lock != null && lockMatched(lock, path, refspec)) {
+                lockList.add(lock.copyToLock());
+            }
+            return new Locks(lockList, null);
+        }
+
+        LockIndex.Page page = lockIndex.page(refspec, cursor, limit);
+        List<Lock> lockList = new ArrayList<>(page.locks.size());
+        page.locks.forEach( lock -> lockList.add(lock.copyToLock()) );
+        return new Locks(lockList, page.nextCursor);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public CreatedOrDeletedLock deleteLock(String id, String refName, String username, boolean force)
+            throws LfsException {
+        Lock lock = null;
+        PersistentLock pLock = lockIndex.get(id);
+        if (pLock != null && 
+            (lockMatched(pLock, null, refName) || force)) {
+            lock = pLock.copyToLock();
+        } else {
+            throw new LfsException("Lock doesn't exist for deletion");
+        }
+        if (!force) {
+            Owner owner = lock.getOwner();
+            String ownerName = owner == null ? null : owner.getName();
+            if ((ownerName != null && !ownerName.equals(username)) ||
+                (username != null && !username.equals(ownerName))) {
+                throw new LfsUnauthorized("delete lock", lock.getPath());
+            }
+        }
+
+        //remove the lock from persistence storage,
+        //unless a concurrent request has already removed it
+        LockJournal.Append append;
+        stripes.lock(id);
+        try {
+            if (pendingLocks.containsKey(id) || lockIndex.get(id) != pLock) {
+                throw new LfsException("Lock doesn't exist for deletion");
+            }
+            try {
+                append = journal.enqueue(LockJournal.Record.delete(id));
+            } catch (IOException e) {
+                throw new LfsException("Failed to delete lock. Reason: " + e.getMessage());
+            }
+            //the lock stays listed, and claimed, until its deletion is durable
+            pendingLocks.put(id, pLock);
+        } finally {
+            stripes.unlock(id);
+        }
+        try {
+            append.await();
+        } catch (IOException e) {
+            throw new LfsException("Failed to delete lock. Reason: " + e.getMessage());
+        } finally {
+            stripes.lock(id);
+            try {
+                pendingLocks.remove(id, pLock);
+            } finally {
+                stripes.unlock(id);
+            }
+        }
+
+        return new CreatedOrDeletedLock(lock);
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public LocksToVerify listLocksToVerify(String refName, String username, String cursor, int limit)
+            throws LfsException {
+        LockIndex.Page page = lockIndex.page(refName, cursor, limit);
+        List<Lock> matchingLocks = new ArrayList<>(page.locks.size());
+        page.locks.forEach( lock -> matchingLocks.add(lock.copyToLock()) );
+
+        //split the matching lock list to ours and theirs
+        List<Lock> ours = new ArrayList<>();
+        List<Lock> theirs = new ArrayList<>();
+        matchingLocks.forEach( lock -> {
+            Owner owner = lock.getOwner();
+            if (username == null) {
+                if (owner == null) {
+                    ours.add(lock);
+                } else {
+                    theirs.add(lock);
+                }
+            } else if (owner == null) {
+                theirs.add(lock);
+            } else if (username.equals(owner.getName())) {
+                ours.add(lock);
+            } else {
+                theirs.add(lock);
+            }
+        });
+
+        LocksToVerify locks = new LocksToVerify();
+        locks.setOurs(ours);
+        locks.setTheirs(theirs);
+        locks.setNextCursor(page.nextCursor);
+        return locks;
+    }
+
+    /**
+     * Every user is a lock administrator, in this implementation!
+     */
+    @Override
+    public boolean isLockAdministrator(String username) throws LfsException {
+        return true;
+    }
+
+    /**
+     * @return The statistics of the journal's commit batches
+     */
+    public CommitStatistics getCommitStatistics() {
+        return journal.getStatistics();
+    }
+
+    @Override
+    public void close() throws IOException {
+        journal.close();
+    }
+
+    /**
+     * Create the journal with the locks of the given lock files, if any.
+     */
+    private void importLockFiles(Path locksPath) throws IOException {
+        if (!Files.isDirectory(locksPath)) return;
+
+        List<PersistentLock> locks = new ArrayList<>();
+        try (Stream<Path> stream = Files.list(locksPath)) {
+            for (Path lockPath : (Iterable<Path>) stream::iterator) {
+                String json = new String(Files.readAllBytes(lockPath), StandardCharsets.UTF_8);
+                try {
+                    PersistentLock lock = LfsGson.fromJson(new StringReader(json), PersistentLock.class);
+                    if (lock != null && lock.getId() != null) {
+                        locks.add(lock);
+                    }
+                } catch (JsonParseException e) {
+                    LOG.warn("Skipped malformed lock file " + lockPath, e);
+                }
+            }
+        }
+        if (!locks.isEmpty()) {
+            journal.create(locks);
+            LOG.info("Imported " + locks.size() + " locks from " + locksPath);
+        }
+    }
+
+    private boolean isPathPresentForRef(String refSpec, String path)
+            throws IOException {
+        try (Repository repo = RepositoryRegistry.open(repoPath)) {
+            return refTreeCache.isPathPresentForRef(repo, refSpec, path);
+        }
+    }
+
+    private boolean lockMatched(PersistentLock lock, String path, String refspec) {
+        //does any of the criteria fail to match?
+        if (path != null && !path.isEmpty() && !path.equals(lock.getPath())) {
+            return false;
+        }
+        if (refspec != null && !refspec.isEmpty()) {
+            LfsRef ref = lock.getRef();
+            if (ref == null || !refspec.equals(ref.getName())) {
+                return false;
+            }
+        }
+    	
+        return true;
+    }
+
+}
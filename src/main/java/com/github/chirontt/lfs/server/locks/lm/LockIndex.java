@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.github.chirontt.lfs.server.LfsRef;
+import com.github.chirontt.lfs.server.StripedLock;
+
+/**
+ * In-memory index of LFS locks, sorted by lock ID, with a secondary
+ * index of the locks belonging to each refspec.
+ *
+ * The lock files remain the only persistent state: the index isn't
+ * stored on disk, but rebuilt from the lock directory when the lock
+ * manager is created, which costs a single directory scan at startup
+ * and spares keeping a second on-disk structure in sync with the files.
+ *
+ * Lookups by lock ID (and hence by path, as the lock ID is derived
+ * from the path) are O(log n), and listing a page of locks costs
+ * O(log n + page size) regardless of the total number of locks.
+ *
+ * Updates are linearizable per lock ID: {@link #putIfAbsent(PersistentLock)}
+ * and {@link #remove(String, PersistentLock)} let exactly one of several
+ * concurrent callers win for a given path, while striped locks keyed
+ * by lock ID keep the secondary index consistent without a global mutex.
+ */
+class LockIndex {
+
+    private final ConcurrentNavigableMap<String, PersistentLock> locksById =
+            new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, ConcurrentNavigableMap<String, PersistentLock>> locksByRef =
+            new ConcurrentHashMap<>();
+    //ConcurrentSkipListMap.size() is O(n), so the number of locks is tracked separately
+    private final AtomicInteger lockCount = new AtomicInteger();
+    private final StripedLock stripes = new StripedLock();
+
+    /**
+     * A page of locks, in lock ID order.
+     */
+    static class Page {
+        final List<PersistentLock> locks;
+        //ID of the first lock of the next page, or null if this is the last page
+        final String nextCursor;
+
+        Page(List<PersistentLock> locks, String nextCursor) {
+            this.locks = locks;
+            this.nextCursor = nextCursor;
+        }
+    }
+
+    PersistentLock get(String id) {
+        if (id == null || id.isEmpty()) return null;
+        return locksById.get(id);
+    }
+
+    PersistentLock getByPath(String path) {
+        if (path == null || path.isEmpty()) return null;
+        return locksById.get(LockUtils.toLockId(path));
+    }
+
+    void put(PersistentLock lock) {
+        stripes.lock(lock.getId());
+        try {
+            PersistentLock previous = locksById.put(lock.getId(), lock);
+            if (previous == null) {
+                lockCount.incrementAndGet();
+            } else {
+                removeFromRefIndex(previous);
+            }
+            addToRefIndex(lock);
+        } finally {
+            stripes.unlock(lock.getId());
+        }
+    }
+
+    /**
+     * Add the lock, unless a lock with the same ID already exists.
+     *
+     * @param lock The lock to add.
+     *
+     * @return The existing lock, or null if the given lock was added
+     */
+    PersistentLock putIfAbsent(PersistentLock lock) {
+        stripes.lock(lock.getId());
+        try {
+            PersistentLock existing = locksById.putIfAbsent(lock.getId(), lock);
+            if (existing != null) {
+                return existing;
+            }
+            lockCount.incrementAndGet();
+            addToRefIndex(lock);
+            return null;
+        } finally {
+            stripes.unlock(lock.getId());
+        }
+    }
+
+    PersistentLock remove(String id) {
+        stripes.lock(id);
+        try {
+            PersistentLock lock = locksById.remove(id);
+            if (lock != null) {
+                lockCount.decrementAndGet();
+                removeFromRefIndex(lock);
+            }
+            return lock;
+        } finally {
+            stripes.unlock(id);
+        }
+    }
+
+    /**
+     * Remove the lock with the given ID, only if it is still the expected lock.
+     *
+     * @param id The lock ID.
+     * @param expected The lock expected to be in the index.
+     *
+     * @return true if the expected lock was removed,
+     *         false if it had already been removed or replaced
+     */
+    boolean remove(String id, PersistentLock expected) {
+        stripes.lock(id);
+        try {
+            if (!locksById.remove(id, expected)) {
+                return false;
+            }
+            lockCount.decrementAndGet();
+            removeFromRefIndex(expected);
+            return true;
+        } finally {
+            stripes.unlock(id);
+        }
+    }
+
+    int size() {
+        return lockCount.get();
+    }
+
+    /**
+     * @return Weakly consistent view of all the locks, in lock ID order
+     */
+    Collection<PersistentLock> values() {
+        return locksById.values();
+    }
+
+    /**
+     * Retrieve a page of locks, optionally restricted to a refspec.
+     *
+     * @param refspec Optional refspec the locks belong to.
+     * @param cursor Optional lock ID to start the page from (inclusive).
+     * @param limit Maximum number of locks in the page; 0 or less means no limit.
+     *
+     * @return The page of locks, with the cursor of the next page if any
+     */
+    Page page(String refspec, String cursor, int limit) {
+        ConcurrentNavigableMap<String, PersistentLock> locks = locksById;
+        if (refspec != null && !refspec.isEmpty()) {
+            locks = locksByRef.get(refspec);
+            if (locks == null) {
+                return new Page(Collections.emptyList(), null);
+            }
+        }
+        if (cursor != null && !cursor.isEmpty()) {
+            locks = locks.tailMap(cursor, true);
+        }
+
+        List<PersistentLock> page = new ArrayList<>();
+        String nextCursor = null;
+        Iterator<PersistentLock> it = locks.values().iterator();
+        while (it.hasNext()) {
+            PersistentLock lock = it.next();
+            if (limit > 0 && page.size() == limit) {
+                nextCursor = lock.getId();
+                break;
+            }
+            page.add(lock);
+        }
+        return new Page(page, nextCursor);
+    }
+
+    /**
+     * @return The number of refspecs having locks
+     */
+    int refCount() {
+        return locksByRef.size();
+    }
+
+    //the locks of a ref are added and removed under different stripes,
+    //so the map of a ref is created and dropped atomically in its entry
+    private void addToRefIndex(PersistentLock lock) {
+        String refName = getRefName(lock);
+        if (refName != null) {
+            locksByRef.compute(refName, (ref, refLocks) -> {
+                if (refLocks == null) {
+                    refLocks = new ConcurrentSkipListMap<>();
+                }
+                refLocks.put(lock.getId(), lock);
+                return refLocks;
+            });
+        }
+    }
+
+    private void removeFromRefIndex(PersistentLock lock) {
+        String refName = getRefName(lock);
+        if (refName != null) {
+            //drop the map of the ref once it has no more locks
+            locksByRef.computeIfPresent(refName, (ref, refLocks) -> {
+                refLocks.remove(lock.getId(), lock);
+                return refLocks.isEmpty() ? null : refLocks;
+            });
+        }
+    }
+
+    private static String getRefName(PersistentLock lock) {
+        LfsRef ref = lock.getRef();
+        if (ref == null || ref.getName() == null || ref.getName().isEmpty()) {
+            return null;
+        }
+        return ref.getName();
+    }
+
+}
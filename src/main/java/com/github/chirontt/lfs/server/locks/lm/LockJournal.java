@@ -0,0 +1,700 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import com.google.gson.JsonParseException;
+
+import org.eclipse.jgit.lfs.server.internal.LfsGson;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of LFS lock creation/deletion events.
+ *
+ * Each event is a single line of JSON. Appends are made durable with
+ * fsync, but concurrent appenders share a single fsync: the first appender
+ * to sync forces everything written so far, and the others return as soon as
+ * their own record is covered.
+ *
+ * In group-commit mode, appenders instead hand their records over to a single
+ * committer thread, which coalesces the records arriving within the flush interval
+ * (up to a maximum batch size) into one write and one fsync, and only then
+ * releases the appenders of the batch.
+ *
+ * A record is handed to the journal's applier only once it is durable,
+ * in journal order, so that the applied state never shows a record
+ * which could still be rolled back. A failed write or fsync is cut off
+ * the journal, together with the records written after it, so that
+ * none of the rejected records is replayed; and a malformed record found
+ * on replay, e.g. if that cut-off failed too, is skipped.
+ *
+ * The journal is compacted, by rewriting it with only the currently live locks,
+ * once the number of records exceeds both {@link #COMPACTION_MIN_RECORDS}
+ * and twice the number of live locks. The journal keeps appending to the old
+ * file until the compacted one has replaced it.
+ */
+class LockJournal implements Closeable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(LockJournal.class);
+
+    static final String CREATE = "create";
+    static final String DELETE = "delete";
+
+    static final int COMPACTION_MIN_RECORDS = 1000;
+
+    /**
+     * A journal record, as persisted to the journal file.
+     */
+    static class Record {
+        String op;
+        String id;
+        PersistentLock lock;
+
+        Record() {
+        }
+
+        Record(String op, String id, PersistentLock lock) {
+            this.op = op;
+            this.id = id;
+            this.lock = lock;
+        }
+
+        static Record create(PersistentLock lock) {
+            return new Record(CREATE, lock.getId(), lock);
+        }
+
+        static Record delete(String id) {
+            return new Record(DELETE, id, null);
+        }
+    }
+
+    /**
+     * A record written to the journal, or queued for the next batch,
+     * and not yet known to be durable.
+     */
+    private static class PendingRecord {
+        final Record record;
+        final ByteBuffer buffer;
+        final CompletableFuture<Void> committed = new CompletableFuture<>();
+
+        PendingRecord(Record record, ByteBuffer buffer) {
+            this.record = record;
+            this.buffer = buffer;
+        }
+    }
+
+    /**
+     * A record appended to the journal, or queued for the next batch,
+     * which is durable once {@link #await()} has returned.
+     */
+    class Append {
+        private final PendingRecord pending;
+
+        private Append(PendingRecord pending) {
+            this.pending = pending;
+        }
+
+        /**
+         * Wait until the record is durable, and applied.
+         *
+         * @throws IOException if the record couldn't be made durable
+         */
+        void await() throws IOException {
+            if (!isGroupCommit()) {
+                sync(pending);
+                compactIfNeeded();
+            }
+            awaitCommit(pending);
+        }
+    }
+
+    private final Path journalPath;
+    private final LockIndex liveLocks;
+    private final CommitStatistics statistics = new CommitStatistics();
+
+    //group-commit settings; group commit is off if the flush interval is 0
+    private final long flushIntervalNanos;
+    private final int maxBatchSize;
+    private final BlockingQueue<PendingRecord> pendingRecords = new LinkedBlockingQueue<>();
+    private Thread committer;
+    private volatile boolean closed;
+
+    private final Object appendLock = new Object();
+    private final Object syncLock = new Object();
+
+    //consumer of the durable records, in journal order
+    private Consumer<Record> applier;
+    private FileChannel channel;
+    //records written to the journal file but not yet forced, in journal order
+    private final List<PendingRecord> unsynced = new ArrayList<>();
+    //length of the journal file known to be on disk
+    private long syncedLength;
+    //number of records in the journal file
+    private int recordCount;
+    //number of records from which the journal is compacted; raised after a failed compaction
+    private int compactionThreshold = COMPACTION_MIN_RECORDS;
+
+    /**
+     * @param journalPath Path to the journal file.
+     * @param liveLocks Index of the currently live locks, for compaction;
+     *                  it must be kept up to date by the applier of the records.
+     */
+    LockJournal(Path journalPath, LockIndex liveLocks) {
+        this(journalPath, liveLocks, 0, 1);
+    }
+
+    /**
+     * @param journalPath Path to the journal file.
+     * @param liveLocks Index of the currently live locks, for compaction;
+     *                  it must be kept up to date by the applier of the records.
+     * @param flushIntervalMillis How long the committer waits for more records
+     *                            to join a batch; 0 turns group commit off.
+     * @param maxBatchSize Maximum number of records in a batch.
+     */
+    LockJournal(Path journalPath, LockIndex liveLocks, long flushIntervalMillis, int maxBatchSize) {
+        if (flushIntervalMillis < 0) {
+            throw new IllegalArgumentException("Invalid flush interval: " + flushIntervalMillis);
+        }
+        if (maxBatchSize < 1) {
+            throw new IllegalArgumentException("Invalid maximum batch size: " + maxBatchSize);
+        }
+        this.journalPath = journalPath;
+        this.liveLocks = liveLocks;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    CommitStatistics getStatistics() {
+        return statistics;
+    }
+
+    private boolean isGroupCommit() {
+        return flushIntervalNanos > 0;
+    }
+
+    /**
+     * @return true if the journal file exists
+     */
+    boolean exists() {
+        return Files.exists(journalPath);
+    }
+
+    /**
+     * Create the journal file with a create record for each of the given locks,
+     * e.g. to import the locks of another lock manager. The journal file
+     * appears with all the records, or not at all.
+     *
+     * @param locks The locks to write to the journal.
+     *
+     * @throws IOException if the journal cannot be written, or already exists
+     */
+    void create(Collection<PersistentLock> locks) throws IOException {
+        if (exists()) {
+            throw new IOException("Lock journal already exists: " + journalPath);
+        }
+        Path parent = journalPath.getParent();
+        if (parent != null && !Files.exists(parent)) Files.createDirectories(parent);
+        Path tempPath = Paths.get(journalPath.toString() + ".tmp");
+        try (FileChannel temp = writeSnapshot(tempPath, locks)) {
+            Files.move(tempPath, journalPath, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        syncDirectory();
+    }
+
+    /**
+     * Replay the existing journal, if any, then open it for appending.
+     * A torn record at the end of the journal (from a crash in the middle
+     * of an append) is discarded.
+     *
+     * @param applier Consumer of the replayed records, in journal order,
+     *                and then of each appended record once it is durable.
+     *
+     * @throws IOException
+     */
+    void open(Consumer<Record> applier) throws IOException {
+        this.applier = applier;
+        Path parent = journalPath.getParent();
+        if (parent != null && !Files.exists(parent)) Files.createDirectories(parent);
+
+        long validLength = 0;
+        boolean exists = exists();
+        if (exists) {
+            byte[] bytes = Files.readAllBytes(journalPath);
+            int start = 0;
+            int malformed = 0;
+            for (int i = 0; i < bytes.length; i++) {
+                if (bytes[i] != '\n') continue;
+                String line = new String(bytes, start, i - start, StandardCharsets.UTF_8);
+                start = i + 1;
+                if (line.isEmpty()) continue;
+                Record record;
+                try {
+                    record = LfsGson.fromJson(new StringReader(line), Record.class);
+                } catch (JsonParseException e) {
+                    //left by a failed write which couldn't be cut off
+                    malformed++;
+                    continue;
+                }
+                if (record != null && record.op != null) {
+                    applier.accept(record);
+                    recordCount++;
+                }
+            }
+            validLength = start;
+            if (malformed > 0) {
+                LOG.warn("Skipped " + malformed + " malformed records of lock journal " + journalPath);
+            }
+            if (validLength < bytes.length) {
+                LOG.warn("Discarding torn record at the end of lock journal " + journalPath);
+            }
+        }
+
+        channel = FileChannel.open(journalPath, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE);
+        channel.truncate(validLength);
+        channel.position(validLength);
+        channel.force(true);
+        syncedLength = validLength;
+        if (!exists) {
+            syncDirectory();
+        }
+
+        if (isGroupCommit()) {
+            committer = new Thread(this::runCommitter, "lfs-lock-journal-committer");
+            committer.setDaemon(true);
+            committer.start();
+        }
+    }
+
+    /**
+     * Append a record to the journal, and wait until it is durable.
+     *
+     * @param record The record to append.
+     *
+     * @throws IOException
+     */
+    void append(Record record) throws IOException {
+        enqueue(record).await();
+    }
+
+    /**
+     * Append a record to the journal, without waiting for it to be durable.
+     * The records are journaled in the order of the calls to this method,
+     * so that callers serializing their updates of a lock get them replayed
+     * (and applied) in the same order.
+     *
+     * @param record The record to append.
+     *
+     * @return The append, to wait for with {@link Append#await()}
+     *
+     * @throws IOException if the record couldn't be written or queued
+     */
+    Append enqueue(Record record) throws IOException {
+        PendingRecord pending = new PendingRecord(record, encode(record));
+        if (isGroupCommit()) {
+            addToBatch(pending);
+            return new Append(pending);
+        }
+
+        synchronized (appendLock) {
+            ensureOpen();
+            ByteBuffer buffer = pending.buffer;
+            long offset = channel.position();
+            try {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            } catch (IOException e) {
+                truncate(offset);
+                throw e;
+            }
+            recordCount++;
+            unsynced.add(pending);
+            return new Append(pending);
+        }
+    }
+
+    /**
+     * Hand the record over to the committer thread.
+     */
+    private void addToBatch(PendingRecord pending) throws IOException {
+        if (closed) {
+            throw new IOException("Lock journal is closed: " + journalPath);
+        }
+        pendingRecords.add(pending);
+        if (closed && !committer.isAlive() && pendingRecords.remove(pending)) {
+            //the committer has stopped before it could pick up the record
+            throw new IOException("Lock journal is closed: " + journalPath);
+        }
+    }
+
+    /**
+     * Wait until a record is durable and applied, or rejected.
+     */
+    private void awaitCommit(PendingRecord pending) throws IOException {
+        try {
+            pending.committed.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for the lock journal commit", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Apply the durable records, in journal order, then release their appenders.
+     * The caller must hold the sync lock.
+     */
+    private void commit(List<PendingRecord> records) {
+        for (PendingRecord pending : records) {
+            applier.accept(pending.record);
+            pending.committed.complete(null);
+        }
+    }
+
+    private static void reject(List<PendingRecord> records, Throwable cause) {
+        records.forEach( pending -> pending.committed.completeExceptionally(cause) );
+    }
+
+    private void runCommitter() {
+        List<PendingRecord> batch = new ArrayList<>(maxBatchSize);
+        while (!closed || !pendingRecords.isEmpty()) {
+            try {
+                PendingRecord first = pendingRecords.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) continue;
+                batch.add(first);
+                //wait up to the flush interval for more records to join the batch
+                long deadline = System.nanoTime() + flushIntervalNanos;
+                while (batch.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingRecord next = remaining > 0
+                            ? pendingRecords.poll(remaining, TimeUnit.NANOSECONDS)
+                            : pendingRecords.poll();
+                    if (next == null) break;
+                    batch.add(next);
+                }
+            } catch (InterruptedException e) {
+                //closing; commit whatever has been collected
+            }
+            if (batch.isEmpty()) continue;
+
+            try {
+                commitBatch(batch);
+            } catch (IOException | RuntimeException e) {
+                LOG.error("Failed to commit " + batch.size() + " records to lock journal " + journalPath, e);
+                reject(batch, e);
+            }
+            batch.clear();
+
+            compactIfNeeded();
+        }
+    }
+
+    /**
+     * Write all the records of the batch with a single write, force them to disk,
+     * then apply them.
+     */
+    private void commitBatch(List<PendingRecord> batch) throws IOException {
+        ByteBuffer[] buffers = new ByteBuffer[batch.size()];
+        long total = 0;
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = batch.get(i).buffer;
+            total += buffers[i].remaining();
+        }
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                ensureOpen();
+                long start = System.nanoTime();
+                long offset = channel.position();
+                long written = 0;
+                try {
+                    while (written < total) {
+                        written += channel.write(buffers);
+                    }
+                    channel.force(false);
+                } catch (IOException e) {
+                    //the records of a failed batch are all rejected, none is to be replayed
+                    truncate(offset);
+                    throw e;
+                }
+                recordCount += buffers.length;
+                syncedLength = channel.position();
+                statistics.recordBatch(buffers.length, System.nanoTime() - start);
+            }
+            commit(batch);
+        }
+    }
+
+    /**
+     * Make sure the given record, and all the records written before it, are on disk.
+     * If the fsync fails, the records it was to cover and the ones written since
+     * are cut off the journal and rejected.
+     */
+    private void sync(PendingRecord pending) {
+        if (pending.committed.isDone()) return;
+        synchronized (syncLock) {
+            //another appender may have forced our record while we waited
+            if (pending.committed.isDone()) return;
+            List<PendingRecord> records;
+            long length;
+            FileChannel fc;
+            synchronized (appendLock) {
+                records = new ArrayList<>(unsynced);
+                unsynced.clear();
+                fc = channel;
+                try {
+                    ensureOpen();
+                    length = channel.position();
+                } catch (IOException e) {
+                    reject(records, e);
+                    return;
+                }
+            }
+            long start = System.nanoTime();
+            try {
+                fc.force(false);
+            } catch (IOException e) {
+                LOG.error("Failed to sync " + records.size() + " records of lock journal " + journalPath, e);
+                synchronized (appendLock) {
+                    //the records written while forcing are cut off too
+                    records.addAll(unsynced);
+                    unsynced.clear();
+                    recordCount -= records.size();
+                    truncate(syncedLength);
+                }
+                reject(records, e);
+                return;
+            }
+            statistics.recordBatch(records.size(), System.nanoTime() - start);
+            synchronized (appendLock) {
+                syncedLength = length;
+            }
+            commit(records);
+        }
+    }
+
+    private boolean needsCompaction() {
+        return recordCount >= compactionThreshold && recordCount >= 2 * liveLocks.size();
+    }
+
+    /**
+     * Compact the journal if it has grown enough. A failed compaction
+     * leaves the journal as it was, and is only retried once
+     * {@link #COMPACTION_MIN_RECORDS} more records have been appended.
+     */
+    private void compactIfNeeded() {
+        synchronized (appendLock) {
+            if (!needsCompaction()) {
+                return;
+            }
+        }
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                //re-check, as another appender may have compacted the journal already
+                if (!needsCompaction()) {
+                    return;
+                }
+                try {
+                    compact();
+                    compactionThreshold = COMPACTION_MIN_RECORDS;
+                } catch (IOException | RuntimeException e) {
+                    LOG.error("Failed to compact lock journal " + journalPath, e);
+                    compactionThreshold = recordCount + COMPACTION_MIN_RECORDS;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rewrite the journal with a create record for every live lock.
+     * The caller must hold both the sync and the append locks.
+     */
+    private void compact() throws IOException {
+        ensureOpen();
+        if (!unsynced.isEmpty()) {
+            //the live locks only reflect the durable records,
+            //so the records written since the last sync are made durable first
+            channel.force(false);
+            syncedLength = channel.position();
+            List<PendingRecord> records = new ArrayList<>(unsynced);
+            unsynced.clear();
+            commit(records);
+        }
+
+        //the live locks only change when records are applied, under the sync lock
+        int count = liveLocks.size();
+        Path tempPath = Paths.get(journalPath.toString() + ".tmp");
+        FileChannel compacted = writeSnapshot(tempPath, liveLocks.values());
+        try {
+            replaceJournal(tempPath);
+        } catch (IOException | RuntimeException e) {
+            //keep appending to the current journal
+            compacted.close();
+            Files.deleteIfExists(tempPath);
+            throw e;
+        }
+        //the compacted journal is in place: append to it from now on,
+        //through the channel it was written with
+        FileChannel old = channel;
+        channel = compacted;
+        syncedLength = compacted.position();
+        try {
+            old.close();
+        } catch (IOException e) {
+            LOG.debug("Failed to close the replaced lock journal " + journalPath, e);
+        }
+        //the records appended from now on are only safe once the rename is durable
+        syncDirectory();
+        LOG.debug("Compacted lock journal " + journalPath + " from " + recordCount
+                  + " to " + count + " records");
+        recordCount = count;
+    }
+
+    /**
+     * Replace the journal file with its compacted copy.
+     *
+     * @param compacted Path to the compacted copy.
+     *
+     * @throws IOException
+     */
+    void replaceJournal(Path compacted) throws IOException {
+        Files.move(compacted, journalPath,
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write a create record for each of the locks to a new file, and force it to disk.
+     *
+     * @return The channel of the written file, positioned at its end
+     */
+    private static FileChannel writeSnapshot(Path path, Collection<PersistentLock> locks)
+            throws IOException {
+        FileChannel fc = FileChannel.open(path, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+            for (PersistentLock lock : locks) {
+                ByteBuffer buffer = encode(Record.create(lock));
+                while (buffer.hasRemaining()) {
+                    fc.write(buffer);
+                }
+            }
+            fc.force(true);
+            return fc;
+        } catch (IOException | RuntimeException e) {
+            fc.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Cut off whatever a failed write or sync may have left after the last good record.
+     * The caller must hold the append lock.
+     */
+    private void truncate(long offset) {
+        try {
+            channel.truncate(offset);
+            channel.position(offset);
+        } catch (IOException e) {
+            LOG.error("Failed to cut off a failed write from lock journal " + journalPath, e);
+        }
+    }
+
+    /**
+     * Force the directory entry of the journal to disk.
+     */
+    private void syncDirectory() {
+        Path dir = journalPath.toAbsolutePath().getParent();
+        try (FileChannel dirChannel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            dirChannel.force(true);
+        } catch (IOException e) {
+            //directories cannot be opened on some platforms, e.g. Windows
+            LOG.debug("Cannot sync directory " + dir, e);
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (channel == null || !channel.isOpen()) {
+            throw new IOException("Lock journal is not open: " + journalPath);
+        }
+    }
+
+    private static ByteBuffer encode(Record record) {
+        StringWriter w = new StringWriter();
+        LfsGson.toJson(record, w);
+        w.append('\n');
+        return ByteBuffer.wrap(w.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        if (committer != null) {
+            try {
+                //let the committer drain the pending records
+                committer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            PendingRecord pending;
+            while ((pending = pendingRecords.poll()) != null) {
+                pending.committed.completeExceptionally(
+                        new IOException("Lock journal is closed: " + journalPath));
+            }
+        }
+        synchronized (syncLock) {
+            synchronized (appendLock) {
+                if (channel != null && channel.isOpen()) {
+                    List<PendingRecord> records = new ArrayList<>(unsynced);
+                    unsynced.clear();
+                    try {
+                        channel.force(true);
+                    } catch (IOException e) {
+                        reject(records, e);
+                        throw e;
+                    } finally {
+                        channel.close();
+                    }
+                    commit(records);
+                }
+            }
+        }
+    }
+
+}
@@ -1,6 +1,8 @@
 package com.github.chirontt.lfs.server.locks.lm;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
 
 import org.eclipse.jgit.lib.Constants;
 import org.eclipse.jgit.lib.ObjectId;
@@ -15,6 +17,17 @@ public class LockUtils {
     private LockUtils() {
     }
 
+    /**
+     * Create the lock ID from the path of the file that is locked.
+     * 
+     * @param path The path name of the file that is locked
+     * 
+     * @return The URL-safe lock ID
+     */
+    public static String toLockId(String path) {
+        return Base64.getUrlEncoder().encodeToString(path.getBytes(StandardCharsets.UTF_8));
+    }
+
     /**
      * Check if the given path for the refSpec exists in the repository.
      * 
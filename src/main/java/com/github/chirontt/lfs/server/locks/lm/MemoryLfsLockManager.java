@@ -1,7 +1,6 @@
 package com.github.chirontt.lfs.server.locks.lm;
 
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.text.MessageFormat;
 import java.time.ZoneOffset;
@@ -9,14 +8,10 @@ import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
-import java.util.Base64;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
 
 import org.eclipse.jgit.lfs.errors.LfsException;
 import org.eclipse.jgit.lib.Repository;
-import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
 
 import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.CreatedOrDeletedLock;
 import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Lock;
@@ -27,6 +22,7 @@ import com.github.chirontt.lfs.server.locks.errors.LfsLockExists;
 import com.github.chirontt.lfs.server.locks.errors.LfsUnauthorized;
 import com.github.chirontt.lfs.server.locks.internal.LfsFileLockingText;
 import com.github.chirontt.lfs.server.LfsRef;
+import com.github.chirontt.lfs.server.RepositoryRegistry;
 import com.github.chirontt.lfs.server.locks.LockManager;
 
 /**
@@ -35,13 +31,12 @@ import com.github.chirontt.lfs.server.locks.LockManager;
  */
 public class MemoryLfsLockManager implements LockManager {
 
-    private ConcurrentMap<String, PersistentLock> lockCache = new ConcurrentHashMap<>();
-    private FileRepositoryBuilder repositoryBuilder;
+    private LockIndex lockCache = new LockIndex();
+    private Path repoPath;
+    private RefTreeCache refTreeCache = RefTreeCache.SHARED;
 
     public MemoryLfsLockManager(Path repoPath) {
-        this.repositoryBuilder =
-                new FileRepositoryBuilder().setGitDir(repoPath.toFile())
-                                           .setMustExist(true);
+        this.repoPath = repoPath;
     }
 
     /** {@inheritDoc} */
@@ -63,16 +58,9 @@ public class MemoryLfsLockManager implements LockManager {
         }
 
     	//create the lock ID from its path property
-        String id = Base64.getUrlEncoder().encodeToString(path.getBytes(StandardCharsets.UTF_8));
+        String id = LockUtils.toLockId(path);
 
-        Lock lock = lockCache.get(id);
-        if (lock != null) {
-            String error = MessageFormat
-                    .format(LfsFileLockingText.get().lockExistsForPath, path);
-            throw new LfsLockExists(error, lock);
-        }
-
-        lock = new Lock();
+        Lock lock = new Lock();
         lock.setId(id);
         lock.setPath(path);
         if (username != null && !username.isEmpty()) {
@@ -89,7 +77,14 @@ public class MemoryLfsLockManager implements LockManager {
             LfsRef ref = new LfsRef(refName);
             persistentLock.setRef(ref);
         }
-        lockCache.put(id, persistentLock);
+        //atomically claim the lock ID, so that exactly one of
+        //concurrent requests for the same path creates the lock
+        PersistentLock existingLock = lockCache.putIfAbsent(persistentLock);
+        if (existingLock != null) {
+            String error = MessageFormat
+                    .format(LfsFileLockingText.get().lockExistsForPath, path);
+            throw new LfsLockExists(error, existingLock.copyToLock());
+        }
 
         return new CreatedOrDeletedLock(lock);
     }
@@ -98,10 +93,21 @@ public class MemoryLfsLockManager implements LockManager {
     @Override
     public Locks listLocks(String path, String id, String cursor, int limit, String refspec)
             throws LfsException {
-        List<Lock> lockList = new ArrayList<>();
-        lockCache.values().stream().filter( lock -> lockMatched(lock, path, refspec) )
-                                   .forEach( lock -> lockList.add(lock.copyToLock()) );
-        return new Locks(lockList, null);
+        if ((id != null && !id.isEmpty()) || (path != null && !path.isEmpty())) {
+            //lookup of a single lock
+            PersistentLock lock = (id != null && !id.isEmpty()) ? lockCache.get(id)
+                                                                : lockCache.getByPath(path);
+            List<Lock> lockList = new ArrayList<>();
+            if (lock != null && lockMatched(lock, path, refspec)) {
+                lockList.add(lock.copyToLock());
+            }
+            return new Locks(lockList, null);
+        }
+
+        LockIndex.Page page = lockCache.page(refspec, cursor, limit);
+        List<Lock> lockList = new ArrayList<>(page.locks.size());
+        page.locks.forEach( lock -> lockList.add(lock.copyToLock()) );
+        return new Locks(lockList, page.nextCursor);
     }
 
     /** {@inheritDoc} */
@@ -125,8 +131,11 @@ public class MemoryLfsLockManager implements LockManager {
             }
         }
 
-        //remove the lock from persistence storage
-        lockCache.remove(id);
+        //remove the lock from persistence storage,
+        //unless a concurrent request has already removed it
+        if (!lockCache.remove(id, pLock)) {
+            throw new LfsException("Lock doesn't exist for deletion");
+        }
 
         return new CreatedOrDeletedLock(lock);
     }
@@ -135,9 +144,9 @@ public class MemoryLfsLockManager implements LockManager {
     @Override
     public LocksToVerify listLocksToVerify(String refName, String username, String cursor, int limit)
             throws LfsException {
-        List<Lock> matchingLocks = new ArrayList<>();
-        lockCache.values().stream().filter( lock -> lockMatched(lock, null, refName) )
-                                   .forEach( lock -> matchingLocks.add(lock.copyToLock()) );
+        LockIndex.Page page = lockCache.page(refName, cursor, limit);
+        List<Lock> matchingLocks = new ArrayList<>(page.locks.size());
+        page.locks.forEach( lock -> matchingLocks.add(lock.copyToLock()) );
 
         //split the matching lock list to ours and theirs
         List<Lock> ours = new ArrayList<>();
@@ -162,6 +171,7 @@ public class MemoryLfsLockManager implements LockManager {
         LocksToVerify locks = new LocksToVerify();
         locks.setOurs(ours);
         locks.setTheirs(theirs);
+        locks.setNextCursor(page.nextCursor);
         return locks;
     }
 
@@ -175,8 +185,8 @@ public class MemoryLfsLockManager implements LockManager {
 
     private boolean isPathPresentForRef(String refSpec, String path)
             throws IOException {
-        try (Repository repo = repositoryBuilder.build()) {
-            return LockUtils.isPathPresentForRef(repo, refSpec, path);
+        try (Repository repo = RepositoryRegistry.open(repoPath)) {
+            return refTreeCache.isPathPresentForRef(repo, refSpec, path);
         }
     }
 
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.eclipse.jgit.lib.Constants;
+import org.eclipse.jgit.lib.ObjectId;
+import org.eclipse.jgit.lib.ObjectReader;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.revwalk.RevCommit;
+import org.eclipse.jgit.revwalk.RevWalk;
+import org.eclipse.jgit.treewalk.TreeWalk;
+
+/**
+ * Cache of the paths present in the tree of the commit a ref points to,
+ * so that a batch of lock requests against the same ref costs a single
+ * tree walk instead of one per request.
+ *
+ * The cache is keyed by repository and commit ID, as the tree of a commit
+ * never changes: the different names of a ref (e.g. {@code main},
+ * {@code refs/heads/main} or {@code HEAD}) share the same entry, and
+ * a ref having moved to another commit simply gets a new entry.
+ *
+ * A single cache is shared by the lock managers of all the repositories,
+ * bounded by the total number of paths indexed; the least recently used
+ * trees are evicted first.
+ */
+class RefTreeCache {
+
+    //maximum number of paths indexed, across all the cached trees
+    static final int MAX_TOTAL_PATHS = 500_000;
+    //trees with more paths than this are not indexed,
+    //and their paths are looked up with a tree walk each time instead
+    static final int MAX_INDEXED_PATHS = 250_000;
+
+    /** The cache shared by the lock managers. */
+    static final RefTreeCache SHARED = new RefTreeCache(MAX_TOTAL_PATHS, MAX_INDEXED_PATHS);
+
+    /**
+     * The flattened tree of a commit: the paths of all its files and directories.
+     */
+    private static class TreeIndex {
+        //null if the tree is too large to be indexed
+        final Set<String> paths;
+
+        TreeIndex(Set<String> paths) {
+            this.paths = paths;
+        }
+
+        int weight() {
+            //the trees too large to be indexed still take an entry
+            return paths == null ? 1 : Math.max(paths.size(), 1);
+        }
+    }
+
+    private final int maxTotalPaths;
+    private final int maxIndexedPaths;
+    //tree indexes, least recently used first, guarded by itself
+    private final LinkedHashMap<String, TreeIndex> treeIndexes = new LinkedHashMap<>(16, 0.75f, true);
+    private long indexedPaths;
+    //tree walks in progress, by cache key
+    private final ConcurrentMap<String, CompletableFuture<TreeIndex>> builds = new ConcurrentHashMap<>();
+
+    /**
+     * @param maxTotalPaths Maximum number of paths indexed, across all the cached trees.
+     * @param maxIndexedPaths Maximum number of paths of a tree to be indexed.
+     */
+    RefTreeCache(int maxTotalPaths, int maxIndexedPaths) {
+        this.maxTotalPaths = maxTotalPaths;
+        this.maxIndexedPaths = Math.min(maxIndexedPaths, maxTotalPaths);
+    }
+
+    /**
+     * Check if the given path for the refSpec exists in the repository.
+     *
+     * @param repo The repository to search
+     * @param refSpec The ref the path belongs to; HEAD if not specified
+     * @param path The path to check for existence
+     *
+     * @return true - if the path exists,
+     *         false - otherwise
+     *
+     * @throws IOException
+     */
+    boolean isPathPresentForRef(Repository repo, String refSpec, String path)
+            throws IOException {
+        String ref = (refSpec == null || refSpec.isEmpty()) ? Constants.HEAD : refSpec;
+        ObjectId commitId = repo.resolve(ref);
+        if (commitId == null) {
+            return false;
+        }
+
+        String key = repo.getDirectory().getAbsolutePath() + ':' + commitId.name();
+        TreeIndex index = getIndex(key);
+        if (index == null) {
+            index = buildIndex(repo, commitId, key);
+        }
+
+        if (index.paths == null) {
+            return LockUtils.isPathPresentForRef(repo, commitId.name(), path);
+        }
+        return index.paths.contains(path);
+    }
+
+    /**
+     * @return The total number of paths indexed
+     */
+    long getIndexedPaths() {
+        synchronized (treeIndexes) {
+            return indexedPaths;
+        }
+    }
+
+    private TreeIndex getIndex(String key) {
+        synchronized (treeIndexes) {
+            return treeIndexes.get(key);
+        }
+    }
+
+    /**
+     * Build the index of a tree, outside of any lock of the cache;
+     * concurrent requests for the same tree wait for a single tree walk.
+     */
+    private TreeIndex buildIndex(Repository repo, ObjectId commitId, String key)
+            throws IOException {
+        CompletableFuture<TreeIndex> build = new CompletableFuture<>();
+        CompletableFuture<TreeIndex> running = builds.putIfAbsent(key, build);
+        if (running != null) {
+            try {
+                return running.join();
+            } catch (CompletionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof IOException) {
+                    throw new IOException(cause.getMessage(), cause);
+                }
+                throw e;
+            }
+        }
+        try {
+            //the tree may have been indexed while the build was being registered
+            TreeIndex index = getIndex(key);
+            if (index == null) {
+                index = walkTree(repo, commitId);
+                putIndex(key, index);
+            }
+            build.complete(index);
+            return index;
+        } catch (IOException | RuntimeException e) {
+            build.completeExceptionally(e);
+            throw e;
+        } finally {
+            builds.remove(key, build);
+        }
+    }
+
+    private void putIndex(String key, TreeIndex index) {
+        synchronized (treeIndexes) {
+            TreeIndex previous = treeIndexes.put(key, index);
+            if (previous != null) {
+                indexedPaths -= previous.weight();
+            }
+            indexedPaths += index.weight();
+            //evict the least recently used trees, except the new one
+            Iterator<Map.Entry<String, TreeIndex>> it = treeIndexes.entrySet().iterator();
+            while (indexedPaths > maxTotalPaths && it.hasNext()) {
+                Map.Entry<String, TreeIndex> entry = it.next();
+                if (!entry.getKey().equals(key)) {
+                    indexedPaths -= entry.getValue().weight();
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    private TreeIndex walkTree(Repository repo, ObjectId commitId)
+            throws IOException {
+        Set<String> paths = new HashSet<>();
+        try (ObjectReader reader = repo.newObjectReader();
+             RevWalk walk = new RevWalk(reader);
+             TreeWalk treeWalk = new TreeWalk(reader)) {
+            RevCommit commit = walk.parseCommit(commitId);
+            treeWalk.addTree(commit.getTree());
+            treeWalk.setRecursive(false);
+            while (treeWalk.next()) {
+                if (paths.size() == maxIndexedPaths) {
+                    return new TreeIndex(null);
+                }
+                //directories can be locked too, so index them as well as files
+                paths.add(treeWalk.getPathString());
+                if (treeWalk.isSubtree()) {
+                    treeWalk.enterSubtree();
+                }
+            }
+        }
+        return new TreeIndex(paths);
+    }
+
+}
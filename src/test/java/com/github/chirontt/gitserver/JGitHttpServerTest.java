@@ -0,0 +1,227 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.http2.server.HTTP2CServerConnectionFactory;
+import org.eclipse.jetty.server.HttpConfiguration;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.SslConnectionFactory;
+import org.eclipse.jetty.util.VirtualThreads;
+import org.eclipse.jetty.util.ssl.SslContextFactory;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
+import org.eclipse.jetty.util.thread.VirtualThreadPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class JGitHttpServerTest {
+
+    //number of concurrent requests, e.g. clones, left waiting in the servlet
+    private static final int REQUESTS = 64;
+
+    private static ServerConfig config(String... settings) {
+        Properties properties = new Properties();
+        for (int i = 0; i < settings.length; i += 2) {
+            properties.setProperty(settings[i], settings[i + 1]);
+        }
+        return new ServerConfig(properties);
+    }
+
+    /**
+     * Send a request over HTTP/2 if possible, to a server with the plain
+     * connector of the given configuration, and return the HTTP version
+     * of the response.
+     */
+    private static HttpClient.Version serve(ServerConfig config) throws Exception {
+        HttpServlet servlet = new HttpServlet() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse rsp) throws IOException {
+                rsp.setStatus(HttpServletResponse.SC_OK);
+            }
+        };
+
+        Server server = new Server();
+        ServerConnector connector = JGitHttpServer.createGitConnector(
+                server, config, new HttpConfiguration(), 0);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(servlet), "/*");
+        server.setHandler(context);
+        server.start();
+        try {
+            //HTTP/2 upgraded from HTTP/1.1 where the server supports it
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_2).build();
+            HttpRequest request = HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + connector.getLocalPort() + "/info/refs")).build();
+            HttpResponse<Void> response = client.send(request, BodyHandlers.discarding());
+            assertEquals(200, response.statusCode());
+            return response.version();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testCleartextHttp2() throws Exception {
+        assertEquals(HttpClient.Version.HTTP_1_1, serve(config()));
+        assertEquals(HttpClient.Version.HTTP_2, serve(config("http2.enabled", "true")));
+    }
+
+    @Test
+    public void testHttp2Settings() {
+        ServerConnector connector = JGitHttpServer.createGitConnector(new Server(),
+                config("http2.enabled", "true", "http2.maxConcurrentStreams", "16"),
+                new HttpConfiguration(), 0);
+        HTTP2CServerConnectionFactory h2c = connector.getConnectionFactory(HTTP2CServerConnectionFactory.class);
+        assertNotNull(h2c);
+        assertEquals(16, h2c.getMaxConcurrentStreams());
+        assertEquals(8 * 1024 * 1024, h2c.getInitialSessionRecvWindow());
+
+        assertNull(JGitHttpServer.createGitConnector(new Server(), config(), new HttpConfiguration(), 0)
+                .getConnectionFactory(HTTP2CServerConnectionFactory.class));
+    }
+
+    @Test
+    public void testTlsConnector(@TempDir Path tempDir) throws Exception {
+        //only read when the connector starts
+        Path keyStore = Files.createFile(tempDir.resolve("keystore.p12"));
+        ServerConfig config = config("tls.port", "8443",
+                                     "tls.keyStorePath", keyStore.toString(),
+                                     "tls.protocols", "TLSv1.3",
+                                     "tls.sessionCacheSize", "1000",
+                                     "tls.sessionTimeout", "3600");
+        ServerConnector connector = JGitHttpServer.createTlsConnector(new Server(), config,
+                                                                      new HttpConfiguration());
+        assertEquals(8443, connector.getPort());
+        assertEquals(List.of("ssl", "http/1.1"), connector.getProtocols());
+        SslContextFactory.Server sslContextFactory =
+                connector.getConnectionFactory(SslConnectionFactory.class).getSslContextFactory();
+        assertArrayEquals(new String[] {"TLSv1.3"}, sslContextFactory.getIncludeProtocols());
+        assertEquals(1000, sslContextFactory.getSslSessionCacheSize());
+        assertEquals(3600, sslContextFactory.getSslSessionTimeout());
+        assertEquals(false, sslContextFactory.isRenegotiationAllowed());
+    }
+
+    @Test
+    public void testTlsConnectorWithHttp2() {
+        ServerConnector connector = JGitHttpServer.createTlsConnector(new Server(),
+                config("tls.port", "8443", "http2.enabled", "true"), new HttpConfiguration());
+        //h2 negotiated with ALPN, falling back to HTTP/1.1
+        assertEquals(List.of("ssl", "alpn", "h2", "http/1.1"), connector.getProtocols());
+    }
+
+    @Test
+    public void testThreadPoolOfConfig() {
+        assertTrue(JGitHttpServer.createThreadPool(config()) instanceof QueuedThreadPool);
+        ThreadPool pool = JGitHttpServer.createThreadPool(config("virtualThreads", "true"));
+        //platform threads where virtual threads aren't supported
+        assertTrue(VirtualThreads.areSupported() ? pool instanceof VirtualThreadPool
+                                                 : pool instanceof QueuedThreadPool);
+    }
+
+    /**
+     * Count the requests served concurrently by a server with the thread pool
+     * of the given configuration, the servlet waiting until all the requests
+     * have been sent, or for a few seconds.
+     */
+    private static int serveConcurrently(ServerConfig config) throws Exception {
+        AtomicInteger active = new AtomicInteger();
+        AtomicInteger maxActive = new AtomicInteger();
+        CountDownLatch done = new CountDownLatch(1);
+        HttpServlet servlet = new HttpServlet() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse rsp) throws IOException {
+                maxActive.accumulateAndGet(active.incrementAndGet(), Math::max);
+                try {
+                    done.await(10, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    active.decrementAndGet();
+                }
+                rsp.setStatus(HttpServletResponse.SC_OK);
+            }
+        };
+
+        Server server = new Server(JGitHttpServer.createThreadPool(config));
+        ServerConnector connector = new ServerConnector(server, 1, 1);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(servlet), "/*");
+        server.setHandler(context);
+        server.start();
+        try {
+            HttpClient client = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).build();
+            HttpRequest request = HttpRequest.newBuilder(
+                    URI.create("http://localhost:" + connector.getLocalPort() + "/clone")).build();
+            List<CompletableFuture<HttpResponse<Void>>> responses = new ArrayList<>();
+            for (int i = 0; i < REQUESTS; i++) {
+                responses.add(client.sendAsync(request, BodyHandlers.discarding()));
+            }
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(3);
+            while (maxActive.get() < REQUESTS && System.nanoTime() - deadline < 0) {
+                Thread.sleep(10);
+            }
+            done.countDown();
+            for (CompletableFuture<HttpResponse<Void>> response : responses) {
+                assertEquals(200, response.get(30, TimeUnit.SECONDS).statusCode());
+            }
+            return maxActive.get();
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public void testConcurrentRequestCapacity() throws Exception {
+        //the platform threads cap the requests served at once
+        int platform = serveConcurrently(config("threads.max", "16", "threads.min", "4"));
+        assertTrue(platform < REQUESTS, platform + " requests served at once on 16 platform threads");
+
+        assumeTrue(VirtualThreads.areSupported(), "virtual threads not supported");
+        int virtual = serveConcurrently(config("virtualThreads", "true"));
+        assertEquals(REQUESTS, virtual, "requests served at once on virtual threads");
+    }
+
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Path;
+import java.util.EnumSet;
+import java.util.Properties;
+
+import jakarta.servlet.DispatcherType;
+import jakarta.servlet.http.HttpServlet;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+import org.eclipse.jetty.ee10.servlet.FilterHolder;
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.chirontt.lfs.server.fs.SharedObjectStore;
+
+/**
+ * Tests of the dispatching of the LFS requests to the LFS servlets of the repositories.
+ */
+public class LfsDispatchFilterTest {
+
+    //status of the requests passed on to the servlet behind the filter
+    private static final int NOT_LFS = 418;
+
+    @TempDir
+    Path tempDir;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Server server;
+    private LfsDispatchFilter filter;
+    private String baseUrl;
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        if (server != null) {
+            server.stop();
+        }
+        RepositoryCache.clear();
+    }
+
+    private void startServer(String... settings) throws Exception {
+        Properties properties = new Properties();
+        for (int i = 0; i < settings.length; i += 2) {
+            properties.setProperty(settings[i], settings[i + 1]);
+        }
+        Path lfsPath = tempDir.resolve("lfs");
+        filter = new LfsDispatchFilter(tempDir.resolve("git").toString(), lfsPath.toString(), null,
+                                       URI.create("http://localhost"),
+                                       new SharedObjectStore(lfsPath.resolve("shared")),
+                                       new ServerConfig(properties));
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.addFilter(new FilterHolder(filter), "/*", EnumSet.of(DispatcherType.REQUEST));
+        context.addServlet(new ServletHolder(new HttpServlet() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void doGet(HttpServletRequest req, HttpServletResponse rsp) throws IOException {
+                rsp.setStatus(NOT_LFS);
+            }
+        }), "/*");
+        server.setHandler(context);
+        server.start();
+        baseUrl = "http://localhost:" + connector.getLocalPort() + "/";
+    }
+
+    private void createRepository(String name) throws Exception {
+        Git.init().setBare(true).setDirectory(tempDir.resolve("git").resolve(name).toFile()).call().close();
+    }
+
+    private int listLocks(String repoName) throws Exception {
+        return client.send(HttpRequest.newBuilder(URI.create(baseUrl + repoName + "/info/lfs/locks"))
+                .header("Accept", "application/vnd.git-lfs+json").build(),
+                BodyHandlers.discarding()).statusCode();
+    }
+
+    @Test
+    public void testRepositoryWithOrWithoutSuffix() throws Exception {
+        createRepository("foo.git");
+        createRepository("bar");
+        startServer();
+
+        //not remembered as missing when named without its suffix
+        assertEquals(200, listLocks("foo"));
+        assertEquals(200, listLocks("foo.git"));
+        assertEquals(200, listLocks("bar"));
+        assertEquals(200, listLocks("bar.git"));
+        assertEquals(2, filter.getRepositoryCount());
+
+        assertEquals(NOT_LFS, listLocks("baz"));
+        assertEquals(2, filter.getRepositoryCount());
+    }
+
+    @Test
+    public void testIdleRepositoryIsSetUpAgain() throws Exception {
+        createRepository("foo.git");
+        startServer("lfs.repositoryIdleTimeout", "100",
+                    "lfs.locks.manager", ServerConfig.LOCK_MANAGER_JOURNAL);
+        assertEquals(200, listLocks("foo"));
+        assertEquals(1, filter.getRepositoryCount());
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (filter.getRepositoryCount() > 0) {
+            assertTrue(System.currentTimeMillis() < deadline, "The idle repository hasn't been evicted");
+            Thread.sleep(20);
+        }
+        //the lock journal of the evicted servlets has been released
+        assertEquals(200, listLocks("foo.git"));
+    }
+
+}
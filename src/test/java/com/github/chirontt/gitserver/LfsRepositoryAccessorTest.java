@@ -0,0 +1,76 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lfs.errors.LfsRepositoryNotFound;
+import org.eclipse.jgit.lfs.errors.LfsRepositoryReadOnly;
+import org.eclipse.jgit.lfs.errors.LfsUnavailable;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.StoredConfig;
+import org.eclipse.jgit.storage.file.FileRepositoryBuilder;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class LfsRepositoryAccessorTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path createRepository() throws Exception {
+        Path gitDir = tempDir.resolve("repo.git");
+        Git.init().setBare(true).setDirectory(gitDir.toFile()).call().close();
+        return gitDir;
+    }
+
+    private static void setAccess(Path gitDir, boolean uploadPack, boolean receivePack)
+            throws Exception {
+        //through a handle of its own, as another process would
+        try (Repository repository = new FileRepositoryBuilder().setGitDir(gitDir.toFile()).build()) {
+            StoredConfig config = repository.getConfig();
+            config.setBoolean("http", null, "uploadpack", uploadPack);
+            config.setBoolean("http", null, "receivepack", receivePack);
+            config.save();
+        }
+    }
+
+    @Test
+    public void testConfigChangeIsPickedUp() throws Exception {
+        Path gitDir = createRepository();
+        LfsRepositoryAccessor accessor = new LfsRepositoryAccessor(gitDir);
+        accessor.checkReadAccess(null, null);
+        assertThrows(LfsRepositoryReadOnly.class, () -> accessor.checkWriteAccess(null, null));
+        accessor.checkWriteAccess(null, "tester");
+
+        setAccess(gitDir, false, true);
+        //the cached settings are used until the config file is checked again
+        accessor.checkReadAccess(null, null);
+        assertThrows(LfsRepositoryReadOnly.class, () -> accessor.checkWriteAccess(null, null));
+
+        Thread.sleep(LfsRepositoryAccessor.CONFIG_CHECK_INTERVAL_MILLIS + 100);
+        assertThrows(LfsUnavailable.class, () -> accessor.checkReadAccess(null, null));
+        accessor.checkWriteAccess(null, null);
+
+        //and unchanged settings are kept after the check
+        Thread.sleep(LfsRepositoryAccessor.CONFIG_CHECK_INTERVAL_MILLIS + 100);
+        assertThrows(LfsUnavailable.class, () -> accessor.checkReadAccess(null, null));
+    }
+
+    @Test
+    public void testMissingRepository() {
+        LfsRepositoryAccessor accessor = new LfsRepositoryAccessor(tempDir.resolve("missing.git"));
+        assertThrows(LfsRepositoryNotFound.class, () -> accessor.checkReadAccess(null, null));
+    }
+
+}
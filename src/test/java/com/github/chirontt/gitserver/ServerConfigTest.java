@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.gitserver;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the parsing of the server configuration.
+ */
+public class ServerConfigTest {
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    public void clearSystemProperties() {
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(ServerConfig.PROPERTY_PREFIX)) {
+                System.clearProperty(name);
+            }
+        }
+    }
+
+    private static ServerConfig config(String... keyValues) {
+        Properties properties = new Properties();
+        for (int i = 0; i < keyValues.length; i += 2) {
+            properties.setProperty(keyValues[i], keyValues[i + 1]);
+        }
+        return new ServerConfig(properties);
+    }
+
+    @Test
+    public void testDefaults() {
+        ServerConfig config = config();
+        assertEquals(8080, config.getPort());
+        assertEquals("/git", config.getBasePath());
+        assertNull(config.getLfsColdPath());
+        assertFalse(config.isVirtualThreads());
+        assertEquals(200, config.getMaxThreads());
+        assertEquals(-1, config.getAcceptors());
+        assertEquals(0, config.getMaxConnections());
+        assertEquals(30000, config.getIdleTimeout());
+        assertTrue(config.isLfsStreaming());
+    }
+
+    @Test
+    public void testValues() {
+        ServerConfig config = config("port", " 9090 ",
+                                     "lfsColdPath", "/cold",
+                                     "virtualThreads", "true",
+                                     "threads.max", "400",
+                                     "idleTimeout", "5000000000",
+                                     "lfs.streaming", "false",
+                                     //blank values are the default ones
+                                     "threads.min", " ");
+        assertEquals(9090, config.getPort());
+        assertEquals("/cold", config.getLfsColdPath());
+        assertTrue(config.isVirtualThreads());
+        assertEquals(400, config.getMaxThreads());
+        assertEquals(5000000000L, config.getIdleTimeout());
+        assertFalse(config.isLfsStreaming());
+        assertEquals(8, config.getMinThreads());
+    }
+
+    @Test
+    public void testInvalidValue() {
+        IllegalArgumentException e = assertThrows(IllegalArgumentException.class,
+                () -> config("threads.max", "many").getMaxThreads());
+        assertTrue(e.getMessage().contains("threads.max"));
+    }
+
+    @Test
+    public void testSystemPropertiesOverrideFile() throws Exception {
+        Path file = tempDir.resolve("jgitserver.properties");
+        Files.write(file, Arrays.asList("port=9090", "threads.max=400", "# comment", "acceptors=2"));
+        System.setProperty(ServerConfig.CONFIG_FILE_PROPERTY, file.toString());
+        System.setProperty(ServerConfig.PROPERTY_PREFIX + "threads.max", "50");
+
+        ServerConfig config = ServerConfig.load();
+        assertEquals(9090, config.getPort());
+        assertEquals(50, config.getMaxThreads());
+        assertEquals(2, config.getAcceptors());
+    }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lfs.server.LargeFileRepository;
+import org.eclipse.jgit.lfs.server.Response;
+import org.junit.jupiter.api.Test;
+
+public class CachingLfsRepositoryTest {
+
+    private static final long MISSING_TTL = 200;
+
+    /**
+     * Repository of the objects put in a map, counting the size lookups.
+     */
+    private static class MapRepository implements LargeFileRepository {
+        final Map<LongObjectId, Long> sizes = new ConcurrentHashMap<>();
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public Response.Action getDownloadAction(AnyLongObjectId id) {
+            return null;
+        }
+
+        @Override
+        public Response.Action getUploadAction(AnyLongObjectId id, long size) {
+            return new Response.Action();
+        }
+
+        @Override
+        public Response.Action getVerifyAction(AnyLongObjectId id) {
+            return null;
+        }
+
+        @Override
+        public long getSize(AnyLongObjectId id) {
+            lookups.incrementAndGet();
+            Long size = sizes.get(id.copy());
+            return size == null ? -1 : size.longValue();
+        }
+    }
+
+    private static LongObjectId idOf(String content) {
+        return LongObjectId.fromRaw(Constants.newMessageDigest()
+                .digest(content.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void testExistingObjectIsLookedUpOnce() throws Exception {
+        MapRepository repository = new MapRepository();
+        CachingLfsRepository cache = new CachingLfsRepository(repository, 10, 10, MISSING_TTL);
+        LongObjectId oid = idOf("a");
+        repository.sizes.put(oid, 1L);
+
+        assertEquals(1, cache.getSize(oid));
+        Thread.sleep(MISSING_TTL + 50);
+        assertEquals(1, cache.getSize(oid));
+        assertEquals(1, repository.lookups.get());
+    }
+
+    @Test
+    public void testMissingObjectIsCachedUntilItsTtl() throws Exception {
+        MapRepository repository = new MapRepository();
+        CachingLfsRepository cache = new CachingLfsRepository(repository, 10, 10, MISSING_TTL);
+        LongObjectId oid = idOf("a");
+
+        assertEquals(-1, cache.getSize(oid));
+        //stored behind the back of the cache: still missing until the TTL
+        repository.sizes.put(oid, 1L);
+        assertEquals(-1, cache.getSize(oid));
+        assertEquals(1, repository.lookups.get());
+
+        Thread.sleep(MISSING_TTL + 50);
+        assertEquals(1, cache.getSize(oid));
+        assertEquals(2, repository.lookups.get());
+    }
+
+    @Test
+    public void testStoredOrUploadedObjectIsNoLongerMissing() throws Exception {
+        MapRepository repository = new MapRepository();
+        CachingLfsRepository cache = new CachingLfsRepository(repository, 10, 10, MISSING_TTL);
+        LongObjectId stored = idOf("stored");
+        LongObjectId uploaded = idOf("uploaded");
+        assertEquals(-1, cache.getSize(stored));
+        assertEquals(-1, cache.getSize(uploaded));
+
+        cache.objectStored(stored, 6);
+        assertEquals(6, cache.getSize(stored));
+
+        //an upload request forgets the object is missing
+        cache.getUploadAction(uploaded, 8);
+        repository.sizes.put(uploaded, 8L);
+        assertEquals(8, cache.getSize(uploaded));
+        assertEquals(3, repository.lookups.get());
+    }
+
+    @Test
+    public void testCachesAreBounded() throws Exception {
+        MapRepository repository = new MapRepository();
+        CachingLfsRepository cache = new CachingLfsRepository(repository, 2, 2, MISSING_TTL);
+        LongObjectId[] existing = {idOf("a"), idOf("b"), idOf("c")};
+        LongObjectId[] missing = {idOf("x"), idOf("y"), idOf("z")};
+        for (LongObjectId oid : existing) {
+            repository.sizes.put(oid, 1L);
+        }
+
+        for (int i = 0; i < 2; i++) {
+            for (LongObjectId oid : existing) {
+                assertEquals(1, cache.getSize(oid));
+            }
+            for (LongObjectId oid : missing) {
+                assertEquals(-1, cache.getSize(oid));
+            }
+        }
+        //at least one of each three has been evicted, and looked up again
+        assertTrue(repository.lookups.get() >= 6 + 2, "lookups: " + repository.lookups.get());
+    }
+
+    @Test
+    public void testMissingObjectsAreNotCachedWithoutEntries() throws Exception {
+        MapRepository repository = new MapRepository();
+        CachingLfsRepository cache = new CachingLfsRepository(repository, 10, 0, MISSING_TTL);
+        LongObjectId oid = idOf("a");
+        assertEquals(-1, cache.getSize(oid));
+        repository.sizes.put(oid, 1L);
+        assertEquals(1, cache.getSize(oid));
+    }
+
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jgit.lfs.server.LargeFileRepository;
+import org.eclipse.jgit.lfs.server.fs.FileLfsRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Tests of the batch requests in streaming mode, over HTTP.
+ */
+public class LfsProtocolServletV2Test {
+
+    private static final String OBJECTS = "\"objects\":[{\"oid\":\""
+            + "0123456789012345678901234567890123456789012345678901234567890123\",\"size\":1}]";
+
+    @TempDir
+    Path tempDir;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    //the refs of the requests, as seen by the servlet
+    private final List<String> refs = new CopyOnWriteArrayList<>();
+    private Server server;
+    private String batchUrl;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        LargeFileRepository repository = new FileLfsRepository("http://localhost/objects/", tempDir);
+        LfsProtocolServletV2 servlet = new LfsProtocolServletV2() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected LargeFileRepository getLargeFileRepository(LfsRequestV2 lfsRequest,
+                    String path, String auth) {
+                refs.add(lfsRequest.getRef() == null ? null : lfsRequest.getRef().getName());
+                return repository;
+            }
+
+            @Override
+            protected RepositoryAccessor getRepositoryAccessor(String path) {
+                return null;
+            }
+        };
+        servlet.setStreaming(true);
+        servlet.setSupportedTransfers(Arrays.asList(LfsProtocolServletV2.TRANSFER_MULTIPART,
+                                                    LfsProtocolServletV2.TRANSFER_BASIC));
+
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(servlet), "/objects/batch");
+        server.setHandler(context);
+        server.start();
+        batchUrl = "http://localhost:" + connector.getLocalPort() + "/objects/batch";
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    private String batch(String body) throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(URI.create(batchUrl))
+                .header("Content-Type", "application/vnd.git-lfs+json")
+                .POST(BodyPublishers.ofString("{" + body + "}")).build(),
+                BodyHandlers.ofString());
+        assertEquals(200, response.statusCode(), response.body());
+        return response.body();
+    }
+
+    @Test
+    public void testMembersBeforeObjects() throws Exception {
+        String response = batch("\"operation\":\"upload\",\"transfers\":[\"multipart\"],"
+                                + "\"ref\":{\"name\":\"refs/heads/main\"}," + OBJECTS);
+        assertTrue(response.contains("\"transfer\":\"multipart\""), response);
+        assertEquals(Arrays.asList("refs/heads/main"), refs);
+    }
+
+    @Test
+    public void testMembersAfterObjects() throws Exception {
+        //in the order of the git-lfs client
+        String response = batch("\"operation\":\"upload\"," + OBJECTS
+                                + ",\"transfers\":[\"multipart\"],\"ref\":{\"name\":\"refs/heads/main\"}");
+        assertTrue(response.contains("\"transfer\":\"multipart\""), response);
+        assertEquals(Arrays.asList("refs/heads/main"), refs);
+    }
+
+}
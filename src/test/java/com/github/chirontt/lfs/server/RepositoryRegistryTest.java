@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.Repository;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.eclipse.jgit.lib.RepositoryCache.FileKey;
+import org.eclipse.jgit.lib.RepositoryCacheConfig;
+import org.eclipse.jgit.util.FS;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RepositoryRegistryTest {
+
+    private static final long IDLE_TIMEOUT = 100;
+
+    @TempDir
+    Path tempDir;
+
+    @AfterEach
+    public void resetIdleTimeout() {
+        RepositoryRegistry.setIdleTimeout(new RepositoryCacheConfig().getExpireAfter());
+        RepositoryCache.clear();
+    }
+
+    private Path createRepository() throws Exception {
+        Path gitDir = tempDir.resolve("repo.git");
+        Git.init().setBare(true).setDirectory(gitDir.toFile()).call().close();
+        return gitDir;
+    }
+
+    private static boolean isCached(Path gitDir) {
+        return RepositoryCache.getRegisteredKeys().contains(FileKey.exact(gitDir.toFile(), FS.DETECTED));
+    }
+
+    private static boolean waitUntilEvicted(Path gitDir) throws InterruptedException {
+        for (int i = 0; i < 100 && isCached(gitDir); i++) {
+            Thread.sleep(50);
+        }
+        return !isCached(gitDir);
+    }
+
+    @Test
+    public void testHandleIsShared() throws Exception {
+        Path gitDir = createRepository();
+        try (Repository first = RepositoryRegistry.open(gitDir);
+             Repository second = RepositoryRegistry.open(gitDir)) {
+            assertSame(first, second);
+            assertTrue(isCached(gitDir));
+        }
+    }
+
+    @Test
+    public void testIdleHandleIsClosed() throws Exception {
+        RepositoryRegistry.setIdleTimeout(IDLE_TIMEOUT);
+        Path gitDir = createRepository();
+        Repository repository = RepositoryRegistry.open(gitDir);
+        try (Repository inUse = RepositoryRegistry.open(gitDir)) {
+            assertSame(repository, inUse);
+            repository.close();
+            //not evicted while still in use
+            Thread.sleep(3 * IDLE_TIMEOUT);
+            assertTrue(isCached(gitDir));
+        }
+        assertTrue(waitUntilEvicted(gitDir));
+
+        //a new handle once evicted
+        try (Repository reopened = RepositoryRegistry.open(gitDir)) {
+            assertFalse(reopened == repository);
+        }
+    }
+
+    @Test
+    public void testMissingRepository() {
+        assertThrows(IOException.class, () -> RepositoryRegistry.open(tempDir.resolve("missing.git")));
+    }
+
+}
@@ -0,0 +1,48 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.junit.jupiter.api.Test;
+
+public class StripedLockTest {
+
+    @Test
+    public void testSameKeySameStripe() {
+        StripedLock stripes = new StripedLock(4);
+        assertSame(stripes.get("a"), stripes.get(new String("a")));
+        //negative hash codes are spread too
+        assertSame(stripes.get(-1), stripes.get(-1));
+    }
+
+    @Test
+    public void testStripeExcludesOtherThreads() throws Exception {
+        StripedLock stripes = new StripedLock();
+        stripes.lock("a");
+        try {
+            assertFalse(CompletableFuture.supplyAsync(() -> stripes.get("a").tryLock()).get());
+        } finally {
+            stripes.unlock("a");
+        }
+        assertTrue(CompletableFuture.supplyAsync(() -> {
+            boolean locked = stripes.get("a").tryLock();
+            if (locked) {
+                stripes.unlock("a");
+            }
+            return locked;
+        }).get());
+    }
+
+}
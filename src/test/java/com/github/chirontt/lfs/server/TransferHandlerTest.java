@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server;
+
+import static org.eclipse.jgit.lfs.lib.Constants.DOWNLOAD;
+import static org.eclipse.jgit.lfs.lib.Constants.UPLOAD;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lfs.server.LargeFileRepository;
+import org.eclipse.jgit.lfs.server.LfsObject;
+import org.eclipse.jgit.lfs.server.Response;
+import org.eclipse.jgit.lfs.server.internal.LfsGson;
+import org.junit.jupiter.api.Test;
+
+public class TransferHandlerTest {
+
+    /**
+     * Repository whose objects have the size encoded in their IDs,
+     * recording the threads looking them up.
+     */
+    private static class SizeRepository implements LargeFileRepository {
+        final Set<String> threads = ConcurrentHashMap.newKeySet();
+        volatile LongObjectId failing;
+
+        @Override
+        public Response.Action getDownloadAction(AnyLongObjectId id) {
+            return null;
+        }
+
+        @Override
+        public Response.Action getUploadAction(AnyLongObjectId id, long size) {
+            Response.Action action = new Response.Action();
+            action.href = "http://localhost/objects/" + id.name();
+            return action;
+        }
+
+        @Override
+        public Response.Action getVerifyAction(AnyLongObjectId id) {
+            return null;
+        }
+
+        @Override
+        public long getSize(AnyLongObjectId id) throws IOException {
+            threads.add(Thread.currentThread().getName());
+            if (id.equals(failing)) {
+                throw new IOException("Cannot read " + id.name());
+            }
+            //missing objects for every 10th ID
+            long size = sizeOf(id);
+            return size % 10 == 0 ? -1 : size;
+        }
+    }
+
+    private static LongObjectId idOf(int i) {
+        byte[] raw = new byte[Constants.LONG_OBJECT_ID_LENGTH];
+        ByteBuffer.wrap(raw).putInt(raw.length - 4, i);
+        return LongObjectId.fromRaw(raw);
+    }
+
+    private static long sizeOf(AnyLongObjectId id) {
+        byte[] raw = new byte[Constants.LONG_OBJECT_ID_LENGTH];
+        id.copyRawTo(raw, 0);
+        return ByteBuffer.wrap(raw).getInt(raw.length - 4);
+    }
+
+    private static LongObjectId[] ids(int count) {
+        LongObjectId[] oids = new LongObjectId[count];
+        for (int i = 0; i < count; i++) {
+            oids[i] = idOf(i);
+        }
+        return oids;
+    }
+
+    private static TransferHandler handler(LargeFileRepository repository) {
+        return TransferHandler.forOperation(DOWNLOAD, LfsProtocolServletV2.TRANSFER_BASIC, repository,
+                                            Collections.emptyList());
+    }
+
+    private static void assertSizes(LongObjectId[] oids, long[] sizes) {
+        assertEquals(oids.length, sizes.length);
+        for (int i = 0; i < oids.length; i++) {
+            assertEquals(i % 10 == 0 ? -1 : i, sizes[i], "size of object " + i);
+        }
+    }
+
+    @Test
+    public void testSmallBatchIsResolvedOnRequestThread() throws Exception {
+        SizeRepository repository = new SizeRepository();
+        LongObjectId[] oids = ids(TransferHandler.PARALLEL_THRESHOLD - 1);
+        assertSizes(oids, handler(repository).getSizes(oids));
+        assertEquals(Set.of(Thread.currentThread().getName()), repository.threads);
+    }
+
+    @Test
+    public void testLargeBatchIsResolvedInParallelInOrder() throws Exception {
+        for (int count : new int[] {TransferHandler.PARALLEL_THRESHOLD,
+                                    TransferHandler.PARALLEL_THRESHOLD * 10 + 7}) {
+            SizeRepository repository = new SizeRepository();
+            LongObjectId[] oids = ids(count);
+            assertSizes(oids, handler(repository).getSizes(oids));
+            assertTrue(repository.threads.contains(Thread.currentThread().getName()));
+            assertTrue(repository.threads.stream().anyMatch(name -> name.startsWith("lfs-size-lookup-")),
+                       repository.threads.toString());
+        }
+    }
+
+    @Test
+    public void testLookupFailureIsRethrown() {
+        SizeRepository repository = new SizeRepository();
+        LongObjectId[] oids = ids(TransferHandler.PARALLEL_THRESHOLD * 4);
+        //looked up by another thread than the request thread
+        repository.failing = oids[oids.length - 1];
+        IOException e = assertThrows(IOException.class, () -> handler(repository).getSizes(oids));
+        assertTrue(e.getMessage().contains(repository.failing.name()));
+    }
+
+    @Test
+    public void testObjectBeingUploadedGetsUploadAction() throws Exception {
+        CachingLfsRepository repository = new CachingLfsRepository(new SizeRepository());
+        LongObjectId oid = idOf(10);
+        assertTrue(repository.getUploadTracker().tryStart(oid, true));
+
+        //the concurrent upload itself is answered with 429 and Retry-After
+        List<Response.ObjectInfo> infos = TransferHandler.forOperation(UPLOAD,
+                LfsProtocolServletV2.TRANSFER_BASIC, repository, Collections.emptyList())
+                .process(List.of(LfsGson.fromJson(new StringReader(
+                        "{\"oid\":\"" + oid.name() + "\",\"size\":10}"), LfsObject.class)));
+        assertEquals(1, infos.size());
+        assertNull(infos.get(0).error);
+        assertNotNull(infos.get(0).actions.get(UPLOAD));
+    }
+
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lfs.lib.AnyLongObjectId;
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.chirontt.lfs.server.MultipartSupport;
+
+public class CompressingFileLfsRepositoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static LongObjectId store(CompressingFileLfsRepository repository, byte[] content)
+            throws Exception {
+        LongObjectId oid = LongObjectId.fromRaw(Constants.newMessageDigest().digest(content));
+        Path path = repository.getPath(oid);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content);
+        return oid;
+    }
+
+    @Test
+    public void testObjectIsCompressedInTheBackground() throws Exception {
+        CompletableFuture<Thread> ready = new CompletableFuture<>();
+        CompressingFileLfsRepository repository = new CompressingFileLfsRepository(
+                "http://localhost/", tempDir) {
+            @Override
+            protected void objectReady(AnyLongObjectId id) {
+                ready.complete(Thread.currentThread());
+            }
+        };
+        repository.setCompressionEnabled(true);
+        byte[] content = new byte[64 * 1024];
+        Arrays.fill(content, (byte) 'a');
+        LongObjectId oid = store(repository, content);
+
+        repository.objectStored(oid);
+        assertNotEquals(Thread.currentThread(), ready.get(10, TimeUnit.SECONDS));
+        assertFalse(Files.exists(repository.getPath(oid)));
+        assertTrue(Files.exists(repository.getCompressedPath(oid)));
+        assertEquals(content.length, repository.getSize(oid));
+    }
+
+    @Test
+    public void testObjectTransferredInPartsIsNotCompressed() throws Exception {
+        CompressingFileLfsRepository repository = new CompressingFileLfsRepository(
+                "http://localhost/", tempDir);
+        LongObjectId oid = store(repository, new byte[0]);
+        //a sparse file of zeros, which would compress very well
+        try (RandomAccessFile file = new RandomAccessFile(repository.getPath(oid).toFile(), "rw")) {
+            file.setLength(MultipartSupport.MIN_PART_SIZE + 1);
+        }
+
+        assertFalse(repository.compress(oid));
+        assertTrue(Files.exists(repository.getPath(oid)));
+    }
+
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Set;
+
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class DedupFileLfsRepositoryTest {
+
+    @TempDir
+    Path tempDir;
+
+    private DedupFileLfsRepository repository(String name, SharedObjectStore sharedStore)
+            throws Exception {
+        DedupFileLfsRepository repository = new DedupFileLfsRepository(
+                "http://localhost/" + name + "/", tempDir.resolve(name),
+                sharedStore.getColdDir() == null ? null : tempDir.resolve("cold").resolve(name),
+                sharedStore);
+        repository.setCompressionEnabled(false);
+        repository.setReadableRepositories(repoDir -> true);
+        return repository;
+    }
+
+    private static LongObjectId store(DedupFileLfsRepository repository, byte[] content)
+            throws Exception {
+        LongObjectId oid = LongObjectId.fromRaw(Constants.newMessageDigest().digest(content));
+        Path path = repository.getPath(oid);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content);
+        repository.objectStored(oid);
+        return oid;
+    }
+
+    private static int links(Path path) throws Exception {
+        return ((Integer) Files.getAttribute(path, "unix:nlink")).intValue();
+    }
+
+    @Test
+    public void testObjectIsOnlyLinkedOnUpload() throws Exception {
+        SharedObjectStore sharedStore = new SharedObjectStore(tempDir.resolve("shared"));
+        DedupFileLfsRepository repoA = repository("a", sharedStore);
+        DedupFileLfsRepository repoB = repository("b", sharedStore);
+
+        byte[] content = "shared content".getBytes(StandardCharsets.UTF_8);
+        LongObjectId oid = store(repoA, content);
+        assertEquals(content.length, repoA.getSize(oid));
+
+        //a lookup, e.g. by a download, doesn't link the object
+        assertEquals(-1, repoB.getSize(oid));
+        //nor does an upload request with another size
+        assertNotNull(repoB.getUploadAction(oid, content.length + 1));
+        assertEquals(-1, repoB.getSize(oid));
+
+        //the upload is skipped, the object being linked instead
+        assertNull(repoB.getUploadAction(oid, content.length));
+        assertEquals(content.length, repoB.getSize(oid));
+    }
+
+    @Test
+    public void testObjectOfUnreadableRepoIsNotLinked() throws Exception {
+        SharedObjectStore sharedStore = new SharedObjectStore(tempDir.resolve("shared"));
+        DedupFileLfsRepository repoA = repository("a", sharedStore);
+        DedupFileLfsRepository repoB = repository("b", sharedStore);
+        DedupFileLfsRepository repoC = repository("c", sharedStore);
+        Path dirA = tempDir.resolve("a").toAbsolutePath().normalize();
+        Path dirB = tempDir.resolve("b").toAbsolutePath().normalize();
+        repoB.setReadableRepositories(repoDir -> !repoDir.equals(dirA));
+        repoC.setReadableRepositories(repoDir -> !repoDir.equals(dirA));
+
+        byte[] content = "private content".getBytes(StandardCharsets.UTF_8);
+        LongObjectId oid = store(repoA, content);
+        assertEquals(Set.of(dirA), sharedStore.getReferences(oid));
+
+        //only referenced by an unreadable repo: uploaded again
+        assertNotNull(repoB.getUploadAction(oid, content.length));
+        assertEquals(-1, repoB.getSize(oid));
+
+        //once uploaded to a readable repo too, it is linked from there
+        store(repoB, content);
+        assertEquals(Set.of(dirA, dirB), sharedStore.getReferences(oid));
+        assertNull(repoC.getUploadAction(oid, content.length));
+        assertEquals(content.length, repoC.getSize(oid));
+        assertEquals(3, sharedStore.getReferences(oid).size());
+    }
+
+    @Test
+    public void testSharedObjectIsDemotedOnce() throws Exception {
+        SharedObjectStore sharedStore = new SharedObjectStore(tempDir.resolve("shared"),
+                tempDir.resolve("cold").resolve("shared"));
+        DedupFileLfsRepository repoA = repository("a", sharedStore);
+        DedupFileLfsRepository repoB = repository("b", sharedStore);
+
+        byte[] content = "content shared by the cold tiers".getBytes(StandardCharsets.UTF_8);
+        LongObjectId oid = store(repoA, content);
+        assertNull(repoB.getUploadAction(oid, content.length));
+        //known to the movers without a scan of the hot tiers
+        assertEquals(1, repoA.getHotObjectCount());
+        assertEquals(1, repoB.getHotObjectCount());
+
+        Path sharedHot = sharedStore.getPath(oid);
+        Path sharedCold = sharedStore.getColdDir().resolve(sharedStore.getDir().relativize(sharedHot));
+        repoA.setHotCapacity(1);
+        repoB.setHotCapacity(1);
+        repoA.moveObjects();
+        repoB.moveObjects();
+        assertEquals(0, repoB.getHotObjectCount());
+        Path coldA = repoA.getPath(oid);
+        Path coldB = repoB.getPath(oid);
+        assertTrue(repoA.isCold(coldA));
+        assertTrue(repoB.isCold(coldB));
+        //a single copy in the cold tier, linked into both repos
+        assertEquals(3, links(sharedCold));
+        assertTrue(Files.isSameFile(coldA, coldB));
+        assertFalse(Files.exists(sharedHot));
+
+        //promoted from the cold tier once read there
+        repoB.setHotCapacity(0);
+        repoB.objectRead(oid, coldB);
+        repoB.moveObjects();
+        Path hotB = repoB.getPath(oid);
+        assertFalse(repoB.isCold(hotB));
+        assertEquals(content.length, repoB.getSize(oid));
+        assertEquals(1, repoB.getHotObjectCount());
+        assertTrue(Files.exists(sharedHot));
+        assertEquals(2, links(sharedCold));
+    }
+
+    @Test
+    public void testStoredObjectsAreSharedOnce() throws Exception {
+        SharedObjectStore sharedStore = new SharedObjectStore(tempDir.resolve("shared"));
+        DedupFileLfsRepository repoA = repository("a", sharedStore);
+        byte[] content = "content stored before the shared store".getBytes(StandardCharsets.UTF_8);
+        LongObjectId oid = LongObjectId.fromRaw(Constants.newMessageDigest().digest(content));
+        Path path = repoA.getPath(oid);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content);
+
+        //not shared by a lookup
+        assertEquals(content.length, repoA.getSize(oid));
+        assertTrue(sharedStore.getReferences(oid).isEmpty());
+
+        assertEquals(1, repoA.shareStoredObjects());
+        assertTrue(Files.isSameFile(path, sharedStore.getPath(oid)));
+        assertEquals(1, sharedStore.getReferences(oid).size());
+        //only done once
+        assertEquals(-1, repoA.shareStoredObjects());
+        assertEquals(-1, repository("a", sharedStore).shareStoredObjects());
+    }
+
+}
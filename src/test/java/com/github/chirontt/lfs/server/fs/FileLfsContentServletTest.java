@@ -0,0 +1,412 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lfs.server.fs.FileLfsRepository;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.chirontt.lfs.server.CachingLfsRepository;
+import com.github.chirontt.lfs.server.MultipartSupport;
+import com.github.chirontt.lfs.server.TusSupport;
+
+/**
+ * Tests of the transfers of the content servlet, over HTTP.
+ */
+public class FileLfsContentServletTest {
+
+    @TempDir
+    Path tempDir;
+
+    private final HttpClient client = HttpClient.newBuilder()
+            .version(HttpClient.Version.HTTP_1_1)
+            .build();
+    private Server server;
+    private FileLfsRepository repository;
+    private CachingLfsRepository cache;
+    private CompressingFileLfsRepository compressingRepository;
+    private String objectsUrl;
+    private String compressedUrl;
+    private String restartedUrl;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        repository = new FileLfsRepository(null, tempDir);
+        cache = new CachingLfsRepository(repository);
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(new FileLfsContentServlet(repository, cache)), "/objects/*");
+        //another run of the server over the same repository, with no uploads in progress
+        context.addServlet(new ServletHolder(new FileLfsContentServlet(repository, null)),
+                           "/restarted/*");
+        compressingRepository = new CompressingFileLfsRepository(null, tempDir.resolve("compressed"));
+        context.addServlet(new ServletHolder(new FileLfsContentServlet(compressingRepository, null)),
+                           "/compressed/*");
+        server.setHandler(context);
+        server.start();
+        objectsUrl = "http://localhost:" + connector.getLocalPort() + "/objects/";
+        compressedUrl = "http://localhost:" + connector.getLocalPort() + "/compressed/";
+        restartedUrl = "http://localhost:" + connector.getLocalPort() + "/restarted/";
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop();
+    }
+
+    private static byte[] content(int size) {
+        byte[] content = new byte[size];
+        new Random(size).nextBytes(content);
+        return content;
+    }
+
+    private static LongObjectId idOf(byte[] content) {
+        return LongObjectId.fromRaw(Constants.newMessageDigest().digest(content));
+    }
+
+    private HttpRequest.Builder request(LongObjectId oid) {
+        return HttpRequest.newBuilder(URI.create(objectsUrl + oid.name()));
+    }
+
+    private HttpResponse<byte[]> send(HttpRequest.Builder request) throws Exception {
+        return client.send(request.build(), BodyHandlers.ofByteArray());
+    }
+
+    private HttpResponse<byte[]> get(LongObjectId oid, String range) throws Exception {
+        HttpRequest.Builder request = request(oid).GET();
+        if (range != null) {
+            request.header("Range", range);
+        }
+        return send(request);
+    }
+
+    @Test
+    public void testConditionalDownloads() throws Exception {
+        byte[] content = content(1024);
+        LongObjectId oid = idOf(content);
+        assertEquals(200, send(request(oid).PUT(BodyPublishers.ofByteArray(content))).statusCode());
+
+        HttpResponse<byte[]> whole = get(oid, null);
+        assertEquals(200, whole.statusCode());
+        String etag = whole.headers().firstValue("ETag").orElse(null);
+        assertEquals("\"" + oid.name() + "\"", etag);
+        String lastModified = whole.headers().firstValue("Last-Modified").orElse(null);
+
+        assertEquals(304, send(request(oid).GET().header("If-None-Match", etag)).statusCode());
+        assertEquals(304, send(request(oid).GET().header("If-Modified-Since", lastModified)).statusCode());
+        assertEquals(200, send(request(oid).GET()
+                .header("If-None-Match", "\"" + idOf(new byte[0]).name() + "\"")).statusCode());
+
+        HttpResponse<byte[]> head = send(request(oid).method("HEAD", BodyPublishers.noBody()));
+        assertEquals(200, head.statusCode());
+        assertEquals(Integer.toString(content.length),
+                     head.headers().firstValue("Content-Length").orElse(null));
+        assertEquals(0, head.body().length);
+    }
+
+    @Test
+    public void testCorruptUploadIsRejected() throws Exception {
+        byte[] content = content(1024);
+        LongObjectId oid = idOf(content);
+        byte[] corrupt = content.clone();
+        corrupt[0]++;
+
+        assertEquals(400, send(request(oid).PUT(BodyPublishers.ofByteArray(corrupt))).statusCode());
+        assertEquals(-1, repository.getSize(oid));
+        assertEquals(404, get(oid, null).statusCode());
+    }
+
+    private HttpResponse<byte[]> verify(LongObjectId oid, long size) throws Exception {
+        return send(request(oid)
+                .POST(BodyPublishers.ofString(
+                        "{\"oid\":\"" + oid.name() + "\",\"size\":" + size + "}"))
+                .header("Content-Type", "application/vnd.git-lfs+json"));
+    }
+
+    @Test
+    public void testVerify() throws Exception {
+        byte[] content = content(1024);
+        LongObjectId oid = idOf(content);
+        assertEquals(404, verify(oid, content.length).statusCode());
+
+        assertEquals(200, send(request(oid).PUT(BodyPublishers.ofByteArray(content))).statusCode());
+        assertEquals(200, verify(oid, content.length).statusCode());
+        assertEquals(422, verify(oid, content.length + 1).statusCode());
+        //not the object of the URL
+        assertEquals(422, send(request(oid)
+                .POST(BodyPublishers.ofString("{\"oid\":\"" + idOf(new byte[0]).name()
+                                              + "\",\"size\":0}"))).statusCode());
+    }
+
+    @Test
+    public void testRangeDownloads() throws Exception {
+        //large enough to be mapped rather than copied
+        byte[] content = content(200 * 1024);
+        LongObjectId oid = idOf(content);
+        assertEquals(200, send(request(oid).PUT(BodyPublishers.ofByteArray(content))).statusCode());
+
+        HttpResponse<byte[]> whole = get(oid, null);
+        assertEquals(200, whole.statusCode());
+        assertArrayEquals(content, whole.body());
+
+        HttpResponse<byte[]> range = get(oid, "bytes=1000-1999");
+        assertEquals(206, range.statusCode());
+        assertEquals("bytes 1000-1999/" + content.length,
+                     range.headers().firstValue("Content-Range").orElse(null));
+        assertArrayEquals(Arrays.copyOfRange(content, 1000, 2000), range.body());
+
+        //resumed download of the last bytes
+        HttpResponse<byte[]> suffix = get(oid, "bytes=-100");
+        assertEquals(206, suffix.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, content.length - 100, content.length),
+                          suffix.body());
+
+        HttpResponse<byte[]> ranges = get(oid, "bytes=0-9,100-109");
+        assertEquals(206, ranges.statusCode());
+        assertTrue(ranges.headers().firstValue("Content-Type").orElse("")
+                   .startsWith("multipart/byteranges"));
+
+        //the whole object if it has changed since the first part was downloaded
+        HttpResponse<byte[]> changed = send(request(oid).GET()
+                .header("Range", "bytes=1000-1999")
+                .header("If-Range", "\"" + idOf(new byte[0]).name() + "\""));
+        assertEquals(200, changed.statusCode());
+        assertArrayEquals(content, changed.body());
+
+        assertEquals(416, get(oid, "bytes=" + content.length + "-").statusCode());
+    }
+
+    @Test
+    public void testRangeDownloadsOfCompressedObject() throws Exception {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; text.length() < 200 * 1024; i++) {
+            text.append("line ").append(i).append('\n');
+        }
+        byte[] content = text.toString().getBytes(StandardCharsets.US_ASCII);
+        LongObjectId oid = idOf(content);
+        Path path = compressingRepository.getPath(oid);
+        Files.createDirectories(path.getParent());
+        Files.write(path, content);
+        assertTrue(compressingRepository.compress(oid));
+
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(compressedUrl + oid.name()));
+        HttpResponse<byte[]> whole = send(request.copy().GET());
+        assertEquals(200, whole.statusCode());
+        assertArrayEquals(content, whole.body());
+
+        HttpResponse<byte[]> range = send(request.copy().GET().header("Range", "bytes=100000-100099"));
+        assertEquals(206, range.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, 100000, 100100), range.body());
+
+        //all the ranges from a single pass over the object, in order
+        HttpResponse<byte[]> ranges = send(request.copy().GET()
+                .header("Range", "bytes=150000-150009,10-19,-10"));
+        assertEquals(206, ranges.statusCode());
+        String body = new String(ranges.body(), StandardCharsets.US_ASCII);
+        int first = body.indexOf(text.substring(10, 20));
+        int second = body.indexOf(text.substring(150000, 150010));
+        int third = body.lastIndexOf(text.substring(content.length - 10));
+        assertTrue(first >= 0 && first < second && second < third, body);
+        assertEquals(ranges.headers().firstValueAsLong("Content-Length").orElse(-1), ranges.body().length);
+    }
+
+    private HttpResponse<byte[]> patch(LongObjectId oid, byte[] content, int from, int to)
+            throws Exception {
+        return patch(request(oid), content, from, to);
+    }
+
+    private HttpResponse<byte[]> patch(HttpRequest.Builder request, byte[] content, int from, int to)
+            throws Exception {
+        return send(request
+                .method("PATCH", BodyPublishers.ofByteArray(content, from, to - from))
+                .header(TusSupport.HDR_TUS_RESUMABLE, TusSupport.TUS_VERSION)
+                .header("Content-Type", TusSupport.CONTENTTYPE_OFFSET_OCTET_STREAM)
+                .header(TusSupport.HDR_UPLOAD_OFFSET, Integer.toString(from))
+                .header(TusSupport.HDR_UPLOAD_LENGTH, Integer.toString(content.length)));
+    }
+
+    private long tusOffset(LongObjectId oid) throws Exception {
+        HttpResponse<byte[]> head = send(request(oid)
+                .method("HEAD", BodyPublishers.noBody())
+                .header(TusSupport.HDR_TUS_RESUMABLE, TusSupport.TUS_VERSION));
+        assertEquals(200, head.statusCode());
+        return Long.parseLong(head.headers().firstValue(TusSupport.HDR_UPLOAD_OFFSET).orElse("-1"));
+    }
+
+    @Test
+    public void testTusUpload() throws Exception {
+        byte[] content = content(100 * 1024);
+        LongObjectId oid = idOf(content);
+        int half = content.length / 2;
+        assertEquals(0, tusOffset(oid));
+
+        HttpResponse<byte[]> first = patch(oid, content, 0, half);
+        assertEquals(204, first.statusCode());
+        assertEquals(Integer.toString(half),
+                     first.headers().firstValue(TusSupport.HDR_UPLOAD_OFFSET).orElse(null));
+        assertEquals(-1, repository.getSize(oid));
+
+        //resumed from the offset reported by the server
+        assertEquals(half, tusOffset(oid));
+        assertEquals(409, patch(oid, content, 0, 16).statusCode());
+        assertEquals(204, patch(oid, content, half, content.length).statusCode());
+
+        assertEquals(content.length, repository.getSize(oid));
+        assertArrayEquals(content, get(oid, null).body());
+    }
+
+    @Test
+    public void testTusUploadResumedWithoutDigest() throws Exception {
+        byte[] content = content(300 * 1024);
+        LongObjectId oid = idOf(content);
+        int third = content.length / 3;
+        assertEquals(204, patch(oid, content, 0, third).statusCode());
+
+        //the bytes received so far are hashed from the partial file
+        HttpRequest.Builder restarted = HttpRequest.newBuilder(URI.create(restartedUrl + oid.name()));
+        assertEquals(204, patch(restarted, content, third, 2 * third).statusCode());
+        //then back with a digest not up to the offset
+        assertEquals(204, patch(oid, content, 2 * third, content.length).statusCode());
+
+        assertEquals(content.length, repository.getSize(oid));
+        assertArrayEquals(content, get(oid, null).body());
+    }
+
+    @Test
+    public void testTusUploadOfOtherContentIsRejected() throws Exception {
+        byte[] content = content(100 * 1024);
+        LongObjectId oid = idOf(content);
+        byte[] other = content.clone();
+        other[other.length - 1]++;
+        int half = content.length / 2;
+        assertEquals(204, patch(oid, other, 0, half).statusCode());
+        assertEquals(400, patch(oid, other, half, other.length).statusCode());
+        assertEquals(-1, repository.getSize(oid));
+        assertEquals(0, tusOffset(oid));
+    }
+
+    private HttpResponse<byte[]> putPart(LongObjectId oid, byte[] content, long first, long last)
+            throws Exception {
+        return send(request(oid)
+                .PUT(BodyPublishers.ofByteArray(content, (int) first, (int) (last - first + 1)))
+                .header("Content-Range", "bytes " + first + "-" + last + "/" + content.length));
+    }
+
+    @Test
+    public void testMultipartUpload() throws Exception {
+        byte[] content = content((int) MultipartSupport.MIN_PART_SIZE + 4096);
+        LongObjectId oid = idOf(content);
+        long partSize = MultipartSupport.getPartSize(content.length);
+        assertEquals(2, MultipartSupport.getPartCount(content.length));
+
+        //not a part of the object, rejected before its body is read
+        assertEquals(400, send(request(oid)
+                .PUT(BodyPublishers.ofByteArray(content, 0, 16))
+                .header("Content-Range", "bytes 1-" + partSize + "/" + content.length))
+                .statusCode());
+        //the parts are uploaded in any order
+        assertEquals(200, putPart(oid, content, partSize, content.length - 1).statusCode());
+        assertEquals(-1, repository.getSize(oid));
+        //a part of the object with another size, which would extend the upload in progress
+        byte[] longer = Arrays.copyOf(content, (int) (2 * partSize) + 16);
+        assertEquals(409, putPart(oid, longer, 2 * partSize, longer.length - 1).statusCode());
+        assertEquals(200, putPart(oid, content, 0, partSize - 1).statusCode());
+
+        assertEquals(content.length, repository.getSize(oid));
+        HttpResponse<byte[]> range = get(oid, "bytes=" + (partSize - 10) + "-" + (partSize + 9));
+        assertEquals(206, range.statusCode());
+        assertArrayEquals(Arrays.copyOfRange(content, (int) partSize - 10, (int) partSize + 10),
+                          range.body());
+    }
+
+    @Test
+    public void testMultipartUploadInOrder() throws Exception {
+        byte[] content = content((int) MultipartSupport.MIN_PART_SIZE + 4096);
+        LongObjectId oid = idOf(content);
+        long partSize = MultipartSupport.getPartSize(content.length);
+
+        assertEquals(200, putPart(oid, content, 0, partSize - 1).statusCode());
+        //a part already received isn't written again
+        byte[] other = content.clone();
+        other[0]++;
+        assertEquals(200, putPart(oid, other, 0, partSize - 1).statusCode());
+        assertEquals(-1, repository.getSize(oid));
+        assertEquals(200, putPart(oid, content, partSize, content.length - 1).statusCode());
+
+        assertEquals(content.length, repository.getSize(oid));
+        assertArrayEquals(content, get(oid, null).body());
+    }
+
+    @Test
+    public void testConcurrentUploadIsRetriedLater() throws Exception {
+        byte[] content = content(64 * 1024);
+        LongObjectId oid = idOf(content);
+        URI uri = URI.create(objectsUrl + oid.name());
+        try (Socket socket = new Socket(uri.getHost(), uri.getPort())) {
+            //the first upload has sent only the start of its content
+            OutputStream out = socket.getOutputStream();
+            out.write(("PUT " + uri.getPath() + " HTTP/1.1\r\n"
+                       + "Host: " + uri.getHost() + "\r\n"
+                       + "Content-Length: " + content.length + "\r\n"
+                       + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.write(content, 0, 1024);
+            out.flush();
+            long deadline = System.currentTimeMillis() + 10000;
+            while (!cache.getUploadTracker().isInProgress(oid)) {
+                assertTrue(System.currentTimeMillis() < deadline, "The first upload hasn't started");
+                Thread.sleep(10);
+            }
+
+            HttpResponse<byte[]> second = send(request(oid).PUT(BodyPublishers.ofByteArray(content)));
+            assertEquals(429, second.statusCode());
+            assertEquals("5", second.headers().firstValue("Retry-After").orElse(null));
+
+            out.write(content, 1024, content.length - 1024);
+            out.flush();
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.US_ASCII));
+            assertTrue(in.readLine().startsWith("HTTP/1.1 200"));
+        }
+        assertEquals(content.length, repository.getSize(oid));
+        //already stored: nothing is written again
+        assertEquals(200, send(request(oid).PUT(BodyPublishers.ofByteArray(content))).statusCode());
+    }
+
+}
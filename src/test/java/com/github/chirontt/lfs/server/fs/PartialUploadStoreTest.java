@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.eclipse.jgit.lfs.server.fs.FileLfsRepository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PartialUploadStoreTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static LongObjectId oidOf(byte[] content) {
+        return LongObjectId.fromRaw(Constants.newMessageDigest().digest(content));
+    }
+
+    private static Path partialFile(PartialUploadStore store, String content, String suffix,
+            long ageMillis) throws Exception {
+        Path file = store.getPartialPath(oidOf(content.getBytes(StandardCharsets.UTF_8)), suffix);
+        Files.write(file, new byte[] {1});
+        Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis() - ageMillis));
+        return file;
+    }
+
+    @Test
+    public void testStoreVerifiesContent() throws Exception {
+        FileLfsRepository repository = new FileLfsRepository("http://localhost/", tempDir);
+        PartialUploadStore store = new PartialUploadStore(repository, null);
+        byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+        LongObjectId oid = oidOf(content);
+
+        assertEquals(-1, store.store(oid, new ByteArrayInputStream("other".getBytes(StandardCharsets.UTF_8))));
+        assertEquals(-1, store.getExistingSize(oid));
+        assertEquals(content.length, store.store(oid, new ByteArrayInputStream(content)));
+        assertEquals(content.length, store.getExistingSize(oid));
+    }
+
+    @Test
+    public void testCompleteCutsOffBytesBeyondSize() throws Exception {
+        FileLfsRepository repository = new FileLfsRepository("http://localhost/", tempDir);
+        PartialUploadStore store = new PartialUploadStore(repository, null);
+        byte[] content = "content".getBytes(StandardCharsets.UTF_8);
+        LongObjectId oid = oidOf(content);
+
+        Path partial = store.getPartialPath(oid, ".multipart");
+        Files.write(partial, "contenttrailing".getBytes(StandardCharsets.UTF_8));
+        store.cutOff(oid, partial, content.length);
+        //hashed in several steps
+        MessageDigest md = Constants.newMessageDigest();
+        try (FileChannel channel = FileChannel.open(partial, StandardOpenOption.READ)) {
+            PartialUploadStore.hash(channel, md, 0, 3);
+            PartialUploadStore.hash(channel, md, 3, content.length);
+        }
+        assertTrue(store.complete(oid, partial, content.length, LongObjectId.fromRaw(md.digest())));
+        assertEquals(content.length, store.getExistingSize(oid));
+        assertArrayEquals(content, Files.readAllBytes(repository.getPath(oid)));
+
+        //an already hashed file of another length is discarded
+        LongObjectId otherOid = oidOf("other".getBytes(StandardCharsets.UTF_8));
+        partial = store.getPartialPath(otherOid, ".tus");
+        Files.write(partial, "othertrailing".getBytes(StandardCharsets.UTF_8));
+        assertFalse(store.complete(otherOid, partial, 5, otherOid));
+        assertEquals(-1, store.getExistingSize(otherOid));
+        assertFalse(Files.exists(partial));
+    }
+
+    @Test
+    public void testAbandonedUploadsAreRemoved() throws Exception {
+        FileLfsRepository repository = new FileLfsRepository("http://localhost/", tempDir);
+        PartialUploadStore store = new PartialUploadStore(repository, null);
+        long hour = TimeUnit.HOURS.toMillis(1);
+
+        Path abandonedTus = partialFile(store, "a", ".tus", 3 * hour);
+        Path activeTus = partialFile(store, "b", ".tus", 0);
+        Path abandonedData = partialFile(store, "c", ".multipart", 3 * hour);
+        Path abandonedParts = partialFile(store, "c", ".parts", 3 * hour);
+        //the data of a multipart upload whose parts are still coming in
+        Path idleData = partialFile(store, "d", ".multipart", 3 * hour);
+        Path activeParts = partialFile(store, "d", ".parts", 0);
+
+        assertEquals(3, store.removeAbandoned(2 * hour));
+        assertFalse(Files.exists(abandonedTus));
+        assertFalse(Files.exists(abandonedData));
+        assertFalse(Files.exists(abandonedParts));
+        assertTrue(Files.exists(activeTus));
+        assertTrue(Files.exists(idleData));
+        assertTrue(Files.exists(activeParts));
+    }
+
+}
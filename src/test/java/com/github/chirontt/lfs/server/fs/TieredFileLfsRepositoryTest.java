@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.fs;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jgit.lfs.lib.Constants;
+import org.eclipse.jgit.lfs.lib.LongObjectId;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class TieredFileLfsRepositoryTest {
+
+    private static final long MAX_IDLE_TIME = TimeUnit.DAYS.toMillis(5);
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * @return A new instance of the repository, as after a restart of the server
+     */
+    private TieredFileLfsRepository repository() throws Exception {
+        TieredFileLfsRepository repository = new TieredFileLfsRepository(
+                "http://localhost/", tempDir.resolve("hot"), tempDir.resolve("cold"));
+        repository.setMaxIdleTime(MAX_IDLE_TIME);
+        return repository;
+    }
+
+    /**
+     * Store an object last modified and accessed long ago.
+     */
+    private static LongObjectId storeOld(TieredFileLfsRepository repository, String content)
+            throws Exception {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        LongObjectId oid = LongObjectId.fromRaw(Constants.newMessageDigest().digest(bytes));
+        Path path = repository.getPath(oid);
+        Files.createDirectories(path.getParent());
+        Files.write(path, bytes);
+        FileTime old = FileTime.fromMillis(System.currentTimeMillis() - 2 * MAX_IDLE_TIME);
+        Files.getFileAttributeView(path, BasicFileAttributeView.class).setTimes(old, old, null);
+        return oid;
+    }
+
+    @Test
+    public void testLastUseSurvivesRestart() throws Exception {
+        TieredFileLfsRepository repository = repository();
+        LongObjectId read = storeOld(repository, "read object");
+        LongObjectId idle = storeOld(repository, "idle object");
+        repository.objectRead(read, repository.getPath(read));
+
+        repository = repository();
+        repository.moveObjects();
+        assertFalse(repository.isCold(repository.getPath(read)));
+        assertTrue(repository.isCold(repository.getPath(idle)));
+
+        //promoted once read from the cold tier, and kept there after a restart
+        //although the promoted file keeps its old modification time
+        repository.objectRead(idle, repository.getPath(idle));
+        repository.moveObjects();
+        assertEquals(1, repository.getPromotedCount());
+        repository = repository();
+        repository.moveObjects();
+        assertFalse(repository.isCold(repository.getPath(idle)));
+        assertEquals(0, repository.getDemotedCount());
+    }
+
+}
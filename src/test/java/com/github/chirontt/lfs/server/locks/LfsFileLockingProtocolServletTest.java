@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.io.StringReader;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.eclipse.jetty.ee10.servlet.ServletContextHandler;
+import org.eclipse.jetty.ee10.servlet.ServletHolder;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lfs.server.internal.LfsGson;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.RepositoryCache;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.chirontt.lfs.server.RepositoryAccessor;
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Locks;
+import com.github.chirontt.lfs.server.locks.lm.MemoryLfsLockManager;
+
+/**
+ * Tests of the paging of the lock listings of the file locking servlet, over HTTP.
+ */
+public class LfsFileLockingProtocolServletTest {
+
+    //more than a page of the default size
+    private static final int LOCKS = LfsFileLockingProtocolServlet.DEFAULT_PAGE_SIZE + 50;
+
+    @TempDir
+    Path tempDir;
+
+    private final HttpClient client = HttpClient.newHttpClient();
+    private Server server;
+    private String locksUrl;
+
+    @BeforeEach
+    public void startServer() throws Exception {
+        Path workTree = tempDir.resolve("repo");
+        PersonIdent ident = new PersonIdent("tester", "tester@example.com");
+        Path repoPath;
+        try (Git git = Git.init().setInitialBranch("main").setDirectory(workTree.toFile()).call()) {
+            for (int i = 0; i < LOCKS; i++) {
+                Files.write(workTree.resolve("file" + i + ".bin"), new byte[] { (byte) i });
+            }
+            git.add().addFilepattern(".").call();
+            git.commit().setMessage("files").setAuthor(ident).setCommitter(ident).call();
+            repoPath = git.getRepository().getDirectory().toPath();
+        }
+        MemoryLfsLockManager lockManager = new MemoryLfsLockManager(repoPath);
+        for (int i = 0; i < LOCKS; i++) {
+            lockManager.createLock("file" + i + ".bin", null, "tester");
+        }
+
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        server.addConnector(connector);
+        ServletContextHandler context = new ServletContextHandler();
+        context.addServlet(new ServletHolder(new LfsFileLockingProtocolServlet() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected LockManager getLockManager() {
+                return lockManager;
+            }
+
+            @Override
+            protected RepositoryAccessor getRepositoryAccessor(String path) {
+                return null;
+            }
+        }), "/locks");
+        server.setHandler(context);
+        server.start();
+        locksUrl = "http://localhost:" + connector.getLocalPort() + "/locks";
+    }
+
+    @AfterEach
+    public void stopServer() throws Exception {
+        server.stop();
+        RepositoryCache.clear();
+    }
+
+    private Locks listLocks(String query) throws Exception {
+        HttpResponse<String> response = client.send(HttpRequest.newBuilder(
+                URI.create(query == null ? locksUrl : locksUrl + "?" + query)).build(),
+                BodyHandlers.ofString());
+        assertEquals(200, response.statusCode());
+        return LfsGson.fromJson(new StringReader(response.body()), Locks.class);
+    }
+
+    @Test
+    public void testListingWithoutLimitIsPaged() throws Exception {
+        Locks first = listLocks(null);
+        assertEquals(LfsFileLockingProtocolServlet.DEFAULT_PAGE_SIZE, first.getLocks().size());
+        assertNotNull(first.getNextCursor());
+        assertEquals(LfsFileLockingProtocolServlet.DEFAULT_PAGE_SIZE,
+                     listLocks("limit=0").getLocks().size());
+
+        Locks last = listLocks("cursor=" + first.getNextCursor());
+        assertEquals(LOCKS - LfsFileLockingProtocolServlet.DEFAULT_PAGE_SIZE, last.getLocks().size());
+        assertNull(last.getNextCursor());
+    }
+
+    @Test
+    public void testLimit() throws Exception {
+        Locks page = listLocks("limit=10");
+        assertEquals(10, page.getLocks().size());
+        assertEquals(page.getNextCursor(), listLocks("limit=11").getLocks().get(10).getId());
+        assertEquals(LOCKS, listLocks("limit=" + LOCKS).getLocks().size());
+    }
+
+    @Test
+    public void testPageSizeIsBounded() {
+        assertEquals(LfsFileLockingProtocolServlet.DEFAULT_PAGE_SIZE,
+                     LfsFileLockingProtocolServlet.getPageSize(-1));
+        assertEquals(LfsFileLockingProtocolServlet.MAX_PAGE_SIZE,
+                     LfsFileLockingProtocolServlet.getPageSize(Integer.MAX_VALUE));
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Owner;
+
+public class CommitStatisticsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testEmpty() {
+        CommitStatistics statistics = new CommitStatistics();
+        assertEquals(0, statistics.getBatchCount());
+        assertEquals(0, statistics.getRecordCount());
+        assertEquals(0, statistics.getMaxBatchSize());
+        assertEquals(0, statistics.getAverageBatchSize());
+        assertEquals(0, statistics.getAverageFlushMillis());
+    }
+
+    @Test
+    public void testBatches() {
+        CommitStatistics statistics = new CommitStatistics();
+        statistics.recordBatch(1, TimeUnit.MILLISECONDS.toNanos(2));
+        statistics.recordBatch(5, TimeUnit.MILLISECONDS.toNanos(4));
+        statistics.recordBatch(3, TimeUnit.MILLISECONDS.toNanos(6));
+
+        assertEquals(3, statistics.getBatchCount());
+        assertEquals(9, statistics.getRecordCount());
+        assertEquals(5, statistics.getMaxBatchSize());
+        assertEquals(3.0, statistics.getAverageBatchSize(), 1e-9);
+        assertEquals(4.0, statistics.getAverageFlushMillis(), 1e-9);
+        assertEquals("batches=3, records=9, maxBatchSize=5, avgBatchSize=3.00, avgFlushMillis=4.000",
+                     statistics.toString());
+    }
+
+    @Test
+    public void testGroupCommitCoalescesRecords() throws Exception {
+        LockJournal journal = new LockJournal(tempDir.resolve("locks.journal"), new LockIndex(), 50, 16);
+        journal.open(record -> {});
+        List<LockJournal.Append> appends = new ArrayList<>();
+        for (int i = 0; i < 16; i++) {
+            PersistentLock lock = new PersistentLock();
+            lock.setId(LockUtils.toLockId("file" + i + ".bin"));
+            lock.setPath("file" + i + ".bin");
+            lock.setOwner(new Owner("tester"));
+            appends.add(journal.enqueue(LockJournal.Record.create(lock)));
+        }
+        for (LockJournal.Append append : appends) {
+            append.await();
+        }
+        journal.close();
+
+        //all the records are covered by fewer fsyncs than records
+        CommitStatistics statistics = journal.getStatistics();
+        assertEquals(16, statistics.getRecordCount());
+        assertEquals(statistics.getRecordCount(),
+                     Math.round(statistics.getAverageBatchSize() * statistics.getBatchCount()));
+        assertTrue(statistics.getBatchCount() < 16);
+    }
+
+}
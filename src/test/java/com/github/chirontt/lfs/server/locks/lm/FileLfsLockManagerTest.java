@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lfs.errors.LfsException;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Lock;
+import com.github.chirontt.lfs.server.locks.LockManager;
+import com.github.chirontt.lfs.server.locks.errors.LfsLockExists;
+
+public class FileLfsLockManagerTest {
+
+    private static final int PATHS = 8;
+    private static final int THREADS = 8;
+    private static final int ROUNDS = 20;
+
+    @TempDir
+    Path tempDir;
+
+    static Path createRepository(Path tempDir) throws Exception {
+        Path workTree = tempDir.resolve("repo");
+        PersonIdent ident = new PersonIdent("tester", "tester@example.com");
+        try (Git git = Git.init().setInitialBranch("main").setDirectory(workTree.toFile()).call()) {
+            for (int i = 0; i < PATHS; i++) {
+                Files.write(workTree.resolve("file" + i + ".bin"), new byte[] { (byte) i });
+            }
+            git.add().addFilepattern(".").call();
+            git.commit().setMessage("files").setAuthor(ident).setCommitter(ident).call();
+            return git.getRepository().getDirectory().toPath();
+        }
+    }
+
+    private Set<String> lockFileIds(Path lfsPath) throws Exception {
+        Path locksPath = lfsPath.resolve("locks");
+        if (!Files.exists(locksPath)) {
+            return new TreeSet<>();
+        }
+        try (Stream<Path> stream = Files.list(locksPath)) {
+            return stream.map(path -> path.getFileName().toString())
+                         .collect(Collectors.toCollection(TreeSet::new));
+        }
+    }
+
+    private static Set<String> lockIds(FileLfsLockManager lockManager) throws LfsException {
+        return lockManager.listLocks(null, null, null, 0, null).getLocks().stream()
+                          .map(Lock::getId)
+                          .collect(Collectors.toCollection(TreeSet::new));
+    }
+
+    /**
+     * Let concurrent users race for the locks of all the paths, round after round,
+     * and check that exactly one of them wins each lock, the others being told
+     * who holds it; then race again to delete each lock, which exactly one wins.
+     */
+    static void raceForLocks(LockManager lockManager) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            for (int round = 0; round < ROUNDS; round++) {
+                //path -> owners of the created locks, and errors of the failed creations
+                Map<String, List<String>> winners = new ConcurrentHashMap<>();
+                Map<String, List<LfsException>> losers = new ConcurrentHashMap<>();
+                race(executor, (user, path) -> {
+                    try {
+                        lockManager.createLock(path, null, user);
+                        winners.computeIfAbsent(path, p -> new CopyOnWriteArrayList<>()).add(user);
+                    } catch (LfsException e) {
+                        losers.computeIfAbsent(path, p -> new CopyOnWriteArrayList<>()).add(e);
+                    }
+                });
+                for (int i = 0; i < PATHS; i++) {
+                    String path = "file" + i + ".bin";
+                    List<String> owners = winners.getOrDefault(path, Collections.emptyList());
+                    assertEquals(1, owners.size(), "creations of " + path + " in round " + round);
+                    List<LfsException> errors = losers.get(path);
+                    assertEquals(THREADS - 1, errors.size());
+                    for (LfsException e : errors) {
+                        LfsLockExists exists = assertInstanceOf(LfsLockExists.class, e);
+                        assertEquals(LockUtils.toLockId(path), exists.getLock().getId());
+                        assertEquals(owners.get(0), exists.getLock().getOwner().getName());
+                    }
+                }
+
+                Map<String, AtomicInteger> deletions = new ConcurrentHashMap<>();
+                race(executor, (user, path) -> {
+                    try {
+                        lockManager.deleteLock(LockUtils.toLockId(path), null, user, true);
+                        deletions.computeIfAbsent(path, p -> new AtomicInteger()).incrementAndGet();
+                    } catch (LfsException e) {
+                        //already deleted by another user
+                        assertFalse(e instanceof LfsLockExists);
+                    }
+                });
+                for (int i = 0; i < PATHS; i++) {
+                    assertEquals(1, deletions.get("file" + i + ".bin").get());
+                }
+                assertTrue(lockManager.listLocks(null, null, null, 0, null).getLocks().isEmpty());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Run the action for every path in each of the concurrent users,
+     * starting them all together, and in a different order of the paths.
+     */
+    private static void race(ExecutorService executor, BiConsumer<String, String> action)
+            throws Exception {
+        CyclicBarrier start = new CyclicBarrier(THREADS);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            String user = "user" + t;
+            futures.add(executor.submit(() -> {
+                List<String> paths = new ArrayList<>();
+                for (int i = 0; i < PATHS; i++) {
+                    paths.add("file" + i + ".bin");
+                }
+                Collections.shuffle(paths);
+                start.await();
+                for (String path : paths) {
+                    action.accept(user, path);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+    }
+
+    @Test
+    public void testConcurrentCreateAndDelete() throws Exception {
+        Path repoPath = createRepository(tempDir);
+        Path lfsPath = tempDir.resolve("lfs");
+        FileLfsLockManager lockManager = new FileLfsLockManager(lfsPath, repoPath);
+
+        raceForLocks(lockManager);
+
+        //the index and the lock files agree, also for a manager reloading them
+        lockManager.createLock("file0.bin", null, "tester");
+        Set<String> lockFiles = lockFileIds(lfsPath);
+        assertEquals(Set.of(LockUtils.toLockId("file0.bin")), lockFiles);
+        assertEquals(lockFiles, lockIds(lockManager));
+        assertEquals(lockFiles, lockIds(new FileLfsLockManager(lfsPath, repoPath)));
+    }
+
+    @Test
+    public void testLockFileOfAnotherManagerIsAdopted() throws Exception {
+        Path repoPath = createRepository(tempDir);
+        Path lfsPath = tempDir.resolve("lfs");
+        FileLfsLockManager lockManager = new FileLfsLockManager(lfsPath, repoPath);
+        FileLfsLockManager otherManager = new FileLfsLockManager(lfsPath, repoPath);
+        otherManager.createLock("file0.bin", null, "other");
+
+        LfsLockExists e = assertThrows(LfsLockExists.class,
+                () -> lockManager.createLock("file0.bin", null, "tester"));
+        assertEquals("other", e.getLock().getOwner().getName());
+        String id = LockUtils.toLockId("file0.bin");
+        assertTrue(lockIds(lockManager).contains(id));
+
+        lockManager.deleteLock(id, null, "tester", true);
+        assertFalse(lockFileIds(lfsPath).contains(id));
+    }
+
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Lock;
+import com.github.chirontt.lfs.server.locks.errors.LfsLockExists;
+
+public class JournalLfsLockManagerTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    public void testLockFilesImportedIntoNewJournal() throws Exception {
+        Path repoPath = FileLfsLockManagerTest.createRepository(tempDir);
+        Path lfsPath = tempDir.resolve("lfs");
+        FileLfsLockManager fileManager = new FileLfsLockManager(lfsPath, repoPath);
+        fileManager.createLock("file0.bin", null, "tester");
+        fileManager.createLock("file1.bin", "refs/heads/main", "other");
+
+        try (JournalLfsLockManager lockManager = new JournalLfsLockManager(lfsPath, repoPath)) {
+            List<Lock> locks = lockManager.listLocks(null, null, null, 0, null).getLocks();
+            assertEquals(2, locks.size());
+            assertEquals(1, lockManager.listLocks(null, null, null, 0, "refs/heads/main").getLocks().size());
+            LfsLockExists e = assertThrows(LfsLockExists.class,
+                    () -> lockManager.createLock("file0.bin", null, "other"));
+            assertEquals("tester", e.getLock().getOwner().getName());
+            lockManager.deleteLock(LockUtils.toLockId("file0.bin"), null, "tester", false);
+        }
+
+        //the lock files are only imported into a new journal
+        try (JournalLfsLockManager lockManager = new JournalLfsLockManager(lfsPath, repoPath)) {
+            List<Lock> locks = lockManager.listLocks(null, null, null, 0, null).getLocks();
+            assertEquals(1, locks.size());
+            assertEquals("file1.bin", locks.get(0).getPath());
+        }
+    }
+
+    @Test
+    public void testConcurrentCreateAndDelete() throws Exception {
+        Path repoPath = FileLfsLockManagerTest.createRepository(tempDir);
+        try (JournalLfsLockManager lockManager =
+                new JournalLfsLockManager(tempDir.resolve("lfs"), repoPath)) {
+            FileLfsLockManagerTest.raceForLocks(lockManager);
+        }
+    }
+
+    @Test
+    public void testConcurrentCreateAndDeleteWithGroupCommit() throws Exception {
+        Path repoPath = FileLfsLockManagerTest.createRepository(tempDir);
+        try (JournalLfsLockManager lockManager =
+                new JournalLfsLockManager(tempDir.resolve("lfs"), repoPath, 2, 16)) {
+            FileLfsLockManagerTest.raceForLocks(lockManager);
+        }
+    }
+
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.github.chirontt.lfs.server.LfsRef;
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Owner;
+
+public class LockIndexTest {
+
+    private static PersistentLock lock(String path, String ref) {
+        PersistentLock lock = new PersistentLock();
+        lock.setId(LockUtils.toLockId(path));
+        lock.setPath(path);
+        lock.setLockedAt("2021-01-01T00:00:00Z");
+        lock.setOwner(new Owner("tester"));
+        lock.setRef(ref == null ? null : new LfsRef(ref));
+        return lock;
+    }
+
+    @Test
+    public void testPutIfAbsentAndLookups() {
+        LockIndex index = new LockIndex();
+        PersistentLock lock = lock("a/b.bin", "refs/heads/main");
+        assertNull(index.putIfAbsent(lock));
+        assertSame(lock, index.putIfAbsent(lock("a/b.bin", "refs/heads/main")));
+        assertEquals(1, index.size());
+        assertSame(lock, index.get(lock.getId()));
+        assertSame(lock, index.getByPath("a/b.bin"));
+        assertNull(index.getByPath("a/c.bin"));
+    }
+
+    @Test
+    public void testRemoveOnlyExpectedLock() {
+        LockIndex index = new LockIndex();
+        PersistentLock lock = lock("x.bin", null);
+        index.putIfAbsent(lock);
+        assertFalse(index.remove(lock.getId(), lock("x.bin", null)));
+        assertTrue(index.remove(lock.getId(), lock));
+        assertEquals(0, index.size());
+        assertNull(index.get(lock.getId()));
+    }
+
+    @Test
+    public void testPagination() {
+        LockIndex index = new LockIndex();
+        for (int i = 0; i < 25; i++) {
+            index.putIfAbsent(lock("file" + i + ".bin", i % 2 == 0 ? "refs/heads/main" : null));
+        }
+        List<String> ids = new ArrayList<>();
+        String cursor = null;
+        do {
+            LockIndex.Page page = index.page(null, cursor, 10);
+            assertTrue(page.locks.size() <= 10);
+            page.locks.forEach(lock -> ids.add(lock.getId()));
+            cursor = page.nextCursor;
+        } while (cursor != null);
+        assertEquals(25, ids.size());
+        for (int i = 1; i < ids.size(); i++) {
+            assertTrue(ids.get(i - 1).compareTo(ids.get(i)) < 0, "locks not in ID order");
+        }
+
+        LockIndex.Page refPage = index.page("refs/heads/main", null, 0);
+        assertEquals(13, refPage.locks.size());
+        assertNull(refPage.nextCursor);
+        assertEquals(0, index.page("refs/heads/other", null, 0).locks.size());
+    }
+
+    @Test
+    public void testEmptyRefIndexIsDropped() {
+        LockIndex index = new LockIndex();
+        PersistentLock lock1 = lock("one.bin", "refs/heads/topic");
+        PersistentLock lock2 = lock("two.bin", "refs/heads/topic");
+        index.putIfAbsent(lock1);
+        index.putIfAbsent(lock2);
+        assertEquals(1, index.refCount());
+        index.remove(lock1.getId(), lock1);
+        assertEquals(1, index.refCount());
+        index.remove(lock2.getId());
+        assertEquals(0, index.refCount());
+        assertEquals(0, index.page("refs/heads/topic", null, 0).locks.size());
+    }
+
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.github.chirontt.lfs.server.locks.LfsFileLockingResponse.Owner;
+
+public class LockJournalTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static PersistentLock lock(String path) {
+        PersistentLock lock = new PersistentLock();
+        lock.setId(LockUtils.toLockId(path));
+        lock.setPath(path);
+        lock.setLockedAt("2021-01-01T00:00:00Z");
+        lock.setOwner(new Owner("tester"));
+        return lock;
+    }
+
+    private static void apply(LockIndex index, LockJournal.Record record) {
+        if (LockJournal.CREATE.equals(record.op)) {
+            index.put(record.lock);
+        } else {
+            index.remove(record.id);
+        }
+    }
+
+    /**
+     * Append create/delete pairs until the journal is due for compaction.
+     */
+    private static void appendUntilCompaction(LockJournal journal) throws Exception {
+        for (int i = 0; i < LockJournal.COMPACTION_MIN_RECORDS; i += 2) {
+            PersistentLock lock = lock("file" + i + ".bin");
+            journal.append(LockJournal.Record.create(lock));
+            journal.append(LockJournal.Record.delete(lock.getId()));
+        }
+    }
+
+    private static List<LockJournal.Record> replay(Path journalPath) throws Exception {
+        List<LockJournal.Record> records = new ArrayList<>();
+        LockJournal journal = new LockJournal(journalPath, new LockIndex());
+        journal.open(records::add);
+        journal.close();
+        return records;
+    }
+
+    @Test
+    public void testReplaySkipsMalformedRecord() throws Exception {
+        Path journalPath = tempDir.resolve("locks.journal");
+        LockJournal journal = new LockJournal(journalPath, new LockIndex());
+        journal.open(record -> {});
+        journal.append(LockJournal.Record.create(lock("a.bin")));
+        journal.close();
+        Files.write(journalPath, "{\"op\":\"create\",\"lock\":\n".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        //the journal must stay usable after the malformed record
+        journal = new LockJournal(journalPath, new LockIndex());
+        journal.open(record -> {});
+        journal.append(LockJournal.Record.delete(LockUtils.toLockId("a.bin")));
+        journal.close();
+
+        List<LockJournal.Record> records = replay(journalPath);
+        assertEquals(2, records.size());
+        assertEquals(LockJournal.CREATE, records.get(0).op);
+        assertEquals(LockJournal.DELETE, records.get(1).op);
+    }
+
+    @Test
+    public void testReplayDiscardsTornRecord() throws Exception {
+        Path journalPath = tempDir.resolve("locks.journal");
+        LockJournal journal = new LockJournal(journalPath, new LockIndex());
+        journal.open(record -> {});
+        journal.append(LockJournal.Record.create(lock("a.bin")));
+        journal.close();
+        long goodLength = Files.size(journalPath);
+        Files.write(journalPath, "{\"op\":\"cre".getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+
+        assertEquals(1, replay(journalPath).size());
+        assertEquals(goodLength, Files.size(journalPath));
+    }
+
+    @Test
+    public void testGroupCommitKeepsRecordOrder() throws Exception {
+        Path journalPath = tempDir.resolve("locks.journal");
+        LockJournal journal = new LockJournal(journalPath, new LockIndex(), 5, 16);
+        journal.open(record -> {});
+        List<LockJournal.Append> appends = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            PersistentLock lock = lock("file" + i + ".bin");
+            appends.add(journal.enqueue(LockJournal.Record.create(lock)));
+            appends.add(journal.enqueue(LockJournal.Record.delete(lock.getId())));
+        }
+        for (LockJournal.Append append : appends) {
+            append.await();
+        }
+        journal.close();
+
+        List<LockJournal.Record> records = replay(journalPath);
+        assertEquals(100, records.size());
+        for (int i = 0; i < records.size(); i += 2) {
+            assertEquals(LockJournal.CREATE, records.get(i).op);
+            assertEquals(LockJournal.DELETE, records.get(i + 1).op);
+            assertEquals(records.get(i).id, records.get(i + 1).id);
+        }
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        Path journalPath = tempDir.resolve("locks.journal");
+        LockIndex index = new LockIndex();
+        LockJournal journal = new LockJournal(journalPath, index);
+        journal.open(record -> apply(index, record));
+        appendUntilCompaction(journal);
+        assertEquals(0, index.size());
+        //appended to the compacted journal
+        journal.append(LockJournal.Record.create(lock("live.bin")));
+        journal.append(LockJournal.Record.create(lock("after.bin")));
+        journal.close();
+
+        List<LockJournal.Record> records = replay(journalPath);
+        assertEquals(2, records.size());
+        assertEquals(LockUtils.toLockId("live.bin"), records.get(0).id);
+        assertEquals(LockUtils.toLockId("after.bin"), records.get(1).id);
+        assertFalse(Files.exists(tempDir.resolve("locks.journal.tmp")));
+    }
+
+    @Test
+    public void testFailedCompactionKeepsJournalUsable() throws Exception {
+        Path journalPath = tempDir.resolve("locks.journal");
+        LockIndex index = new LockIndex();
+        int[] attempts = new int[1];
+        LockJournal journal = new LockJournal(journalPath, index) {
+            @Override
+            void replaceJournal(Path compacted) throws IOException {
+                attempts[0]++;
+                throw new IOException("rename failed");
+            }
+        };
+        journal.open(record -> apply(index, record));
+        appendUntilCompaction(journal);
+        assertEquals(1, attempts[0]);
+        assertFalse(Files.exists(tempDir.resolve("locks.journal.tmp")));
+
+        //the journal keeps appending to the uncompacted file,
+        //without retrying the compaction on every append
+        journal.append(LockJournal.Record.create(lock("live.bin")));
+        journal.append(LockJournal.Record.create(lock("after.bin")));
+        assertEquals(1, attempts[0]);
+        assertTrue(index.get(LockUtils.toLockId("after.bin")) != null);
+        journal.close();
+
+        List<LockJournal.Record> records = replay(journalPath);
+        assertEquals(LockJournal.COMPACTION_MIN_RECORDS + 2, records.size());
+        LockIndex replayed = new LockIndex();
+        records.forEach( record -> apply(replayed, record) );
+        assertEquals(2, replayed.size());
+    }
+
+    @Test
+    public void testCreateWithLocks() throws Exception {
+        Path journalPath = tempDir.resolve("locks.journal");
+        LockJournal journal = new LockJournal(journalPath, new LockIndex());
+        journal.create(List.of(lock("a.bin"), lock("b.bin")));
+
+        List<LockJournal.Record> records = replay(journalPath);
+        assertEquals(2, records.size());
+        assertEquals(LockUtils.toLockId("a.bin"), records.get(0).id);
+        assertEquals("a.bin", records.get(0).lock.getPath());
+        assertEquals(LockUtils.toLockId("b.bin"), records.get(1).id);
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2021, Tue Ton <chirontt@gmail.com>
+ *
+ * This program and the accompanying materials are made available under the
+ * terms of the Eclipse Distribution License v. 1.0 which is available at
+ * https://www.eclipse.org/org/documents/edl-v10.php.
+ *
+ * SPDX-License-Identifier: BSD-3-Clause
+ */
+package com.github.chirontt.lfs.server.locks.lm;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import org.eclipse.jgit.api.Git;
+import org.eclipse.jgit.lib.PersonIdent;
+import org.eclipse.jgit.lib.Repository;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class RefTreeCacheTest {
+
+    private static final PersonIdent IDENT = new PersonIdent("tester", "tester@example.com");
+
+    @TempDir
+    Path tempDir;
+
+    private static void commit(Git git, String... files) throws Exception {
+        Path workTree = git.getRepository().getWorkTree().toPath();
+        for (String file : files) {
+            Files.createDirectories(workTree.resolve(file).getParent());
+            Files.write(workTree.resolve(file), file.getBytes());
+        }
+        git.add().addFilepattern(".").call();
+        git.commit().setMessage("files").setAuthor(IDENT).setCommitter(IDENT).call();
+    }
+
+    @Test
+    public void testRefNamesShareTheTreeIndex() throws Exception {
+        RefTreeCache cache = new RefTreeCache(100, 100);
+        try (Git git = Git.init().setDirectory(tempDir.toFile()).setInitialBranch("main").call()) {
+            commit(git, "a.bin", "dir/b.bin");
+            Repository repo = git.getRepository();
+            assertTrue(cache.isPathPresentForRef(repo, "main", "a.bin"));
+            assertTrue(cache.isPathPresentForRef(repo, "refs/heads/main", "dir/b.bin"));
+            assertTrue(cache.isPathPresentForRef(repo, null, "dir"));
+            assertFalse(cache.isPathPresentForRef(repo, "HEAD", "c.bin"));
+            //a.bin, dir and dir/b.bin, indexed once
+            assertEquals(3, cache.getIndexedPaths());
+
+            //the ref moved to a new commit
+            commit(git, "c.bin");
+            assertTrue(cache.isPathPresentForRef(repo, "main", "c.bin"));
+            assertFalse(cache.isPathPresentForRef(repo, "refs/heads/other", "a.bin"));
+        }
+    }
+
+    @Test
+    public void testCacheIsBoundedByTotalPaths() throws Exception {
+        RefTreeCache cache = new RefTreeCache(5, 3);
+        try (Git git = Git.init().setDirectory(tempDir.toFile()).setInitialBranch("main").call()) {
+            Repository repo = git.getRepository();
+            commit(git, "a.bin", "b.bin");
+            assertTrue(cache.isPathPresentForRef(repo, "main", "a.bin"));
+            commit(git, "c.bin");
+            assertTrue(cache.isPathPresentForRef(repo, "main", "c.bin"));
+            assertTrue(cache.getIndexedPaths() <= 5);
+
+            //too large to be indexed, still looked up
+            commit(git, "d.bin");
+            assertTrue(cache.isPathPresentForRef(repo, "main", "d.bin"));
+            assertFalse(cache.isPathPresentForRef(repo, "main", "e.bin"));
+            assertTrue(cache.getIndexedPaths() <= 5);
+        }
+    }
+
+}